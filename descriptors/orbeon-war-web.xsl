@@ -50,6 +50,16 @@
                         <param-name>oxf.resources.priority.1.oxf.resources.filesystem.sandbox-directory</param-name>
                         <param-value><xsl:value-of select="$build-root"/>/src/resources</param-value>
                     </context-param>
+                    <xsl:comment>
+                        Whether to watch the sandbox directory for changes, and keep last modified timestamps in
+                        memory until a file changes, instead of reading them from the filesystem upon each check
+                        (default: false). This only applies to filesystem resource managers with a sandbox directory,
+                        and is ignored otherwise.
+                    </xsl:comment>
+                    <context-param>
+                        <param-name>oxf.resources.priority.1.oxf.resources.filesystem.watch</param-name>
+                        <param-value>false</param-value>
+                    </context-param>
                     <context-param>
                         <param-name>oxf.resources.priority.3</param-name>
                         <param-value>org.orbeon.oxf.resources.FilesystemResourceManagerFactory</param-value>
@@ -78,3 +78,13 @@ CREATE TABLE orbeon_i_control_text (
     val                 MEDIUMTEXT            CHARACTER SET utf8 COLLATE utf8_unicode_ci  NOT NULL,
     FOREIGN KEY         (data_id)             REFERENCES orbeon_form_data(id)
 )   ENGINE = InnoDB;
+
+CREATE TABLE orbeon_i_change_log (
+    id                  INT                   PRIMARY KEY AUTO_INCREMENT                  NOT NULL,
+    app                 VARCHAR(255)          CHARACTER SET utf8 COLLATE utf8_bin         NOT NULL,
+    form                VARCHAR(255)          CHARACTER SET utf8 COLLATE utf8_bin         NOT NULL,
+    form_version        INT                                                               NOT NULL,
+    document_id         VARCHAR(255)          CHARACTER SET utf8 COLLATE utf8_bin
+)   ENGINE = InnoDB;
+
+CREATE INDEX orbeon_i_change_log_i1 ON orbeon_i_change_log (app, form, id);
@@ -27,3 +27,13 @@ CREATE TABLE orbeon_i_control_text (
     val                 TEXT         NOT NULL,
     FOREIGN KEY         (data_id)    REFERENCES orbeon_form_data(id)
 );
+
+CREATE TABLE orbeon_i_change_log (
+    id                  SERIAL       PRIMARY KEY NOT NULL,
+    app                 VARCHAR(255) NOT NULL,
+    form                VARCHAR(255) NOT NULL,
+    form_version        INT          NOT NULL,
+    document_id         VARCHAR(255)
+);
+
+CREATE INDEX orbeon_i_change_log_i1 ON orbeon_i_change_log (app, form, id);
@@ -17,5 +17,6 @@ public class CacheEntry {
     public CacheKey key;
     public Object cacheable;
     public Object validity;
+    public long weight;
     public CacheLinkedList.ListEntry listEntry;
 }
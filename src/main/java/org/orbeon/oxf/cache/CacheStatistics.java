@@ -34,6 +34,24 @@ public interface CacheStatistics {
      * Number of failed cache read
      */
     public int getMissCount();
+
+    /**
+     * Number of objects added to the cache
+     */
     public int getAddCount();
+
+    /**
+     * Number of objects evicted from the cache to make room for other objects
+     */
     public int getExpirationCount();
+
+    /**
+     * Maximum approximate weight in bytes the cache can hold, or 0 if the cache is only bounded by size
+     */
+    public long getMaxWeight();
+
+    /**
+     * Approximate weight in bytes of the objects in cache at this time
+     */
+    public long getCurrentWeight();
 }
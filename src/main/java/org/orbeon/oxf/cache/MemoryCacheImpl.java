@@ -25,22 +25,51 @@ import java.util.concurrent.locks.Lock;
 /**
  * Memory cache implementation.
  *
+ * The cache is bounded by a maximum number of entries and, optionally, by a maximum weight. The weight of an entry
+ * is the approximate size reported by objects implementing Weighable, so that for example one large SAXStore doesn't
+ * count the same as a small object.
+ *
  * @noinspection SimplifiableIfStatement
  */
-public class MemoryCacheImpl implements Cache {
+public class MemoryCacheImpl implements Cache, CacheStatistics {
 
     private int maxSize;
+    private long maxWeight;
 
     private Map<CacheKey, CacheEntry> keyToEntryMap = new HashMap<CacheKey, CacheEntry>();
     private CacheLinkedList linkedList = new CacheLinkedList();
     private int currentSize;
+    private long currentWeight;
+
+    // Statistics
+    private int hitCount;
+    private int missCount;
+    private int addCount;
+    private int expirationCount;
 
     public MemoryCacheImpl(int maxSize) {
+        this(maxSize, 0);
+    }
+
+    /**
+     * @param maxSize   maximum number of entries
+     * @param maxWeight maximum approximate weight in bytes, or 0 for no limit
+     */
+    public MemoryCacheImpl(int maxSize, long maxWeight) {
         this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
     }
 
     public synchronized void add(CacheKey key, Object validity, Object cacheable) {
         if (key == null || validity == null || maxSize == 0) return;
+
+        final long weight = getWeight(cacheable);
+        if (maxWeight > 0 && weight > maxWeight) {
+            // Object can never fit, don't keep it and don't keep a stale version either
+            remove(key, false, true);
+            return;
+        }
+
         CacheEntry entry = keyToEntryMap.get(key);
         if (entry == null) {
             // No existing entry found
@@ -56,8 +85,11 @@ public class MemoryCacheImpl implements Cache {
             entry.key = key;
             entry.validity = validity;
             entry.cacheable = cacheable;
+            entry.weight = weight;
             keyToEntryMap.put(key, entry);
             entry.listEntry = linkedList.addFirst(entry);
+            currentWeight += weight;
+            addCount++;
 
             // Notify object
             notifyAdded(entry.cacheable);
@@ -66,9 +98,19 @@ public class MemoryCacheImpl implements Cache {
             // Update validity and move to the front
             entry.validity = validity;
             entry.cacheable = cacheable;
+            currentWeight += weight - entry.weight;
+            entry.weight = weight;
             linkedList.remove(entry.listEntry);
             entry.listEntry = linkedList.addFirst(entry);
         }
+
+        // Evict entries, starting from the end, until the weight fits
+        // If somehow we couldn't manage to evict enough entries, the cache will grow over maxWeight.
+        while (maxWeight > 0 && currentWeight > maxWeight && tryEvictLast());
+    }
+
+    private static long getWeight(Object object) {
+        return (object instanceof Weighable) ? ((Weighable) object).getApproximateSize() : 0;
     }
 
     private boolean tryEvictLast() {
@@ -120,9 +162,11 @@ public class MemoryCacheImpl implements Cache {
             keyToEntryMap.remove(key);
             linkedList.remove(entry.listEntry);
             currentSize--;
+            currentWeight -= entry.weight;
 
             // Notify object
             if (isEvict) {
+                expirationCount++;
                 notifyEvicted(entry.cacheable);
             } else if (isRemove) {
                 notifyRemoved(entry.cacheable);
@@ -159,6 +203,7 @@ public class MemoryCacheImpl implements Cache {
         keyToEntryMap = new HashMap<CacheKey, CacheEntry>();
         linkedList = new CacheLinkedList();
         currentSize = 0;
+        currentWeight = 0;
         return previousSize;
     }
 
@@ -185,23 +230,25 @@ public class MemoryCacheImpl implements Cache {
                 entry.listEntry = linkedList.addFirst(entry);
             }
 
+            hitCount++;
             return entry.cacheable;
         } else {
             // Not latest validity
+            missCount++;
             return null;
         }
     }
 
-    public CacheEntry findAny(CacheKey key) {
+    public synchronized CacheEntry findAny(CacheKey key) {
         // Don't update statistics here
         return keyToEntryMap.get(key);
     }
 
-    public int getCurrentSize() {
+    public synchronized int getCurrentSize() {
         return currentSize;
     }
 
-    public int getMaxSize() {
+    public synchronized int getMaxSize() {
         return maxSize;
     }
 
@@ -221,6 +268,43 @@ public class MemoryCacheImpl implements Cache {
         }
     }
 
+    public synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized void setMaxWeight(long maxWeight) {
+        if (maxWeight != this.maxWeight) {
+            this.maxWeight = maxWeight;
+
+            // Decrease weight if necessary
+            while (maxWeight > 0 && currentWeight > maxWeight && tryEvictLast());
+        }
+    }
+
+    public synchronized long getCurrentWeight() {
+        return currentWeight;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getAddCount() {
+        return addCount;
+    }
+
+    public synchronized int getExpirationCount() {
+        return expirationCount;
+    }
+
+    public CacheStatistics getStatistics() {
+        return this;
+    }
+
     public Iterator<CacheKey> iterateCacheKeys() {
         return new TransformIterator(linkedList.iterator(), new Transformer() {
             public Object transform(Object o) {
@@ -17,6 +17,7 @@ import org.orbeon.oxf.properties.Properties;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Factory for ObjectCache instances.
@@ -25,14 +26,17 @@ public class ObjectCache {
 
     private static final String DEFAULT_CACHE_NAME = "cache.main";
     private static final int DEFAULT_SIZE = 200;
+    // Bound large objects such as SAXStore outputs by weight too, in addition to the entry count
+    private static final long DEFAULT_MAX_WEIGHT = 100L * 1024 * 1024;
 
     private static final String CACHE_PROPERTY_NAME_PREFIX = "oxf.";
     private static final String CACHE_PROPERTY_NAME_SIZE_SUFFIX = ".size";
+    private static final String CACHE_PROPERTY_NAME_MAX_WEIGHT_SUFFIX = ".max-weight";
 
     private static final Map<String, Cache> namedObjectCaches = new HashMap<String, Cache>();
 
     static {
-        namedObjectCaches.put(DEFAULT_CACHE_NAME, new MemoryCacheImpl(DEFAULT_SIZE));
+        namedObjectCaches.put(DEFAULT_CACHE_NAME, new MemoryCacheImpl(DEFAULT_SIZE, DEFAULT_MAX_WEIGHT));
     }
 
     private ObjectCache() {}
@@ -53,14 +57,37 @@ public class ObjectCache {
      * @param defaultSize   default size if size is not found in properties
      * @return              instance of cache
      */
-    public synchronized static Cache instance(String cacheName, int defaultSize) {
+    public static Cache instance(String cacheName, int defaultSize) {
+        return instance(cacheName, defaultSize, 0);
+    }
+
+    /**
+     * Get the instance of the object cache specified.
+     *
+     * @param cacheName         name of the cache
+     * @param defaultSize       default size if size is not found in properties
+     * @param defaultMaxWeight  default maximum weight in bytes if not found in properties, 0 for no limit
+     * @return                  instance of cache
+     */
+    public synchronized static Cache instance(String cacheName, int defaultSize, long defaultMaxWeight) {
         Cache cache = namedObjectCaches.get(cacheName);
         if (cache == null) {
-            final String propertyName = CACHE_PROPERTY_NAME_PREFIX + cacheName + CACHE_PROPERTY_NAME_SIZE_SUFFIX;
-            final Integer size = Properties.instance().getPropertySet().getInteger(propertyName, defaultSize);
-            cache = new MemoryCacheImpl(size);
+            final String propertyPrefix = CACHE_PROPERTY_NAME_PREFIX + cacheName;
+            final Integer size = Properties.instance().getPropertySet().getInteger(propertyPrefix + CACHE_PROPERTY_NAME_SIZE_SUFFIX, defaultSize);
+            final Object maxWeightProperty = Properties.instance().getPropertySet().getObject(propertyPrefix + CACHE_PROPERTY_NAME_MAX_WEIGHT_SUFFIX);
+            final long maxWeight = (maxWeightProperty instanceof Number) ? ((Number) maxWeightProperty).longValue() : defaultMaxWeight;
+            cache = new MemoryCacheImpl(size, maxWeight);
             namedObjectCaches.put(cacheName, cache);
         }
         return cache;
     }
+
+    /**
+     * Get all the caches created so far, sorted by name.
+     *
+     * @return map of cache names to caches
+     */
+    public synchronized static Map<String, Cache> getNamedCaches() {
+        return new TreeMap<String, Cache>(namedObjectCaches);
+    }
 }
@@ -13,6 +13,7 @@
  */
 package org.orbeon.oxf.processor;
 
+import org.orbeon.oxf.cache.Cache;
 import org.orbeon.oxf.cache.InternalCacheKey;
 import org.orbeon.oxf.cache.ObjectCache;
 import org.orbeon.oxf.cache.OutputCacheKey;
@@ -35,6 +36,11 @@ public class CacheProcessor extends ProcessorImpl {
     public static String INPUT_KEY = "key";
     public static String INPUT_VALIDITY = "validity";
 
+    // Data cached by this processor goes to its own cache so that large documents don't evict other processors' objects
+    private static final String CACHE_NAME = "cache.processor";
+    private static final int CACHE_DEFAULT_SIZE = 200;
+    private static final long CACHE_DEFAULT_MAX_WEIGHT = 50L * 1024 * 1024;
+
     public CacheProcessor() {
         addInputInfo(new ProcessorInputOutputInfo(INPUT_KEY));
         addInputInfo(new ProcessorInputOutputInfo(INPUT_VALIDITY));
@@ -51,13 +57,14 @@ public class CacheProcessor extends ProcessorImpl {
 
                     if (state.validity != null) {
                         // Cache data by validity
+                        final Cache cache = ObjectCache.instance(CACHE_NAME, CACHE_DEFAULT_SIZE, CACHE_DEFAULT_MAX_WEIGHT);
                         InternalCacheKey internalKey = new InternalCacheKey(CacheProcessor.this, "keyDigest", state.keyDigest);
-                        SAXStore dataSaxStore = (SAXStore) ObjectCache.instance().findValid(internalKey, state.validity);
+                        SAXStore dataSaxStore = (SAXStore) cache.findValid(internalKey, state.validity);
                         if (dataSaxStore == null) {
                             // Can't find data in cache, read it and store it in cache
                             dataSaxStore = new SAXStore();
                             readInputAsSAX(pipelineContext, INPUT_DATA, dataSaxStore);
-                            ObjectCache.instance().add(internalKey, state.validity, dataSaxStore);
+                            cache.add(internalKey, state.validity, dataSaxStore);
                         }
                         dataSaxStore.replay(receiver);
                     } else {
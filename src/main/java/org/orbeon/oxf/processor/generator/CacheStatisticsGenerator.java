@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.generator;
+
+import org.orbeon.oxf.cache.Cache;
+import org.orbeon.oxf.cache.CacheStatistics;
+import org.orbeon.oxf.cache.ObjectCache;
+import org.orbeon.oxf.xml.XMLReceiverHelper;
+
+import java.util.Map;
+
+/**
+ * CacheStatisticsGenerator produces an XML document containing statistics about all the object caches, so that
+ * cache sizes and weights can be configured based on actual usage.
+ */
+public class CacheStatisticsGenerator extends StatisticsGenerator {
+
+    @Override
+    protected void generateStatistics(XMLReceiverHelper helper) {
+        helper.startElement("caches");
+        for (final Map.Entry<String, Cache> entry : ObjectCache.getNamedCaches().entrySet()) {
+            final CacheStatistics statistics = entry.getValue().getStatistics();
+
+            helper.startElement("cache", new String[] { "name", entry.getKey() });
+            helper.element("max-size", statistics.getMaxSize());
+            helper.element("current-size", statistics.getCurrentSize());
+            helper.element("max-weight", statistics.getMaxWeight());
+            helper.element("current-weight", statistics.getCurrentWeight());
+            helper.element("hit-count", statistics.getHitCount());
+            helper.element("miss-count", statistics.getMissCount());
+            helper.element("add-count", statistics.getAddCount());
+            helper.element("expiration-count", statistics.getExpirationCount());
+            helper.endElement();
+        }
+        helper.endElement();
+    }
+}
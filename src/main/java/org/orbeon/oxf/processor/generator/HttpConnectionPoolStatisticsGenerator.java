@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.generator;
+
+import org.orbeon.oxf.http.HttpPoolStatistics;
+import org.orbeon.oxf.http.HttpRouteStatistics;
+import org.orbeon.oxf.http.PropertiesApacheHttpClient;
+import org.orbeon.oxf.xml.XMLReceiverHelper;
+
+import java.util.Map;
+
+/**
+ * HttpConnectionPoolStatisticsGenerator produces an XML document telling how the connections of the HTTP client are
+ * used, in total and for each route with connections.
+ */
+public class HttpConnectionPoolStatisticsGenerator extends StatisticsGenerator {
+
+    @Override
+    protected void generateStatistics(XMLReceiverHelper helper) {
+        final HttpPoolStatistics poolStatistics = PropertiesApacheHttpClient.statistics();
+        helper.startElement("http-connection-pool");
+        outputRouteStatistics(helper, poolStatistics.total());
+        for (final Map.Entry<String, HttpRouteStatistics> entry : poolStatistics.jRoutes().entrySet()) {
+            helper.startElement("route", new String[] { "name", entry.getKey() });
+            outputRouteStatistics(helper, entry.getValue());
+            helper.endElement();
+        }
+        helper.endElement();
+    }
+
+    private static void outputRouteStatistics(XMLReceiverHelper helper, HttpRouteStatistics statistics) {
+        helper.element("leased", statistics.leased());
+        helper.element("pending", statistics.pending());
+        helper.element("available", statistics.available());
+        helper.element("max", statistics.max());
+    }
+}
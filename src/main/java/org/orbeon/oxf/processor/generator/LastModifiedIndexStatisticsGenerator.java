@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.generator;
+
+import org.orbeon.oxf.resources.FilesystemLastModifiedIndex;
+import org.orbeon.oxf.xml.XMLReceiverHelper;
+
+/**
+ * LastModifiedIndexStatisticsGenerator produces an XML document telling, for each open resource last modified index,
+ * how many filesystem timestamp reads it avoided.
+ */
+public class LastModifiedIndexStatisticsGenerator extends StatisticsGenerator {
+
+    @Override
+    protected void generateStatistics(XMLReceiverHelper helper) {
+        helper.startElement("last-modified-indexes");
+        for (final FilesystemLastModifiedIndex index : FilesystemLastModifiedIndex.getOpenIndexes()) {
+            helper.startElement("last-modified-index", new String[] { "directory", index.getRootDirectory().getPath() });
+            helper.element("current-size", index.getCurrentSize());
+            helper.element("stat-count", index.getStatCalls());
+            helper.element("stat-avoided-count", index.getStatCallsAvoided());
+            helper.endElement();
+        }
+        helper.endElement();
+    }
+}
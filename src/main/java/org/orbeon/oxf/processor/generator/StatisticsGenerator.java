@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.generator;
+
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.processor.ProcessorImpl;
+import org.orbeon.oxf.processor.ProcessorInputOutputInfo;
+import org.orbeon.oxf.processor.ProcessorOutput;
+import org.orbeon.oxf.xml.XMLReceiver;
+import org.orbeon.oxf.xml.XMLReceiverHelper;
+
+/**
+ * Base class for generators producing an XML document with the current statistics of a subsystem. The statistics
+ * change all the time, so the output is never cached.
+ */
+public abstract class StatisticsGenerator extends ProcessorImpl {
+
+    public StatisticsGenerator() {
+        addOutputInfo(new ProcessorInputOutputInfo(OUTPUT_DATA));
+    }
+
+    /**
+     * Output the root element and the statistics it contains.
+     */
+    protected abstract void generateStatistics(XMLReceiverHelper helper);
+
+    @Override
+    public ProcessorOutput createOutput(String name) {
+        final ProcessorOutput output = new ProcessorOutputImpl(StatisticsGenerator.this, name) {
+            public void readImpl(PipelineContext context, XMLReceiver xmlReceiver) {
+                final XMLReceiverHelper helper = new XMLReceiverHelper(xmlReceiver);
+                helper.startDocument();
+                generateStatistics(helper);
+                helper.endDocument();
+            }
+        };
+        addOutput(name, output);
+        return output;
+    }
+}
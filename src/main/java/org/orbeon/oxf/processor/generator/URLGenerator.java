@@ -487,7 +487,7 @@ public class URLGenerator extends ProcessorImpl {
                         final Object cachedResource = (localCacheKey == null) ? null : ObjectCache.instance().findValid(localCacheKey, localCacheValidity);
                         if (cachedResource != null) {
                             // Just replay the cached resource
-                            ((SAXStore) cachedResource).replay(xmlReceiver);
+                            ((CachedDocument) cachedResource).saxStore.replay(xmlReceiver);
                         } else {
                             final ResourceHandler handler = state.ensureMainResourceHandler(pipelineContext, configURIReferences.config);
                             try {
@@ -563,8 +563,8 @@ public class URLGenerator extends ProcessorImpl {
                                 if (isUseLocalCache && ! handler.isFailureStatusCode()) {
                                     // Make sure SAXStore loses its reference on its output so that we don't clutter the cache
                                     ((SAXStore) output).setXMLReceiver(null);
-                                    // Add to cache
-                                    ObjectCache.instance().add(localCacheKey, localCacheValidity, output);
+                                    // Add to cache along with the information needed to revalidate it later
+                                    ObjectCache.instance().add(localCacheKey, localCacheValidity, new CachedDocument((SAXStore) output, handler.getETag(), handler.getExpiration()));
                                 }
                             } finally {
                                 handler.destroy();
@@ -697,20 +697,33 @@ public class URLGenerator extends ProcessorImpl {
 
                             if (cacheEntry != null) {
                                 // Found some entry in cache for the key
+                                final CachedDocument cachedDocument = (CachedDocument) cacheEntry.cacheable;
                                 final long lastModified = findLastModified(cacheEntry.validity);
-                                // This returns the validity and, possibly, stores the document in the state
-                                validity = handler.getConditional(lastModified);
-                                if (handler.getConnectionStatusCode() == 304) {
-                                    // The server responded that the resource hasn't changed
+                                if (cachedDocument.isFresh()) {
+                                    // The server allowed using the resource without revalidation (Cache-Control: max-age)
 
-                                    // Update the entry in cache
-                                    ObjectCache.instance().add(cacheEntry.key, lastModified, cacheEntry.cacheable);
-
-                                    // Remember the document for the rest of this request
-                                    state.setDocument((SAXStore) cacheEntry.cacheable);
+                                    // Don't connect at all and remember the document for the rest of this request
+                                    validity = lastModified;
+                                    state.setDocument(cachedDocument.saxStore);
+                                } else {
+                                    // This returns the validity and, possibly, stores the document in the state
+                                    final Long conditionalValidity = handler.getConditional(lastModified, cachedDocument.eTag);
+                                    if (handler.getConnectionStatusCode() == 304) {
+                                        // The server responded that the resource hasn't changed
+                                        validity = lastModified;
+
+                                        // Update the entry in cache, including when it must be revalidated next
+                                        ObjectCache.instance().add(cacheEntry.key, lastModified,
+                                            new CachedDocument(cachedDocument.saxStore, cachedDocument.eTag, handler.getExpiration()));
+
+                                        // Remember the document for the rest of this request
+                                        state.setDocument(cachedDocument.saxStore);
+                                    } else {
+                                        validity = getConditionalGETValidity(handler, conditionalValidity);
+                                    }
                                 }
                             } else {
-                                validity = handler.getValidity();
+                                validity = getConditionalGETValidity(handler, handler.getValidity());
                             }
                         }
                         state.setLastModified(urlString, validity);
@@ -724,6 +737,15 @@ public class URLGenerator extends ProcessorImpl {
                 }
             }
 
+            // With conditional GET, a resource which only has an ETag is still cached, using the time at which it was
+            // retrieved as validity
+            private Long getConditionalGETValidity(ResourceHandler handler, Long validity) throws IOException {
+                if (validity == null && handler.getETag() != null)
+                    return System.currentTimeMillis();
+                else
+                    return validity;
+            }
+
             private ConfigURIReferences getConfigURIReferences(PipelineContext context) {
                 // Check if config is external
                 if (localConfigURIReferences != null)
@@ -752,7 +774,9 @@ public class URLGenerator extends ProcessorImpl {
 
     private interface ResourceHandler {
         Long getValidity() throws IOException;
-        Long getConditional(Long lastModified) throws IOException;
+        Long getConditional(Long lastModified, String eTag) throws IOException;
+        String getETag() throws IOException;
+        Long getExpiration() throws IOException;
         String getResourceMediaType() throws IOException;
         String getConnectionEncoding() throws IOException;
         int getConnectionStatusCode() throws IOException;
@@ -852,10 +876,18 @@ public class URLGenerator extends ProcessorImpl {
             return (result <= 0) ? null : result;
         }
 
-        public Long getConditional(Long lastModified) throws IOException {
+        public Long getConditional(Long lastModified, String eTag) throws IOException {
             return getValidity();
         }
 
+        public String getETag() throws IOException {
+            return null;
+        }
+
+        public Long getExpiration() throws IOException {
+            return null;
+        }
+
         public void destroy() throws IOException {
             if (inputStream != null) {
                 inputStream.close();
@@ -933,11 +965,24 @@ public class URLGenerator extends ProcessorImpl {
             return isFailureStatusCode() ? null : connectionResult.lastModifiedJava();
         }
 
-        public Long getConditional(Long lastModified) throws IOException {
-            openConnection(lastModified);
+        public Long getConditional(Long lastModified, String eTag) throws IOException {
+            openConnection(lastModified, eTag);
             return getValidity();
         }
 
+        public String getETag() throws IOException {
+            openConnection();
+            final scala.collection.immutable.List<String> values = connectionResult.getHeaderIgnoreCase("etag");
+            return (isFailureStatusCode() && ! isNotModifiedStatusCode()) || values.isEmpty() ? null : values.head();
+        }
+
+        public Long getExpiration() throws IOException {
+            openConnection();
+            return isFailureStatusCode() && ! isNotModifiedStatusCode()
+                ? null
+                : URLGeneratorBase.findExpirationOrNull(connectionResult.getHeaderIgnoreCase("cache-control"), System.currentTimeMillis());
+        }
+
         public void destroy() throws IOException {
             // Make sure the connection is closed because when
             // getting the last modified date, the stream is
@@ -948,15 +993,15 @@ public class URLGenerator extends ProcessorImpl {
         }
 
         private void openConnection() throws IOException {
-            openConnection(null);
+            openConnection(null, null);
         }
 
-        private void openConnection(Long lastModified) throws IOException {
+        private void openConnection(Long lastModified, String eTag) throws IOException {
             if (connectionResult == null) {
                 // TODO: pass logging callback
 
                 final Map<String, String[]> newHeaders =
-                    URLGeneratorBase.setIfModifiedIfNeeded(config.getHeaderNameValues(), lastModified);
+                    URLGeneratorBase.setConditionalHeadersIfNeeded(config.getHeaderNameValues(), lastModified, eTag);
 
                 final Credentials credentials = config.getUsername() == null ?
                     null :
@@ -1051,6 +1096,10 @@ public class URLGenerator extends ProcessorImpl {
             return statusCode > 0 && ! NetUtils.isSuccessCode(statusCode);
         }
 
+        private boolean isNotModifiedStatusCode() throws IOException {
+            return getConnectionStatusCode() == 304;
+        }
+
         private void checkStatusCode() throws IOException {
             if (isFailureStatusCode())
                 throw new HttpStatusCodeException(getConnectionStatusCode(), Option.apply(config.getURL().toExternalForm()), Option.<Throwable>apply(null));
@@ -1091,10 +1140,18 @@ public class URLGenerator extends ProcessorImpl {
             return null;
         }
 
-        public Long getConditional(Long lastModified) throws IOException {
+        public Long getConditional(Long lastModified, String eTag) throws IOException {
             return getValidity();
         }
 
+        public String getETag() throws IOException {
+            return null;
+        }
+
+        public Long getExpiration() throws IOException {
+            return null;
+        }
+
         public void destroy() throws IOException {
         }
 
@@ -1138,6 +1195,30 @@ public class URLGenerator extends ProcessorImpl {
         }
     }
 
+    /**
+     * Document kept in the local cache, along with what is needed to revalidate it with HTTP.
+     */
+    private static class CachedDocument implements Weighable {
+
+        public final SAXStore saxStore;
+        public final String eTag;
+        public final Long expiration;
+
+        public CachedDocument(SAXStore saxStore, String eTag, Long expiration) {
+            this.saxStore = saxStore;
+            this.eTag = eTag;
+            this.expiration = expiration;
+        }
+
+        public boolean isFresh() {
+            return expiration != null && expiration > System.currentTimeMillis();
+        }
+
+        public long getApproximateSize() {
+            return saxStore.getApproximateSize();
+        }
+    }
+
     // The idea of URLGeneratorState is that, during a pipeline execution with a given PipelineContext, there is typically:
     //
     // - a call to getValidity()
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pdf;
+
+import org.orbeon.oxf.processor.generator.StatisticsGenerator;
+import org.orbeon.oxf.xml.XMLReceiverHelper;
+
+/**
+ * PDFStatisticsGenerator produces an XML document telling how often PDF renderers reused images, and how PDF renders
+ * were queued.
+ */
+public class PDFStatisticsGenerator extends StatisticsGenerator {
+
+    @Override
+    protected void generateStatistics(XMLReceiverHelper helper) {
+        helper.startElement("pdf");
+        outputImageStatistics(helper);
+        outputRenderingStatistics(helper);
+        helper.endElement();
+    }
+
+    // Images shared by PDF renderers, counting revalidations which avoided loading the image again
+    private static void outputImageStatistics(XMLReceiverHelper helper) {
+        final PDFImageStatistics statistics = PDFResourceCache.imageStatistics();
+        helper.startElement("images");
+        helper.element("hit-count", statistics.hits());
+        helper.element("miss-count", statistics.misses());
+        helper.element("bytes-saved", statistics.bytesSaved());
+        helper.element("time-saved-ms", statistics.timeSavedMs());
+        helper.endElement();
+    }
+
+    // Renders currently holding or waiting for a permit, and totals since startup
+    private static void outputRenderingStatistics(XMLReceiverHelper helper) {
+        final PDFRenderingStatistics statistics = PDFRenderingScheduler.statistics();
+        helper.startElement("rendering");
+        helper.element("running", statistics.running());
+        helper.element("queued", statistics.queued());
+        helper.element("rendered-count", statistics.rendered());
+        helper.element("failed-count", statistics.failed());
+        helper.element("rejected-count", statistics.rejected());
+        helper.element("total-wait-ms", statistics.totalWaitMs());
+        helper.element("max-wait-ms", statistics.maxWaitMs());
+        helper.element("total-render-ms", statistics.totalRenderMs());
+        helper.endElement();
+    }
+}
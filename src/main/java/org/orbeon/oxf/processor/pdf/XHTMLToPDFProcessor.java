@@ -57,13 +57,23 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
         return DEFAULT_CONTENT_TYPE;
     }
 
-    protected void readInput(final PipelineContext pipelineContext, final ProcessorInput input, Config config, OutputStream outputStream) {
-
-        final ExternalContext externalContext = NetUtils.getExternalContext();
+    protected void readInput(final PipelineContext pipelineContext, final ProcessorInput input, Config config, final OutputStream outputStream) {
 
         // Read the input as a DOM
         final Document domDocument = readInputAsDOM(pipelineContext, input);
 
+        // Wait for our turn before using the CPU and memory needed for the rendering
+        PDFRenderingScheduler.jWithRenderingPermit(new Runnable() {
+            public void run() {
+                render(pipelineContext, domDocument, outputStream);
+            }
+        });
+    }
+
+    private void render(final PipelineContext pipelineContext, Document domDocument, OutputStream outputStream) {
+
+        final ExternalContext externalContext = NetUtils.getExternalContext();
+
         // Create renderer and add our own callback
 
         final float DEFAULT_DOTS_PER_POINT = 20f * 4f / 3f;
@@ -120,7 +130,26 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
                 // - getXMLResource (not sure when called)
                 protected InputStream resolveAndOpenStream(String uri) {
 
-                    final String resolvedURI = resolveURI(uri);
+                    final ConnectionResult cxr = openConnection(resolveURI(uri), null);
+
+                    final InputStream is =
+                        ConnectionResult.withSuccessConnection(cxr, false, new Function1Adapter<InputStream, InputStream>() {
+                            public InputStream apply(InputStream is) {
+                                return is;
+                            }
+
+                        });
+
+                    pipelineContext.addContextListener(new PipelineContext.ContextListener() {
+                        public void contextDestroyed(boolean success) {
+                            cxr.close();
+                        }
+                    });
+
+                    return is;
+                }
+
+                private ConnectionResult openConnection(String resolvedURI, Long ifModifiedSince) {
                     // TODO: Use xf:submission code instead
 
                     // Tell callee we are loading that we are a servlet environment, as in effect we act like
@@ -129,6 +158,9 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
                     final Map<String, String[]> explicitHeaders = new HashMap<String, String[]>();
                     explicitHeaders.put(Headers.OrbeonClient(), new String[] { "servlet" });
 
+                    if (ifModifiedSince != null)
+                        explicitHeaders.put("If-Modified-Since", new String[] { DateUtils.RFC1123Date().print(ifModifiedSince) });
+
                     final URI url;
                     try {
                         url = new URI(resolvedURI);
@@ -145,24 +177,11 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
                             indentedLogger
                         );
 
-                    final ConnectionResult cxr =
-                        Connection.jApply("GET", url, null, null, headers, true, false, indentedLogger).connect(true);
-
-                    final InputStream is =
-                        ConnectionResult.withSuccessConnection(cxr, false, new Function1Adapter<InputStream, InputStream>() {
-                            public InputStream apply(InputStream is) {
-                                return is;
-                            }
-
-                        });
-
-                    pipelineContext.addContextListener(new PipelineContext.ContextListener() {
-                        public void contextDestroyed(boolean success) {
-                            cxr.close();
-                        }
-                    });
+                    return Connection.jApply("GET", url, null, null, headers, true, false, indentedLogger).connect(true);
+                }
 
-                    return is;
+                private ImageResource superGetImageResource(String uri) {
+                    return super.getImageResource(uri);
                 }
 
                 // See https://github.com/orbeon/orbeon-forms/issues/1996
@@ -170,22 +189,31 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
                 // Use our own local cache (NaiveUserAgent has one too) so that we can cache against the absolute URL
                 // yet pass a local URL to super.getImageResource().
                 //
-                // This doesn't live beyond the production of this PDF as the ITextUserAgent is created each time.
+                // This doesn't live beyond the production of this PDF as the ITextUserAgent is created each time. Across
+                // PDFs, decoded images are shared through PDFResourceCache.
                 private HashMap<String, ImageResource> localImageCache = new HashMap<String, ImageResource>();
 
-                public ImageResource getImageResource(String uri) {
+                public ImageResource getImageResource(final String uri) {
                     final String resolvedURI = resolveURI(uri);
                     final ImageResource cachedImageResource = localImageCache.get(resolvedURI);
 
                     if (cachedImageResource != null) {
                         return cachedImageResource;
                     } else {
-                        final InputStream is = resolveAndOpenStream(resolvedURI);
-                        final String localURI = NetUtils.inputStreamToAnyURI(is, NetUtils.REQUEST_SCOPE, logger);
+                        final ImageResource retrievedImageResource =
+                            PDFResourceCache.getImageResource(resolvedURI, new PDFImageLoader() {
+                                public ConnectionResult connect(Long ifModifiedSinceOrNull) {
+                                    return openConnection(resolvedURI, ifModifiedSinceOrNull);
+                                }
+
+                                public ImageResource decode(InputStream is) {
+                                    final String localURI = NetUtils.inputStreamToAnyURI(is, NetUtils.REQUEST_SCOPE, logger);
 
-                        indentedLogger.logDebug("pdf", "getting image resource", "url", uri, "local", localURI);
+                                    indentedLogger.logDebug("pdf", "getting image resource", "url", uri, "local", localURI);
 
-                        final ImageResource retrievedImageResource = super.getImageResource(localURI);
+                                    return superGetImageResource(localURI);
+                                }
+                            });
                         localImageCache.put(resolvedURI, retrievedImageResource);
                         return retrievedImageResource;
                     }
@@ -209,6 +237,8 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
                 // Page count might be zero, and if so createPDF
                 if (pages != null && pages.size() > 0) {
                     renderer.createPDF(outputStream);
+                    if (logger.isDebugEnabled())
+                        logger.debug("shared image cache: " + PDFResourceCache.imageStatistics());
                 } else {
                     // TODO: log?
                 }
@@ -232,7 +262,8 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
         final PropertySet propertySet = Properties.instance().getPropertySet();
         for (final String propertyName : propertySet.getPropertiesStartsWith("oxf.fr.pdf.font.path")) {
             final String path = ScalaUtils.trimAllToNull(propertySet.getString(propertyName));
-            if (path != null) {
+            // Don't retry, and warn again about, a font which failed to load, unless the file has changed since
+            if (path != null && PDFResourceCache.shouldLoadFont(path)) {
                 try {
                     // Overriding the font family is optional
                     final String family; {
@@ -248,6 +279,7 @@ public class XHTMLToPDFProcessor extends HttpBinarySerializer {// TODO: HttpBina
                     // Add the font
                     renderer.getFontResolver().addFont(path, family, BaseFont.IDENTITY_H, BaseFont.EMBEDDED, null);
                 } catch (Exception e) {
+                    PDFResourceCache.fontFailed(path);
                     logger.warn("Failed to load font by path: '" + path + "' specified with property '"  + propertyName + "'");
                 }
             }
@@ -0,0 +1,165 @@
+/**
+ *  Copyright (C) 2016 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.transformer.xslt;
+
+import org.orbeon.oxf.xml.EmbeddedDocumentXMLReceiver;
+import org.orbeon.oxf.xml.XMLReceiver;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+import javax.xml.transform.sax.TransformerHandler;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receiver which runs a separate transformation on each child element ("record") of the root element of the input
+ * document, so that the transformer only ever holds a single record in memory.
+ *
+ * The output consists of the root element of the input, containing the concatenated results of the transformation of
+ * each record. Text and comments found directly under the root element are not copied.
+ */
+public class RecordsTransformerXMLReceiver implements XMLReceiver {
+
+    public interface TransformerHandlerFactory {
+        TransformerHandler createTransformerHandler(XMLReceiver recordReceiver);
+    }
+
+    private final XMLReceiver xmlReceiver;
+    private final TransformerHandlerFactory factory;
+    private final XMLReceiver recordReceiver;
+
+    // Namespaces in scope on the root element, which must be in scope for each record as well
+    private final List<String[]> rootMappings = new ArrayList<String[]>();
+
+    private Locator locator;
+    private int level;
+    private TransformerHandler currentHandler;
+    private boolean currentRecordEnded;
+
+    public RecordsTransformerXMLReceiver(XMLReceiver xmlReceiver, TransformerHandlerFactory factory) {
+        this.xmlReceiver = xmlReceiver;
+        this.factory = factory;
+        this.recordReceiver = new EmbeddedDocumentXMLReceiver(xmlReceiver) {
+            @Override
+            public void setDocumentLocator(Locator locator) {}
+        };
+    }
+
+    private TransformerHandler getRecordHandler() throws SAXException {
+        if (currentHandler != null && currentRecordEnded)
+            endRecord();
+
+        if (currentHandler == null) {
+            currentHandler = factory.createTransformerHandler(recordReceiver);
+            currentRecordEnded = false;
+            if (locator != null)
+                currentHandler.setDocumentLocator(locator);
+            currentHandler.startDocument();
+            for (final String[] mapping : rootMappings)
+                currentHandler.startPrefixMapping(mapping[0], mapping[1]);
+        }
+        return currentHandler;
+    }
+
+    private void endRecord() throws SAXException {
+        if (currentHandler != null) {
+            for (final String[] mapping : rootMappings)
+                currentHandler.endPrefixMapping(mapping[0]);
+            currentHandler.endDocument();
+            currentHandler = null;
+        }
+    }
+
+    public void setDocumentLocator(Locator locator) {
+        this.locator = locator;
+        xmlReceiver.setDocumentLocator(locator);
+    }
+
+    public void startDocument() throws SAXException {
+        xmlReceiver.startDocument();
+    }
+
+    public void endDocument() throws SAXException {
+        xmlReceiver.endDocument();
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (level == 0) {
+            rootMappings.add(new String[] { prefix, uri });
+            xmlReceiver.startPrefixMapping(prefix, uri);
+        } else {
+            getRecordHandler().startPrefixMapping(prefix, uri);
+        }
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        if (level == 0)
+            xmlReceiver.endPrefixMapping(prefix);
+        else if (currentHandler != null)
+            currentHandler.endPrefixMapping(prefix);
+    }
+
+    public void startElement(String uri, String localname, String qName, Attributes attributes) throws SAXException {
+        if (level == 0)
+            xmlReceiver.startElement(uri, localname, qName, attributes);
+        else
+            getRecordHandler().startElement(uri, localname, qName, attributes);
+        level++;
+    }
+
+    public void endElement(String uri, String localname, String qName) throws SAXException {
+        level--;
+        if (level == 0) {
+            endRecord();
+            xmlReceiver.endElement(uri, localname, qName);
+        } else {
+            currentHandler.endElement(uri, localname, qName);
+            if (level == 1)
+                currentRecordEnded = true;
+        }
+    }
+
+    public void characters(char[] chars, int start, int length) throws SAXException {
+        if (level > 1)
+            currentHandler.characters(chars, start, length);
+    }
+
+    public void ignorableWhitespace(char[] chars, int start, int length) throws SAXException {
+        if (level > 1)
+            currentHandler.ignorableWhitespace(chars, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        if (level > 1)
+            currentHandler.processingInstruction(target, data);
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        if (level > 1)
+            currentHandler.skippedEntity(name);
+    }
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {}
+    public void endDTD() throws SAXException {}
+    public void startEntity(String name) throws SAXException {}
+    public void endEntity(String name) throws SAXException {}
+    public void startCDATA() throws SAXException {}
+    public void endCDATA() throws SAXException {}
+
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        if (level > 1)
+            currentHandler.comment(ch, start, length);
+    }
+}
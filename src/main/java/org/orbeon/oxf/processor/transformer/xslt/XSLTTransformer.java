@@ -17,6 +17,8 @@ import org.orbeon.errorified.Exceptions;
 import org.apache.log4j.Logger;
 import org.orbeon.dom.Document;
 import org.orbeon.dom.Node;
+import org.orbeon.oxf.cache.Cache;
+import org.orbeon.oxf.cache.CacheEntry;
 import org.orbeon.oxf.cache.CacheKey;
 import org.orbeon.oxf.cache.InternalCacheKey;
 import org.orbeon.oxf.cache.ObjectCache;
@@ -34,6 +36,7 @@ import org.orbeon.oxf.processor.transformer.URIResolverListener;
 import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.properties.PropertyStore;
 import org.orbeon.oxf.resources.URLFactory;
+import org.orbeon.oxf.util.NumberUtils;
 import org.orbeon.oxf.util.StringBuilderWriter;
 import org.orbeon.oxf.xml.*;
 import org.orbeon.oxf.xml.XMLParsing;
@@ -88,6 +91,12 @@ public abstract class XSLTTransformer extends ProcessorImpl {
     private static final String OUTPUT_LOCATION_SMART = "smart";
     private static final String OUTPUT_LOCATION_MODE_DEFAULT = OUTPUT_LOCATION_NONE;
 
+    // Attribute on the stylesheet root element declaring that each child element of the input root can be transformed separately
+    private static final String STREAM_RECORDS_ATTRIBUTE = "stream-records";
+
+    // Space-separated list of stylesheet system ids which, once compiled, are never evicted from cache
+    private static final String PINNED_STYLESHEETS_PROPERTY = "pinned-stylesheets";
+
     // This input determines the JAXP transformer factory class to use
     private static final String INPUT_TRANSFORMER = "transformer";
     // This input determines attributes to set on the TransformerFactory
@@ -202,87 +211,87 @@ public abstract class XSLTTransformer extends ProcessorImpl {
                 }
             }
 
-            private void runTransformer(final PipelineContext pipelineContext, final XSLTTransformerState state, final XMLReceiver xmlReceiver, TemplatesInfo templatesInfo,
-                                        Map<String, Boolean> attributes, final boolean dumbOutputLocation, final boolean smartOutputLocation) {
+            private void runTransformer(final PipelineContext pipelineContext, final XSLTTransformerState state, final XMLReceiver xmlReceiver, final TemplatesInfo templatesInfo,
+                                        final Map<String, Boolean> attributes, final boolean dumbOutputLocation, final boolean smartOutputLocation) {
 
                 StringBuilderWriter saxonStringBuilderWriter = null;
                 try {
                     // Create transformer handler and set output writer for Saxon
                     final StringErrorListener errorListener = new StringErrorListener(logger);
-                    final TransformerHandler transformerHandler = TransformerUtils.getTransformerHandler(templatesInfo.templates, templatesInfo.transformerClass, attributes, createXSLTConfiguration());
-
-                    // Set handler for xsl:result-document
-                    if (transformerHandler instanceof TransformerHandlerImpl) {
-                        final TransformerHandlerImpl saxonTransformerHandler = (TransformerHandlerImpl) transformerHandler;
-                        ((Controller) saxonTransformerHandler.getTransformer()).setOutputURIResolver(new OutputURIResolver() {
-                            public Result resolve(String href, String base) throws TransformerException {
-
-                                final String outputName = getProcessorOutputSchemeInputName(href);
-                                if (outputName == null) {
-                                    // Regular URL
-                                    try {
-                                        final URL url = URLFactory.createURL(base, href);
-                                        final StreamResult result;
-                                        if (url.getProtocol().equals("file")) {
-                                            // Special handling of file as URLConnection does not support writing to a file
-                                            result = new StreamResult(new FileOutputStream(new File(url.toURI())));
-                                        } else {
-                                            // Other protocols
-                                            final URLConnection urlConnection = url.openConnection();
-                                            urlConnection.setDoOutput(true);
-                                            result = new StreamResult(urlConnection.getOutputStream());
-                                        }
-                                        result.setSystemId(url.toExternalForm());
-                                        return result;
-                                    } catch (Exception e) {
-                                        throw new OXFException(e);
+                    // The configuration is created once for the transformation, including when transforming records
+                    final Configuration configuration = createXSLTConfiguration();
+                    final TransformerHandler transformerHandler = TransformerUtils.getTransformerHandler(templatesInfo.templates, templatesInfo.transformerClass, attributes, configuration);
+
+                    // Handler for xsl:result-document
+                    final OutputURIResolver outputURIResolver = new OutputURIResolver() {
+                        public Result resolve(String href, String base) throws TransformerException {
+
+                            final String outputName = getProcessorOutputSchemeInputName(href);
+                            if (outputName == null) {
+                                // Regular URL
+                                try {
+                                    final URL url = URLFactory.createURL(base, href);
+                                    final StreamResult result;
+                                    if (url.getProtocol().equals("file")) {
+                                        // Special handling of file as URLConnection does not support writing to a file
+                                        result = new StreamResult(new FileOutputStream(new File(url.toURI())));
+                                    } else {
+                                        // Other protocols
+                                        final URLConnection urlConnection = url.openConnection();
+                                        urlConnection.setDoOutput(true);
+                                        result = new StreamResult(urlConnection.getOutputStream());
                                     }
+                                    result.setSystemId(url.toExternalForm());
+                                    return result;
+                                } catch (Exception e) {
+                                    throw new OXFException(e);
+                                }
+                            } else {
+                                // output:*
+                                final XMLReceiver outputReceiver;
+                                if (outputName.equals(state.firstOutputName)) {
+                                    // Stream through first receiver
+                                    outputReceiver = state.firstXMLReceiver;
                                 } else {
-                                    // output:*
-                                    final XMLReceiver outputReceiver;
-                                    if (outputName.equals(state.firstOutputName)) {
-                                        // Stream through first receiver
-                                        outputReceiver = state.firstXMLReceiver;
-                                    } else {
-                                        // Store
-                                        final SAXStore store = new SAXStore();
-                                        state.addOutputDocument(outputName, store);
+                                    // Store
+                                    final SAXStore store = new SAXStore();
+                                    state.addOutputDocument(outputName, store);
 
-                                        outputReceiver = store;
-                                    }
+                                    outputReceiver = store;
+                                }
 
-                                    final SAXResult result = new SAXResult(outputReceiver);
-                                    result.setLexicalHandler(outputReceiver);
-                                    result.setSystemId(href);
+                                final SAXResult result = new SAXResult(outputReceiver);
+                                result.setLexicalHandler(outputReceiver);
+                                result.setSystemId(href);
 
-                                    return result;
-                                }
+                                return result;
                             }
+                        }
 
-                            public void close(Result result) throws TransformerException {
-                                // Free information from the state
-                                final String outputName = getProcessorOutputSchemeInputName(result.getSystemId());
-                                if (outputName == null) {
-                                    // Regular URL
-                                    if (result instanceof StreamResult) {
-                                        final OutputStream os = ((StreamResult) result).getOutputStream();
-                                        if (os != null)
-                                            try {
-                                                os.close();
-                                            } catch (IOException e) {
-                                                throw new OXFException(e);
-                                            }
-                                    }
-                                } else {
-                                    // output:*
-                                    if (outputName.equals(state.firstOutputName)) {
-                                        state.firstOutputName = null;
-                                        state.firstXMLReceiver = null;
-                                    }
+                        public void close(Result result) throws TransformerException {
+                            // Free information from the state
+                            final String outputName = getProcessorOutputSchemeInputName(result.getSystemId());
+                            if (outputName == null) {
+                                // Regular URL
+                                if (result instanceof StreamResult) {
+                                    final OutputStream os = ((StreamResult) result).getOutputStream();
+                                    if (os != null)
+                                        try {
+                                            os.close();
+                                        } catch (IOException e) {
+                                            throw new OXFException(e);
+                                        }
+                                }
+                            } else {
+                                // output:*
+                                if (outputName.equals(state.firstOutputName)) {
+                                    state.firstOutputName = null;
+                                    state.firstXMLReceiver = null;
                                 }
                             }
-                        });
-                    }
+                        }
+                    };
+                    setOutputURIResolver(transformerHandler, outputURIResolver);
 
                     final Transformer transformer = transformerHandler.getTransformer();
                     final TransformerURIResolver transformerURIResolver = new TransformerURIResolver(XSLTTransformer.this, pipelineContext, INPUT_DATA, XMLParsing.ParserConfiguration.PLAIN);
@@ -457,7 +466,36 @@ public abstract class XSLTTransformer extends ProcessorImpl {
 
                     // Execute transformation
                     try {
-                        if (XSLTTransformer.this.getConnectedInputs().size() > 4) {
+                        if (templatesInfo.streamRecords && XSLTTransformer.this.getConnectedInputs().size() <= 4) {
+                            // The stylesheet declares that it handles each record independently: transform records one
+                            // at a time as they are read, so that memory doesn't depend on the size of the input.
+                            readInputAsSAX(pipelineContext, INPUT_DATA, new RecordsTransformerXMLReceiver(outputReceiver, new RecordsTransformerXMLReceiver.TransformerHandlerFactory() {
+                                public TransformerHandler createTransformerHandler(XMLReceiver recordReceiver) {
+                                    try {
+                                        final TransformerHandler recordTransformerHandler = TransformerUtils.getTransformerHandler(templatesInfo.templates, templatesInfo.transformerClass, attributes, configuration);
+                                        // Each record would run xsl:result-document again, overwriting or dropping the
+                                        // documents produced for the previous records
+                                        setOutputURIResolver(recordTransformerHandler, new OutputURIResolver() {
+                                            public Result resolve(String href, String base) throws TransformerException {
+                                                throw new TransformerException("xsl:result-document is not supported with oxf:stream-records=\"true\": " + href);
+                                            }
+
+                                            public void close(Result result) {}
+                                        });
+                                        final Transformer recordTransformer = recordTransformerHandler.getTransformer();
+                                        recordTransformer.setURIResolver(transformerURIResolver);
+                                        recordTransformer.setErrorListener(errorListener);
+
+                                        final SAXResult recordResult = new SAXResult(recordReceiver);
+                                        recordResult.setLexicalHandler(recordReceiver);
+                                        recordTransformerHandler.setResult(recordResult);
+                                        return recordTransformerHandler;
+                                    } catch (TransformerException e) {
+                                        throw new OXFException(e);
+                                    }
+                                }
+                            }));
+                        } else if (XSLTTransformer.this.getConnectedInputs().size() > 4) {
                             // The default inputs are data, config, transformer, and attributes. When other inputs
                             // (i.e. more than 4) are connected, they can be read with the doc() function in XSLT.
                             // Reading those documents might happen before the whole input document is read, which
@@ -592,13 +630,17 @@ public abstract class XSLTTransformer extends ProcessorImpl {
                     final URIReference uriReference = i.next();
                     final URL url = URLFactory.createURL(uriReference.context, uriReference.spec);
                     keys.add(new InternalCacheKey(XSLTTransformer.this, "xsltURLReference", url.toExternalForm()));
-                    final Processor urlGenerator = new URLGenerator(url);
-                    validities.add(((ProcessorOutputImpl) urlGenerator.createOutput(OUTPUT_DATA)).getValidity(context));//FIXME: can we do better? See URL generator.
                 }
+                validities.addAll(getStylesheetReferencesValidities(context, uriReferences));
 
                 return new KeyValidity(new InternalCacheKey(XSLTTransformer.this, keys), validities);
             }
 
+            private void setOutputURIResolver(TransformerHandler transformerHandler, OutputURIResolver outputURIResolver) {
+                if (transformerHandler instanceof TransformerHandlerImpl)
+                    ((Controller) ((TransformerHandlerImpl) transformerHandler).getTransformer()).setOutputURIResolver(outputURIResolver);
+            }
+
             // Create a Saxon Configuration which adds the Orbeon pipeline function library
             private Configuration createXSLTConfiguration() {
                 final Configuration newConfiguration = XPath.newConfiguration();
@@ -613,6 +655,18 @@ public abstract class XSLTTransformer extends ProcessorImpl {
                 return newConfiguration;
             }
 
+            private void updateCache(PipelineContext pipelineContext, URIReferences uriReferences, TemplatesInfo templatesInfo) {
+                // Put in cache: configKey -> uriReferences
+                final KeyValidity configKeyValidity = getInputKeyValidity(pipelineContext, INPUT_CONFIG);
+                if (configKeyValidity != null)
+                    ObjectCache.instance().add(configKeyValidity.key, configKeyValidity.validity, uriReferences);
+
+                // Put in cache: (configKey, uriReferences.stylesheetReferences) -> transformer
+                final KeyValidity stylesheetKeyValidity = createStyleSheetKeyValidity(pipelineContext, configKeyValidity, uriReferences);
+                if (stylesheetKeyValidity != null)
+                    ObjectCache.instance().add(stylesheetKeyValidity.key, stylesheetKeyValidity.validity, templatesInfo);
+            }
+
             /**
              * Reads the input and creates the JAXP Templates object (wrapped in a Transformer object). While reading
              * the input, figures out the direct dependencies on other files (URIReferences object), and stores these
@@ -625,18 +679,31 @@ public abstract class XSLTTransformer extends ProcessorImpl {
                 StringErrorListener errorListener = new StringErrorListener(logger);
                 final StylesheetForwardingXMLReceiver topStylesheetXMLReceiver = new StylesheetForwardingXMLReceiver();
                 try {
+                    // Read the stylesheet once, computing its digest and gathering its references
+                    final SAXStore stylesheetStore = new SAXStore();
+                    final DigestContentHandler digestContentHandler = new DigestContentHandler();
+                    readInputAsSAX(pipelineContext, INPUT_CONFIG, new TeeXMLReceiver(topStylesheetXMLReceiver, stylesheetStore, digestContentHandler));
+
+                    // Try to find an identical stylesheet already compiled, possibly by another pipeline
+                    final CacheKey compiledStylesheetKey = CompiledStylesheetCache.createKey(NumberUtils.toHexString(digestContentHandler.getResult()), topStylesheetXMLReceiver.getSystemId(), transformerClass, attributes);
+                    final CompiledStylesheet compiledStylesheet = CompiledStylesheetCache.find(pipelineContext, compiledStylesheetKey);
+                    if (compiledStylesheet != null) {
+                        updateCache(pipelineContext, compiledStylesheet.uriReferences, compiledStylesheet.templatesInfo);
+                        return compiledStylesheet.templatesInfo;
+                    }
+
                     // Create transformer
                     final TemplatesInfo templatesInfo = new TemplatesInfo();
                     final List<StylesheetForwardingXMLReceiver> xsltXMLReceivers = new ArrayList<StylesheetForwardingXMLReceiver>();
                     {
-                        // Create SAXSource adding our forwarding receiver
+                        // Create SAXSource from the stylesheet we already read
                         final SAXSource stylesheetSAXSource;
                         {
                             xsltXMLReceivers.add(topStylesheetXMLReceiver);
-                            final XMLReader xmlReader = new ProcessorOutputXMLReader(pipelineContext, getInputByName(INPUT_CONFIG).getOutput()) {
+                            final XMLReader xmlReader = new XMLReaderToReceiver() {
                                 @Override
-                                public void setContentHandler(ContentHandler handler) {
-                                    super.setContentHandler(new TeeXMLReceiver(Arrays.asList(topStylesheetXMLReceiver, new SimpleForwardingXMLReceiver(handler))));
+                                public void parse(String systemId) throws SAXException {
+                                    stylesheetStore.replay(createXMLReceiver());
                                 }
                             };
                             stylesheetSAXSource = new SAXSource(xmlReader, new InputSource());
@@ -656,6 +723,7 @@ public abstract class XSLTTransformer extends ProcessorImpl {
                         uriResolver.destroy();
                         templatesInfo.transformerClass = transformerClass;
                         templatesInfo.systemId = topStylesheetXMLReceiver.getSystemId();
+                        templatesInfo.streamRecords = topStylesheetXMLReceiver.isStreamRecords();
                     }
 
                     // Update cache
@@ -671,15 +739,13 @@ public abstract class XSLTTransformer extends ProcessorImpl {
                                     (xsltXMLReceiver.getURIReferences().documentReferences);
                         }
 
-                        // Put in cache: configKey -> uriReferences
-                        final KeyValidity configKeyValidity = getInputKeyValidity(pipelineContext, INPUT_CONFIG);
-                        if (configKeyValidity != null)
-                            ObjectCache.instance().add(configKeyValidity.key, configKeyValidity.validity, uriReferences);
+                        updateCache(pipelineContext, uriReferences, templatesInfo);
 
-                        // Put in cache: (configKey, uriReferences.stylesheetReferences) -> transformer
-                        final KeyValidity stylesheetKeyValidity = createStyleSheetKeyValidity(pipelineContext, configKeyValidity, uriReferences);
-                        if (stylesheetKeyValidity != null)
-                            ObjectCache.instance().add(stylesheetKeyValidity.key, stylesheetKeyValidity.validity, templatesInfo);
+                        // Put in compiled stylesheet cache: (digest, transformer class, attributes) -> transformer
+                        final String systemId = topStylesheetXMLReceiver.getSystemId();
+                        final String pinnedStylesheets = getPropertySet().getString(PINNED_STYLESHEETS_PROPERTY, "");
+                        final boolean isPinned = systemId != null && Arrays.asList(pinnedStylesheets.split("\\s+")).contains(systemId);
+                        CompiledStylesheetCache.add(pipelineContext, compiledStylesheetKey, new CompiledStylesheet(templatesInfo, uriReferences), isPinned);
                     }
 
                     return templatesInfo;
@@ -732,6 +798,16 @@ public abstract class XSLTTransformer extends ProcessorImpl {
         return output;
     }
 
+    private static List<Object> getStylesheetReferencesValidities(PipelineContext context, URIReferences uriReferences) {
+        final List<Object> validities = new ArrayList<Object>();
+        for (final URIReference uriReference : uriReferences.stylesheetReferences) {
+            final URL url = URLFactory.createURL(uriReference.context, uriReference.spec);
+            final Processor urlGenerator = new URLGenerator(url);
+            validities.add(((ProcessorOutputImpl) urlGenerator.createOutput(OUTPUT_DATA)).getValidity(context));//FIXME: can we do better? See URL generator.
+        }
+        return validities;
+    }
+
     private StringBuilderWriter createErrorStringBuilderWriter(TransformerHandler transformerHandler) throws Exception {
         final String transformerClassName = transformerHandler.getTransformer().getClass().getName();
 
@@ -866,6 +942,8 @@ public abstract class XSLTTransformer extends ProcessorImpl {
         private Locator locator;
         private URIReferences uriReferences = new URIReferences();
         private String systemId;
+        private boolean isRootElement = true;
+        private boolean streamRecords;
         private final NamespaceContext namespaceContext = new NamespaceContext();
 
         public StylesheetForwardingXMLReceiver() {
@@ -881,6 +959,10 @@ public abstract class XSLTTransformer extends ProcessorImpl {
             return systemId;
         }
 
+        public boolean isStreamRecords() {
+            return streamRecords;
+        }
+
         @Override
         public void setDocumentLocator(Locator locator) {
             this.locator = locator;
@@ -900,6 +982,12 @@ public abstract class XSLTTransformer extends ProcessorImpl {
             if (systemId == null && locator != null)
                 systemId = locator.getSystemId();
 
+            // Check whether the stylesheet declares it can be run on one record at a time
+            if (isRootElement) {
+                isRootElement = false;
+                streamRecords = "true".equals(attributes.getValue(XMLConstants.OXF_PROCESSORS_URI, STREAM_RECORDS_ATTRIBUTE));
+            }
+
             // Handle possible include
             if (XSLT_URI.equals(uri)) {
 
@@ -1004,6 +1092,69 @@ public abstract class XSLTTransformer extends ProcessorImpl {
         public Templates templates;
         public String transformerClass;
         public String systemId;
+        public boolean streamRecords;
+    }
+
+    private static class CompiledStylesheet {
+        public final TemplatesInfo templatesInfo;
+        public final URIReferences uriReferences;
+
+        public CompiledStylesheet(TemplatesInfo templatesInfo, URIReferences uriReferences) {
+            this.templatesInfo = templatesInfo;
+            this.uriReferences = uriReferences;
+        }
+    }
+
+    /**
+     * Cache of compiled stylesheets by content digest and location, so that the same stylesheet is compiled only once
+     * even when it is used by several pipelines, or reaches the transformer with different input wiring.
+     *
+     * Entries are valid as long as the stylesheets they include or import haven't changed. Pinned entries are stored
+     * in a cache which isn't bounded by default.
+     */
+    private static class CompiledStylesheetCache {
+
+        private static final String CACHE_NAME = "cache.xslt.compiled";
+        private static final int CACHE_DEFAULT_SIZE = 200;
+        private static final String PINNED_CACHE_NAME = "cache.xslt.compiled.pinned";
+
+        // The compiled stylesheet's static base URI, and the URI references recorded while compiling it, depend on the
+        // location of the stylesheet, so that location is part of the key
+        public static CacheKey createKey(String digest, String systemId, String transformerClass, Map<String, Boolean> attributes) {
+            return new InternalCacheKey("xsltCompiledStylesheet", digest + '|' + systemId + '|' + transformerClass + '|' + new TreeMap<String, Boolean>(attributes));
+        }
+
+        public static CompiledStylesheet find(PipelineContext context, CacheKey key) {
+            for (final Cache cache : getCaches()) {
+                final CacheEntry entry = cache.findAny(key);
+                if (entry != null) {
+                    final CompiledStylesheet compiledStylesheet = (CompiledStylesheet) entry.cacheable;
+                    final CompiledStylesheet validCompiledStylesheet =
+                        (CompiledStylesheet) cache.findValid(key, getStylesheetReferencesValidities(context, compiledStylesheet.uriReferences));
+                    // An invalid entry in the pinned cache doesn't mean there isn't a valid one in the regular cache
+                    if (validCompiledStylesheet != null)
+                        return validCompiledStylesheet;
+                }
+            }
+            return null;
+        }
+
+        public static void add(PipelineContext context, CacheKey key, CompiledStylesheet compiledStylesheet, boolean isPinned) {
+            final Cache cache = isPinned ? getPinnedCache() : getCache();
+            cache.add(key, getStylesheetReferencesValidities(context, compiledStylesheet.uriReferences), compiledStylesheet);
+        }
+
+        private static List<Cache> getCaches() {
+            return Arrays.asList(getPinnedCache(), getCache());
+        }
+
+        private static Cache getCache() {
+            return ObjectCache.instance(CACHE_NAME, CACHE_DEFAULT_SIZE);
+        }
+
+        private static Cache getPinnedCache() {
+            return ObjectCache.instance(PINNED_CACHE_NAME, Integer.MAX_VALUE);
+        }
     }
 
     private static class XSLTTransformerState {
@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.resources;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.util.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Index of last modified timestamps for the files under a sandbox directory.
+ *
+ * Timestamps are obtained from the filesystem the first time a file is asked for, and then kept until the
+ * filesystem watch service reports a change to that file or to one of its parent directories. This avoids a
+ * stat() call per validity check on deployments with many resources.
+ *
+ * Watch events are delivered asynchronously, and on some platforms with a polling delay of several seconds. Writes
+ * done through the resource manager itself invalidate the index directly.
+ *
+ * Timestamps are grouped by directory, so that an event only touches the entries of the affected directory, and of
+ * its subdirectories if the event is about a directory.
+ */
+public class FilesystemLastModifiedIndex {
+
+    private static Logger logger = LoggerFactory.createLogger(FilesystemLastModifiedIndex.class);
+
+    // Value stored for files which don't exist or can't be read
+    private static final Long NOT_FOUND = new Long(-1);
+
+    private final Path rootPath;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<WatchKey, Path>();
+    private final Map<String, DirectoryEntries> directories = new ConcurrentHashMap<String, DirectoryEntries>();
+
+    // Indexes currently open, for statistics
+    private static final Set<FilesystemLastModifiedIndex> openIndexes =
+        Collections.newSetFromMap(new ConcurrentHashMap<FilesystemLastModifiedIndex, Boolean>());
+
+    private static class DirectoryEntries {
+        final Map<String, Long> lastModifiedByName = new ConcurrentHashMap<String, Long>();
+        final Set<String> subdirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    // Incremented upon each invalidation, so that a timestamp read concurrently with a change is not kept
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong statCalls = new AtomicLong();
+    private final AtomicLong statCallsAvoided = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Create an index watching the given directory and all its subdirectories.
+     *
+     * @throws IOException if the watch service cannot be created or the directory cannot be registered
+     */
+    public FilesystemLastModifiedIndex(File rootDirectory) throws IOException {
+        this.rootPath = rootDirectory.toPath().toAbsolutePath().normalize();
+        this.watchService = rootPath.getFileSystem().newWatchService();
+
+        registerRecursively(rootPath.toFile());
+
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                processEvents();
+            }
+        }, "Orbeon resources watcher: " + rootPath);
+        thread.setDaemon(true);
+        thread.start();
+
+        openIndexes.add(this);
+
+        if (logger.isDebugEnabled())
+            logger.debug("watching " + watchedDirectories.size() + " directories under " + rootPath);
+    }
+
+    /**
+     * Return the last modified timestamp of the given file, or -1 if the file doesn't exist or can't be read.
+     */
+    public long lastModified(File file) {
+        final Path path = file.toPath().toAbsolutePath().normalize();
+        if (closed || ! path.startsWith(rootPath))
+            return stat(file);
+
+        final Path parent = path.getParent();
+        if (parent == null || ! parent.startsWith(rootPath))
+            return stat(file);
+
+        final String name = path.getFileName().toString();
+        final DirectoryEntries existingEntries = directories.get(parent.toString());
+        final Long cached = existingEntries != null ? existingEntries.lastModifiedByName.get(name) : null;
+        if (cached != null) {
+            statCallsAvoided.incrementAndGet();
+            return cached;
+        }
+
+        final long generationBefore = generation.get();
+        final long lastModified = stat(file);
+        final DirectoryEntries entries = getOrCreateDirectory(parent);
+        entries.lastModifiedByName.put(name, lastModified == -1 ? NOT_FOUND : new Long(lastModified));
+        // If an event came in while we were reading the file, don't trust what we just read
+        if (generation.get() != generationBefore)
+            entries.lastModifiedByName.remove(name);
+
+        return lastModified;
+    }
+
+    /**
+     * Forget what is known about the given file, e.g. after writing to it.
+     */
+    public void invalidate(File file) {
+        invalidate(file.toPath().toAbsolutePath().normalize());
+    }
+
+    /**
+     * Number of timestamps read from the filesystem.
+     */
+    public long getStatCalls() {
+        return statCalls.get();
+    }
+
+    /**
+     * Number of timestamps served from the index instead of the filesystem.
+     */
+    public long getStatCallsAvoided() {
+        return statCallsAvoided.get();
+    }
+
+    /**
+     * Number of timestamps currently in the index.
+     */
+    public int getCurrentSize() {
+        int size = 0;
+        for (final DirectoryEntries entries : directories.values())
+            size += entries.lastModifiedByName.size();
+        return size;
+    }
+
+    public File getRootDirectory() {
+        return rootPath.toFile();
+    }
+
+    /**
+     * Indexes currently open.
+     */
+    public static Collection<FilesystemLastModifiedIndex> getOpenIndexes() {
+        return new ArrayList<FilesystemLastModifiedIndex>(openIndexes);
+    }
+
+    /**
+     * Stop watching the directory, which also stops the watcher thread. Timestamps are then read from the filesystem.
+     */
+    public void close() {
+        closed = true;
+        openIndexes.remove(this);
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("error closing watch service for " + rootPath, e);
+        }
+        directories.clear();
+    }
+
+    private long stat(File file) {
+        statCalls.incrementAndGet();
+        return file.canRead() ? file.lastModified() : -1;
+    }
+
+    private DirectoryEntries getOrCreateDirectory(Path directory) {
+        final String directoryString = directory.toString();
+        final DirectoryEntries existingEntries = directories.get(directoryString);
+        if (existingEntries != null)
+            return existingEntries;
+
+        final DirectoryEntries newEntries = new DirectoryEntries();
+        directories.put(directoryString, newEntries);
+        // Link to the parent, so that invalidating a directory can find its subdirectories
+        if (! directory.equals(rootPath))
+            getOrCreateDirectory(directory.getParent()).subdirectories.add(directory.getFileName().toString());
+        return newEntries;
+    }
+
+    private void invalidate(Path path) {
+        generation.incrementAndGet();
+        final Path parent = path.getParent();
+        if (parent != null) {
+            final DirectoryEntries parentEntries = directories.get(parent.toString());
+            if (parentEntries != null)
+                parentEntries.lastModifiedByName.remove(path.getFileName().toString());
+        }
+        // The path might be a directory that was removed or renamed
+        removeDirectory(path);
+    }
+
+    private void removeDirectory(Path directory) {
+        final DirectoryEntries entries = directories.remove(directory.toString());
+        if (entries != null)
+            for (final String subdirectory : entries.subdirectories)
+                removeDirectory(directory.resolve(subdirectory));
+    }
+
+    private void invalidateAll() {
+        generation.incrementAndGet();
+        directories.clear();
+    }
+
+    private void registerRecursively(File directory) throws IOException {
+        final Path path = directory.toPath();
+        final WatchKey key = path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        watchedDirectories.put(key, path);
+
+        final File[] children = directory.listFiles();
+        if (children != null)
+            for (final File child : children)
+                if (child.isDirectory())
+                    registerRecursively(child);
+    }
+
+    private void processEvents() {
+        while (! closed) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+
+            final Path directory = watchedDirectories.get(key);
+            if (directory != null) {
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        // Events were lost
+                        invalidateAll();
+                    } else {
+                        final Path path = directory.resolve((Path) event.context());
+                        invalidate(path);
+                        if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                            try {
+                                registerRecursively(path.toFile());
+                            } catch (IOException e) {
+                                // Can't watch the new directory, so stop trusting the index entirely
+                                logger.warn("unable to watch directory " + path + ", disabling last modified index", e);
+                                close();
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (! key.reset()) {
+                // Directory is no longer accessible
+                final Path removed = watchedDirectories.remove(key);
+                if (removed != null)
+                    invalidate(removed);
+            }
+        }
+    }
+}
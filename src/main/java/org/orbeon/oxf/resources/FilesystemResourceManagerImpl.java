@@ -24,13 +24,17 @@ import java.util.Map;
 /**
  * The Filesystem resource manager is able to load resources from the filesystem with a direct
  * mapping, or, if the property is specified, within a sandbox.
+ *
+ * When a sandbox is used and oxf.resources.filesystem.watch is set to true, last modified timestamps are served from
+ * an index kept up to date by the filesystem watch service instead of being read from the filesystem each time.
  */
-public class FilesystemResourceManagerImpl extends ResourceManagerBase {
+public class FilesystemResourceManagerImpl extends ResourceManagerBase implements Closeable {
 
     private static Logger logger = LoggerFactory.createLogger(FilesystemResourceManagerImpl.class);
 
     private boolean hasSandbox;
     protected File rootDirectory;
+    private FilesystemLastModifiedIndex lastModifiedIndex;
 
     public FilesystemResourceManagerImpl(Map props) throws OXFException {
         super(props);
@@ -44,6 +48,38 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
                 throw new OXFException("Root directory " + sandbox + " does not refer to a valid directory");
             hasSandbox = true;
         }
+
+        // Try to enable the last modified index
+        final String watch = (String) props.get(FilesystemResourceManagerFactory.WATCH_PROPERTY);
+        if ("true".equals(watch)) {
+            if (! hasSandbox) {
+                logger.warn("Property " + FilesystemResourceManagerFactory.WATCH_PROPERTY + " requires property "
+                        + FilesystemResourceManagerFactory.SANDBOX_DIRECTORY_PROPERTY + ", ignoring");
+            } else {
+                try {
+                    lastModifiedIndex = new FilesystemLastModifiedIndex(rootDirectory);
+                } catch (IOException e) {
+                    logger.warn("Unable to watch directory " + rootDirectory + ", reading last modified timestamps from the filesystem", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the last modified index, or null if not enabled.
+     */
+    public FilesystemLastModifiedIndex getLastModifiedIndex() {
+        return lastModifiedIndex;
+    }
+
+    /**
+     * Stop watching the filesystem, if the last modified index is enabled.
+     */
+    public void close() {
+        if (lastModifiedIndex != null) {
+            lastModifiedIndex.close();
+            lastModifiedIndex = null;
+        }
     }
 
     /**
@@ -74,9 +110,14 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
      * @return a timestamp
      */
     protected long lastModifiedImpl(String key, boolean doNotThrowResourceNotFound) {
-        File file = getFile(key);
-        if (file.canRead())
-            return file.lastModified();
+        final File file = getFile(key);
+        final long lastModified =
+            lastModifiedIndex != null
+                ? lastModifiedIndex.lastModified(file)
+                : (file.canRead() ? file.lastModified() : -1);
+
+        if (lastModified != -1)
+            return lastModified;
         else {
             if (doNotThrowResourceNotFound) return -1;
             else throw new ResourceNotFoundException(key);
@@ -107,6 +148,7 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
     public OutputStream getOutputStream(String key) {
         try {
             File file = getFile(key);
+            invalidateLastModified(file);
             // Delete file if it exists
             if (file.exists() && file.canWrite())
                 file.delete();
@@ -130,6 +172,7 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
     public Writer getWriter(String key) {
         try {
             File file = getFile(key);
+            invalidateLastModified(file);
 
             // Delete file if it exists
             if (file.exists() && file.canWrite())
@@ -148,6 +191,11 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
         }
     }
 
+    private void invalidateLastModified(File file) {
+        if (lastModifiedIndex != null)
+            lastModifiedIndex.invalidate(file);
+    }
+
     protected File getFile(String key) {
         try {
             // The key comes from a URL, and therefore needs to be decoded to be used as a file
@@ -19,6 +19,8 @@ import org.orbeon.oxf.xml.XMLParsing;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.w3c.dom.Node;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
@@ -32,7 +34,7 @@ import java.util.*;
  * This is an important feature that allows an application developer to bundle a resource, and still allow the user to
  * override it easily.
  */
-public class PriorityResourceManagerImpl implements ResourceManager {
+public class PriorityResourceManagerImpl implements ResourceManager, Closeable {
 
     private final List<ResourceManager> resourceManagers = new ArrayList<ResourceManager>();
 
@@ -84,6 +86,12 @@ public class PriorityResourceManagerImpl implements ResourceManager {
         }
     }
 
+    public void close() throws IOException {
+        for (final ResourceManager resourceManager : resourceManagers)
+            if (resourceManager instanceof Closeable)
+                ((Closeable) resourceManager).close();
+    }
+
     public Node getContentAsDOM(final String key) {
         return (Node) delegate(new Operation() {
             public Object run(ResourceManager resourceManager) {
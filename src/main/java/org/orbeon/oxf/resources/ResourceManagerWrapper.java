@@ -15,6 +15,8 @@ package org.orbeon.oxf.resources;
 
 import org.orbeon.oxf.common.OXFException;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.Map;
 
@@ -64,4 +66,19 @@ final public class ResourceManagerWrapper {
 
         return instance;
     }
+
+    /**
+     * Release resources held by the current Resource Manager, if any, e.g. when the web app is destroyed. A new
+     * instance is created upon the next call to <code>instance()</code>.
+     */
+    synchronized public static void destroy() {
+        if (instance instanceof Closeable) {
+            try {
+                ((Closeable) instance).close();
+            } catch (IOException e) {
+                throw new OXFException(e);
+            }
+        }
+        instance = null;
+    }
 }
@@ -297,6 +297,15 @@ public class XFormsProperties {
 
     public static final String LOCATION_MODE_PROPERTY = XFORMS_PROPERTY_PREFIX + "location-mode";
 
+    public static final String ASYNC_SUBMISSION_THREADS_PROPERTY = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.threads";
+    public static final int ASYNC_SUBMISSION_THREADS_DEFAULT = 16;
+
+    public static final String ASYNC_SUBMISSION_QUEUE_SIZE_PROPERTY = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.queue-size";
+    public static final int ASYNC_SUBMISSION_QUEUE_SIZE_DEFAULT = 1000;
+
+    public static final String SUBMISSION_HTTP_CACHE_PROPERTY = XFORMS_PROPERTY_PREFIX + "submission.http-cache";
+    public static final boolean SUBMISSION_HTTP_CACHE_DEFAULT = false;
+
     // == Global properties ============================================================================================
     /**
      * Return a PropertyDefinition given a property name.
@@ -387,6 +396,21 @@ public class XFormsProperties {
         return Properties.instance().getPropertySet().getInteger(XFORMS_PROPERTY_PREFIX + RETRY_DELAY_INCREMENT, ((Integer) getPropertyDefinition(RETRY_DELAY_INCREMENT).defaultValue).intValue());
     }
 
+    public static int getAsynchronousSubmissionThreads() {
+        return Properties.instance().getPropertySet().getInteger
+                (ASYNC_SUBMISSION_THREADS_PROPERTY, ASYNC_SUBMISSION_THREADS_DEFAULT);
+    }
+
+    public static int getAsynchronousSubmissionQueueSize() {
+        return Properties.instance().getPropertySet().getInteger
+                (ASYNC_SUBMISSION_QUEUE_SIZE_PROPERTY, ASYNC_SUBMISSION_QUEUE_SIZE_DEFAULT);
+    }
+
+    public static boolean isSubmissionHttpCache() {
+        return Properties.instance().getPropertySet().getBoolean
+                (SUBMISSION_HTTP_CACHE_PROPERTY, SUBMISSION_HTTP_CACHE_DEFAULT);
+    }
+
     public static boolean isKeepLocation() {
         return ! Properties.instance().getPropertySet().getString(LOCATION_MODE_PROPERTY, "none").equals("none");
     }
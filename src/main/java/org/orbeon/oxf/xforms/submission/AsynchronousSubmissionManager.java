@@ -13,18 +13,24 @@
  */
 package org.orbeon.oxf.xforms.submission;
 
+import org.apache.log4j.Logger;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.externalcontext.LocalExternalContext;
 import org.orbeon.oxf.externalcontext.AsyncRequest;
 import org.orbeon.oxf.pipeline.api.ExternalContext;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.util.IndentedLogger;
+import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.util.NetUtils;
 import org.orbeon.oxf.xforms.XFormsContainingDocument;
+import org.orbeon.oxf.xforms.XFormsProperties;
 import org.orbeon.oxf.xforms.event.XFormsEvents;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handle asynchronous submissions.
@@ -38,8 +44,51 @@ public class AsynchronousSubmissionManager {
 
     private static final String ASYNC_SUBMISSIONS_SESSION_KEY_PREFIX = "oxf.xforms.state.async-submissions.";
 
-    // Global thread pool
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private static final Logger logger = LoggerFactory.createLogger(AsynchronousSubmissionManager.class);
+
+    // Global thread pool, created on first use so that properties are available
+    private static class ThreadPoolHolder {
+        static final ExecutorService threadPool = newThreadPool(
+            XFormsProperties.getAsynchronousSubmissionThreads(),
+            XFormsProperties.getAsynchronousSubmissionQueueSize()
+        );
+    }
+
+    /**
+     * Create a pool with a fixed number of threads and a bounded queue. Asynchronous submissions block a thread for
+     * the duration of the HTTP call, so an unbounded pool would create one thread per in-flight submission. Running
+     * submissions on the calling thread instead would hold the Ajax request, and the document lock, for the duration
+     * of the call. So when all the threads are busy and the queue is full, the submission is rejected, and
+     * `addAsynchronousSubmission()` throws a `RejectedExecutionException`. Idle threads are released after a minute.
+     */
+    static ExecutorService newThreadPool(int threads, int queueSize) {
+
+        final int actualThreads = Math.max(1, threads);
+        final AtomicInteger threadCount = new AtomicInteger(0);
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            actualThreads,
+            actualThreads,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(Math.max(1, queueSize)),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Orbeon asynchronous submission " + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                    logger.warn("all " + executor.getMaximumPoolSize() + " asynchronous submission threads busy and queue full, rejecting submission");
+                    throw new RejectedExecutionException("too many asynchronous submissions in progress");
+                }
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     private final XFormsContainingDocument containingDocument;
 
@@ -89,7 +138,12 @@ public class AsynchronousSubmissionManager {
         }
     }
 
-    public void addAsynchronousSubmission(final Callable<SubmissionResult> callable) {
+    /**
+     * Run the submission in the background.
+     *
+     * @throws RejectedExecutionException if there are too many asynchronous submissions in progress
+     */
+    public void addAsynchronousSubmission(final String submissionEffectiveId, final Callable<SubmissionResult> callable) {
 
         final AsynchronousSubmissions asynchronousSubmissions = getAsynchronousSubmissions(true, getSessionKey(containingDocument));
 
@@ -117,6 +171,9 @@ public class AsynchronousSubmissionManager {
                     final SubmissionResult result = callable.call();
                     success = true;
                     return result;
+                } catch (Throwable throwable) {
+                    // Return the error so that it is handled with the other results, with xforms-submit-error
+                    return new SubmissionResult(submissionEffectiveId, throwable, null);
                 } finally {
                     pipelineContext.destroy(success);
                 }
@@ -133,8 +190,8 @@ public class AsynchronousSubmissionManager {
      * Process all pending asynchronous submissions if any. If processing of a particular submission causes new
      * asynchronous submissions to be started, also wait for the completion of those.
      *
-     * Submissions are processed in the order in which they are made available upon termination by the completion
-     * service.
+     * Submissions are processed in batches: we wait for the next completed submission, and process it together with
+     * all the other submissions completed at that time.
      */
     public void processAllAsynchronousSubmissions() {
         final AsynchronousSubmissions asynchronousSubmissions = getAsynchronousSubmissions(false, getSessionKey(containingDocument));
@@ -143,26 +200,26 @@ public class AsynchronousSubmissionManager {
             final IndentedLogger indentedLogger = containingDocument.getIndentedLogger(XFormsModelSubmission.LOGGING_CATEGORY);
             indentedLogger.startHandleOperation("", "processing all background asynchronous submissions");
             int processedCount = 0;
+            int batchCount = 0;
             try {
                 while (asynchronousSubmissions.getPendingCount() > 0) {
+                    final List<Future<SubmissionResult>> batch = new ArrayList<Future<SubmissionResult>>();
                     try {
-                        // Handle next completed task
-                        final Future<SubmissionResult> future = asynchronousSubmissions.take();
-                        final SubmissionResult result = future.get();
-
-                        // Process response by dispatching an event to the submission
-                        final XFormsModelSubmission submission = (XFormsModelSubmission) containingDocument.getObjectByEffectiveId(result.getSubmissionEffectiveId());
-                        submission.doSubmitReplace(result);
-
-                    } catch (Throwable throwable) {
-                        // Something bad happened
-                        throw new OXFException(throwable);
+                        // Wait for next completed task
+                        batch.add(asynchronousSubmissions.take());
+                    } catch (InterruptedException e) {
+                        throw new OXFException(e);
                     }
+                    asynchronousSubmissions.drainCompleted(batch);
+
+                    processBatch(batch);
 
-                    processedCount++;
+                    processedCount += batch.size();
+                    batchCount++;
                 }
             } finally {
-                indentedLogger.endHandleOperation("processed", Integer.toString(processedCount));
+                indentedLogger.endHandleOperation("processed", Integer.toString(processedCount),
+                        "batches", Integer.toString(batchCount));
             }
         }
     }
@@ -171,8 +228,7 @@ public class AsynchronousSubmissionManager {
      * Process all completed asynchronous submissions if any. This method returns as soon as no completed submission is
      * available.
      *
-     * Submissions are processed in the order in which they are made available upon termination by the completion
-     * service.
+     * Submissions are processed in batches of all the submissions completed at the time the batch is gathered.
      */
     public void processCompletedAsynchronousSubmissions() {
         final AsynchronousSubmissions asynchronousSubmissions = getAsynchronousSubmissions(false, getSessionKey(containingDocument));
@@ -181,34 +237,75 @@ public class AsynchronousSubmissionManager {
             indentedLogger.startHandleOperation("", "processing completed background asynchronous submissions");
 
             int processedCount = 0;
+            int batchCount = 0;
             try {
-                Future<SubmissionResult> future = asynchronousSubmissions.poll();
-                while (future != null) {
-                    try {
-                        // Handle next completed task
-                        final SubmissionResult result = future.get();
-
-                        // Process response by dispatching an event to the submission
-                        final XFormsModelSubmission submission = (XFormsModelSubmission) containingDocument.getObjectByEffectiveId(result.getSubmissionEffectiveId());
-                        submission.doSubmitReplace(result);
-                    } catch (Throwable throwable) {
-                        // Something bad happened
-                        throw new OXFException(throwable);
-                    }
+                List<Future<SubmissionResult>> batch = asynchronousSubmissions.drainCompleted(new ArrayList<Future<SubmissionResult>>());
+                while (! batch.isEmpty()) {
+                    processBatch(batch);
 
-                    processedCount++;
+                    processedCount += batch.size();
+                    batchCount++;
 
-                    future = asynchronousSubmissions.poll();
+                    // Processing might have started submissions which have completed since
+                    batch = asynchronousSubmissions.drainCompleted(new ArrayList<Future<SubmissionResult>>());
                 }
             } finally {
                 indentedLogger.endHandleOperation("processed", Integer.toString(processedCount),
+                        "batches", Integer.toString(batchCount),
                         "pending", Integer.toString(asynchronousSubmissions.getPendingCount()));
             }
         }
     }
 
+    /**
+     * Process a batch of completed submissions, in completion order.
+     *
+     * All the replacements are performed before any xforms-submit-done or xforms-submit-error is dispatched. Replacements
+     * only set the deferred rebuild/recalculate/revalidate/refresh flags, so the models and controls are brought up to
+     * date once for the whole batch, instead of once per submission when event handlers cause a refresh.
+     *
+     * The futures of the batch are no longer pending, so every one of them is processed even if processing another one
+     * fails, and only then is the first error thrown.
+     */
+    void processBatch(List<Future<SubmissionResult>> batch) {
+
+        final List<Runnable> submitDoneOrErrorRunnables = new ArrayList<Runnable>(batch.size());
+        final List<Throwable> throwables = new ArrayList<Throwable>();
+
+        for (final Future<SubmissionResult> future : batch) {
+            try {
+                final SubmissionResult result = future.get();
+
+                // Process response by performing the replacement on the submission
+                final XFormsModelSubmission submission = (XFormsModelSubmission) containingDocument.getObjectByEffectiveId(result.getSubmissionEffectiveId());
+                final Runnable runnable = submission.doReplace(result);
+                if (runnable != null)
+                    submitDoneOrErrorRunnables.add(runnable);
+            } catch (Throwable throwable) {
+                // Something bad happened
+                throwables.add(throwable);
+            }
+        }
+
+        // Dispatch xforms-submit-done or xforms-submit-error
+        for (final Runnable runnable : submitDoneOrErrorRunnables) {
+            try {
+                runnable.run();
+            } catch (Throwable throwable) {
+                // Something bad happened
+                throwables.add(throwable);
+            }
+        }
+
+        if (! throwables.isEmpty()) {
+            for (final Throwable throwable : throwables.subList(1, throwables.size()))
+                logger.error("error processing asynchronous submission", throwable);
+            throw new OXFException(throwables.get(0));
+        }
+    }
+
     private static class AsynchronousSubmissions {
-        private final CompletionService<SubmissionResult> completionService = new ExecutorCompletionService<SubmissionResult>(threadPool);
+        private final CompletionService<SubmissionResult> completionService = new ExecutorCompletionService<SubmissionResult>(ThreadPoolHolder.threadPool);
         private int pendingCount = 0;
 
         public Future<SubmissionResult> submit(Callable<SubmissionResult> task) {
@@ -230,6 +327,16 @@ public class AsynchronousSubmissionManager {
             return future;
         }
 
+        // Add all the currently completed tasks to the given list, without waiting
+        public List<Future<SubmissionResult>> drainCompleted(List<Future<SubmissionResult>> futures) {
+            Future<SubmissionResult> future = poll();
+            while (future != null) {
+                futures.add(future);
+                future = poll();
+            }
+            return futures;
+        }
+
         public int getPendingCount() {
             return pendingCount;
         }
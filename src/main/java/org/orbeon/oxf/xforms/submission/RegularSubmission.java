@@ -66,10 +66,25 @@ public class RegularSubmission extends BaseSubmission {
 
         final String submissionEffectiveId = submission().getEffectiveId();
 
+        // Optionally use cached responses for replace="instance" GET, honoring HTTP caching headers
+        final String httpCacheKey = SubmissionHttpCache.keyOrNull(p, p2, absoluteResolvedURL.toString(), headers);
+        final SubmissionHttpCache.CachedResponse cachedResponse =
+            httpCacheKey != null ? SubmissionHttpCache.findOrNull(httpCacheKey, detailsLogger) : null;
+
+        if (cachedResponse != null && cachedResponse.isFresh()) {
+            // The service allows using the response without revalidation, so don't connect at all
+            final ConnectionResult cachedConnectionResult = cachedResponse.connectionResult();
+            final InstanceReplacer replacer = (InstanceReplacer) submission().getReplacer(cachedConnectionResult, p);
+            replacer.setHttpCachedResult(cachedResponse.documentInfo(), p2.isReadonly);
+            return new SubmissionResult(submissionEffectiveId, replacer, cachedConnectionResult);
+        }
+
         // Prepare Connection in this thread as async submission can't access the request object
         final Connection connection =
             Connection.jApply(p.actualHttpMethod, absoluteResolvedURL,
-                p2.credentials, sp.messageBody(), headers, true, isLogBody(), detailsLogger);
+                p2.credentials, sp.messageBody(),
+                cachedResponse != null ? SubmissionHttpCache.conditionalHeaders(headers, cachedResponse) : headers,
+                true, isLogBody(), detailsLogger);
 
         // Pack external call into a Callable so it can be run:
         // - now and synchronously
@@ -103,6 +118,17 @@ public class RegularSubmission extends BaseSubmission {
                     // Update status
                     status[0] = true;
 
+                    if (cachedResponse != null && connectionResult.statusCode() == 304) {
+                        // The service confirmed that the cached response is still current
+                        connectionResult = SubmissionHttpCache.revalidated(httpCacheKey, cachedResponse, connectionResult, detailsLogger);
+
+                        final InstanceReplacer replacer = (InstanceReplacer) submission().getReplacer(connectionResult, p);
+                        replacer.setHttpCachedResult(cachedResponse.documentInfo(), p2.isReadonly);
+
+                        status[1] = true;
+                        return new SubmissionResult(submissionEffectiveId, replacer, connectionResult);
+                    }
+
                     // Obtain replacer
                     // TODO: This refers to Submission.
                     final Replacer replacer = submission().getReplacer(connectionResult, p);
@@ -112,6 +138,9 @@ public class RegularSubmission extends BaseSubmission {
 
                         // Update status
                         status[1] = true;
+
+                        if (httpCacheKey != null)
+                            SubmissionHttpCache.storeIfCacheable(httpCacheKey, connectionResult, replacer, detailsLogger);
                     }
 
                     return new SubmissionResult(submissionEffectiveId, replacer, connectionResult);
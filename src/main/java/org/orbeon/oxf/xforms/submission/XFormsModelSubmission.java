@@ -503,13 +503,7 @@ public class XFormsModelSubmission extends XFormsModelSubmissionBase implements
      */
     public void doSubmitReplace(SubmissionResult submissionResult) {
 
-        assert submissionResult != null;
-
-        // Big bag of initial runtime parameters
-        final SubmissionParameters p = new SubmissionParameters(null);
-        final SecondPassParameters p2 = new SecondPassParameters(p);
-
-        final Runnable submitDoneRunnable = handleSubmissionResult(p, p2, submissionResult, false);
+        final Runnable submitDoneRunnable = doReplace(submissionResult);
 
         // Execute submit done runnable if any
         if (submitDoneRunnable != null) {
@@ -519,6 +513,22 @@ public class XFormsModelSubmission extends XFormsModelSubmissionBase implements
         }
     }
 
+    /*
+     * Perform the replacement for the response of an asynchronous submission, and return the runnable dispatching
+     * xforms-submit-done or xforms-submit-error, if any. This allows the caller to perform several replacements before
+     * dispatching any event.
+     */
+    public Runnable doReplace(SubmissionResult submissionResult) {
+
+        assert submissionResult != null;
+
+        // Big bag of initial runtime parameters
+        final SubmissionParameters p = new SubmissionParameters(null);
+        final SecondPassParameters p2 = new SecondPassParameters(p);
+
+        return handleSubmissionResult(p, p2, submissionResult, false);
+    }
+
     private Runnable handleSubmissionResult(SubmissionParameters p, SecondPassParameters p2, final SubmissionResult submissionResult, boolean initializeXPathContext) {
 
         assert p != null;
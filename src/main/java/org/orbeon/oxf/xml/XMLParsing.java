@@ -311,6 +311,14 @@ public class XMLParsing {
         }
 
         try {
+            // XML passed in-process by an internal request: replay the events instead of parsing
+            final InputStream byteStream = inputSource.getByteStream();
+            if (byteStream instanceof SAXStoreInputStream && ! parserConfiguration.validating) {
+                final SAXStore saxStore = ((SAXStoreInputStream) byteStream).saxStore();
+                saxStore.replay(handleLexical ? xmlReceiver : new ForwardingXMLReceiver((ContentHandler) xmlReceiver));
+                return;
+            }
+
             final XMLReader xmlReader = newSAXParser(parserConfiguration).getXMLReader();
             xmlReader.setContentHandler(xmlReceiver);
             if (handleLexical)
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.cache
+
+import org.orbeon.oxf.util.ScalaUtils._
+
+/**
+ * Named object cache which keeps values for a limited time, for values which can't be validated cheaply.
+ *
+ * The time to live is passed with each call, as it usually comes from a property, and 0 or less disables caching.
+ */
+class TimeToLiveCache(cacheName: String, defaultSize: Int) {
+
+  import TimeToLiveCache._
+
+  // Value kept for the key if it hasn't expired, otherwise the value read, which is then kept for `ttl` ms
+  def getOrRead[T](key: CacheKey, ttl: Long)(read: ⇒ T): T =
+    if (ttl <= 0)
+      read
+    else {
+      val now = System.currentTimeMillis
+
+      Option(cache.findValid(key, Validity).asInstanceOf[Expiring]) filter (_.expiration > now) match {
+        case Some(expiring) ⇒
+          expiring.value.asInstanceOf[T]
+        case None ⇒
+          read |!> (value ⇒ cache.add(key, Validity, Expiring(value, now + ttl)))
+      }
+    }
+
+  def remove(key: CacheKey): Unit =
+    cache.remove(key)
+
+  // Looked up on use, so that the size property is read once properties are available
+  private def cache = ObjectCache.instance(cacheName, defaultSize)
+}
+
+private object TimeToLiveCache {
+  val Validity = java.lang.Long.valueOf(0L)
+  case class Expiring(value: Any, expiration: Long)
+}
@@ -99,11 +99,18 @@ class PageFlowControllerProcessor extends ProcessorImpl with Logging {
     def logUnauthorized(e: HttpStatusCodeException) =
       info("unauthorized", logParams :+ ("status-code" → e.code.toString))
 
+    def logUnavailable() =
+      info("service unavailable", logParams)
+
     // For services: only log and set response code
     def sendError(t: Throwable)                      = { logError(t);        ec.getResponse.setStatus(500) }
     def sendNotFound(t: Option[Throwable])           = { logNotFound(t);     ec.getResponse.setStatus(404) }
     def sendUnauthorized(e: HttpStatusCodeException) = { logUnauthorized(e); ec.getResponse.setStatus(e.code) }
 
+    // For pages and services: the server is overloaded, so don't do more work running a route, and let the client
+    // retry, after the delay set with `Retry-After` by whoever threw, if any
+    def sendUnavailable()                            = { logUnavailable();   ec.getResponse.setStatus(503) }
+
     // For pages: log and try to run routes
     def runErrorRoute(t: Throwable, log: Boolean = true) = {
 
@@ -180,6 +187,8 @@ class PageFlowControllerProcessor extends ProcessorImpl with Logging {
               if (route.isPage) runNotFoundRoute(Some(t)) else sendNotFound(Some(t))
             case e: HttpStatusCodeException if Set(401, 403)(e.code) ⇒
               if (route.isPage) runUnauthorizedRoute(e)   else sendUnauthorized(e)
+            case e: HttpStatusCodeException if e.code == 503 ⇒
+              sendUnavailable()
             case e: ResourceNotFoundException ⇒
               if (route.isPage) runNotFoundRoute(Some(t)) else sendNotFound(Some(t))
             case e ⇒
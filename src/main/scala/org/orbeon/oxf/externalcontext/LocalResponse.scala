@@ -14,10 +14,13 @@
 package org.orbeon.oxf.externalcontext
 
 import java.io._
+import javax.xml.transform.stream.StreamResult
 
 import org.orbeon.oxf.http.{EmptyInputStream, Headers, StreamedContent}
 import org.orbeon.oxf.pipeline.api.ExternalContext.Response
+import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.oxf.util.StringBuilderWriter
+import org.orbeon.oxf.xml.{SAXStore, SAXStoreInputStream, TransformerUtils, XMLReceiver}
 
 import scala.collection.mutable
 
@@ -31,6 +34,7 @@ class LocalResponse(rewriter: URLRewriter) extends Response {
   private var _stringWriter: StringBuilderWriter        = null
   private var _printWriter : PrintWriter                = null
   private var _byteStream  : LocalByteArrayOutputStream = null
+  private var _saxStore    : SAXStore                   = null
   private var _inputStream : InputStream                = null
 
   def streamedContent = {
@@ -58,7 +62,9 @@ class LocalResponse(rewriter: URLRewriter) extends Response {
           new ByteArrayInputStream(bytes, 0, bytes.length)
         } else if (_byteStream ne null) {
           new ByteArrayInputStream(_byteStream.getByteArray, 0, _byteStream.size)
-        }  else {
+        } else if (_saxStore ne null) {
+          new SAXStoreInputStream(_saxStore)
+        } else {
           EmptyInputStream
         }
     }
@@ -91,6 +97,13 @@ class LocalResponse(rewriter: URLRewriter) extends Response {
     _printWriter
   }
 
+  // XML content as SAX events, read back by the caller without serializing and parsing it (see `LocalResponse.xmlReceiver`)
+  def getXMLReceiver: XMLReceiver = {
+    if (_saxStore eq null)
+      _saxStore = new SAXStore
+    _saxStore
+  }
+
   def isCommitted = false
 
   def reset() = ()
@@ -139,6 +152,23 @@ class LocalResponse(rewriter: URLRewriter) extends Response {
     throw new UnsupportedOperationException
 }
 
+object LocalResponse {
+
+  // Receiver for an XML response body. When responding to an internal request, the events are handed over to the
+  // caller as is, otherwise they are serialized to the response's output stream.
+  //
+  // This is only used for the aggregated list of published forms, which is built as SAX events and read by Form Runner
+  // in-process. Providers such as the relational CRUD stream XML read from the database, which would have to be parsed
+  // anyway, so they keep writing bytes.
+  def xmlReceiver(response: Response): XMLReceiver =
+    response match {
+      case localResponse: LocalResponse ⇒
+        localResponse.getXMLReceiver
+      case _ ⇒
+        TransformerUtils.getIdentityTransformerHandler |!> (_.setResult(new StreamResult(response.getOutputStream)))
+    }
+}
+
 private class LocalByteArrayOutputStream extends ByteArrayOutputStream {
   def getByteArray = buf
 }
@@ -0,0 +1,484 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr
+
+import java.io.{File, FileOutputStream, OutputStreamWriter}
+import java.net.URI
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Callable, ConcurrentHashMap, Executors, Future, ThreadFactory, TimeUnit}
+import java.util.zip.{ZipEntry, ZipOutputStream}
+import java.{lang ⇒ jl, util ⇒ ju}
+
+import org.orbeon.dom.Document
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.externalcontext.ExternalContextOps._
+import org.orbeon.oxf.externalcontext.{LocalExternalContext, LocalRequest, LocalResponse, URLRewriter}
+import org.orbeon.oxf.fr.persistence.relational.Version.OrbeonFormDefinitionVersion
+import org.orbeon.oxf.fr.persistence.relational.crud.SpooledContent
+import org.orbeon.oxf.http.{GET, Headers}
+import org.orbeon.oxf.pipeline.InitUtils.withPipelineContext
+import org.orbeon.oxf.pipeline.api.ExternalContext.{Request, Response}
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.orbeon.oxf.processor.generator.DOMGenerator
+import org.orbeon.oxf.processor.pdf.PDFRenderingScheduler
+import org.orbeon.oxf.processor.pipeline.PipelineProcessor
+import org.orbeon.oxf.processor.serializer.BinaryTextXMLReceiver
+import org.orbeon.oxf.processor.{DOMSerializer, ProcessorImpl, ProcessorInputOutputInfo}
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util._
+import org.orbeon.oxf.webapp.{HttpStatusCodeException, ProcessorService}
+import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.saxon.om.DocumentInfo
+import org.orbeon.scaxon.XML
+import org.orbeon.scaxon.XML._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.util.{Failure, Success, Try}
+import scala.xml.Elem
+
+/**
+ * Produce the PDFs of many documents of the same form:
+ *
+ * - document ids are passed with `document` parameters, or in the body as `<documents><document>id</document>…`
+ * - the form definition is read and unrolled once per form version, and each PDF is produced from it by the same
+ *   pipelines as the regular PDF page, so it is identical to what users get
+ * - the data of each document is read once, to find its form version, and passed to the pipelines
+ * - by default, PDFs are streamed as a ZIP file, which also contains a `report.xml` listing documents which failed
+ * - with `output=directory`, PDFs are written to the directory configured with `oxf.fr.pdf.batch.directory`, and the
+ *   response is the report
+ *
+ * PDFs are produced by a pool of worker threads, with batch priority, so that interactive PDFs go first. As all the
+ * documents share the same unrolled form, the XForms static state is only built once, and the PDF resources and fonts
+ * come from the caches shared by all requests.
+ */
+class FormRunnerPDFBatch extends ProcessorImpl {
+
+  import FormRunnerPDFBatch._
+
+  override def start(pipelineContext: PipelineContext): Unit = {
+
+    val externalContext = NetUtils.getExternalContext
+    val request         = externalContext.getRequest
+    val response        = externalContext.getResponse
+
+    val (app, form) =
+      request.getRequestPath match {
+        case BatchPath(app, form) ⇒ (app, form)
+        case path                 ⇒ throw new OXFException(s"Unsupported path: $path")
+      }
+
+    // Document ids are also used as file names
+    val documentIds = requestedDocumentIds(request)
+    if (documentIds.isEmpty || ! (documentIds forall (DocumentIdPattern.pattern.matcher(_).matches)))
+      throw HttpStatusCodeException(400)
+
+    val output =
+      request.getFirstParamAsString("output") match {
+        case Some("directory") ⇒
+          val directory =
+            FormRunner.properties.getString(DirectoryProperty, "").trimAllToOpt getOrElse
+              (throw HttpStatusCodeException(400))
+          new DirectoryOutput(new File(new File(directory, app), form), response)
+        case Some(_) ⇒
+          throw HttpStatusCodeException(400)
+        case None ⇒
+          new ZipOutput(response)
+      }
+
+    val requestContext = ProcessorService.currentRequestContext
+    val batch          = new Batch(app, form)
+
+    val parallelism = FormRunner.properties.getInteger(ParallelismProperty, 2).toInt max 1
+    val executor    = Executors.newFixedThreadPool(parallelism, BatchThreadFactory)
+
+    val total     = documentIds.size
+    val startTime = System.currentTimeMillis
+    var done      = 0
+    var failures  = List[(String, String)]()
+
+    def addResult(documentId: String, future: Future[SpooledContent]): Unit = {
+
+      Try(future.get) match {
+        case Success(pdf) ⇒
+          try output.add(documentId, pdf)
+          finally batch.delete(pdf)
+        case Failure(t) ⇒
+          val cause = Option(t.getCause) getOrElse t
+          Logger.warn(s"failed to produce PDF for document `$documentId` of `$app/$form`: ${cause.getMessage}")
+          failures ::= documentId → (
+            cause match {
+              case HttpStatusCodeException(code, _, _) ⇒ code.toString
+              case _                                   ⇒ cause.getClass.getName
+            }
+          )
+      }
+
+      done += 1
+      if (done % ProgressInterval == 0 || done == total) {
+        val elapsed = System.currentTimeMillis - startTime
+        Logger.info(
+          s"PDF batch for `$app/$form`: $done/$total documents done, ${failures.size} failed, " +
+          s"${elapsed / 1000}s elapsed, ${elapsed / done}ms per document"
+        )
+      }
+    }
+
+    // Keep a bounded number of PDFs in flight, and write results in the order of the request
+    val inFlight    = mutable.Queue[(String, Future[SpooledContent])]()
+    val maxInFlight = parallelism * 2
+
+    def addNextResult(): Unit = {
+      val (documentId, future) = inFlight.dequeue()
+      addResult(documentId, future)
+    }
+
+    try {
+      for (documentId ← documentIds) {
+        inFlight += documentId → executor.submit(new Callable[SpooledContent] {
+          def call() =
+            requestContext {
+              PDFRenderingScheduler.withBatchPriority {
+                batch.producePDF(documentId)
+              }
+            }
+        })
+
+        while (inFlight.size > maxInFlight)
+          addNextResult()
+      }
+
+      while (inFlight.nonEmpty)
+        addNextResult()
+
+      output.finish(
+        <pdf-batch total={total.toString} generated={(total - failures.size).toString} failed={failures.size.toString}>{
+          failures.reverse map { case (documentId, reason) ⇒ <failed document-id={documentId} reason={reason}/> }
+        }</pdf-batch>
+      )
+    } finally {
+      // Workers use the external context of this request, so wait for them before returning, then delete the PDFs
+      // they produced which we didn't get to write
+      inFlight foreach (_._2.cancel(true))
+      executor.shutdown()
+      executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+      batch.deleteAll()
+    }
+  }
+}
+
+private object FormRunnerPDFBatch {
+
+  val Logger = LoggerFactory.createLogger(classOf[FormRunnerPDFBatch])
+
+  val BatchPath           = """/fr/service/([^/^.]+)/([^/^.]+)/pdf-batch""".r
+  val DocumentIdPattern   = """[0-9A-Za-z\-]+""".r
+  val DirectoryProperty   = "oxf.fr.pdf.batch.directory"
+  val ParallelismProperty = "oxf.fr.pdf.batch.parallelism"
+  val ProgressInterval    = 100
+
+  val BatchThreadFactory = new ThreadFactory {
+    private val threadNumber = new AtomicInteger(1)
+    def newThread(runnable: Runnable) =
+      new Thread(runnable, "orbeon-pdf-batch-" + threadNumber.getAndIncrement) |!> (_.setDaemon(true))
+  }
+
+  def requestedDocumentIds(request: Request): List[String] = {
+
+    val fromParameters =
+      request.parameters.get("document").toList flatMap (_.toList) collect { case s: String ⇒ s }
+
+    val fromBody =
+      if (request.getMethod == "POST" && request.getContentLength != 0)
+        TransformerUtils.readTinyTree(XPath.GlobalConfiguration, request.getInputStream, null, false, false) \\
+          "document" map (_.stringValue)
+      else
+        Nil
+
+    (fromParameters ++ fromBody) flatMap (_.trimAllToOpt)
+  }
+
+  // A pipeline of Form Runner also used by the PDF page, so that PDFs are identical to what users get
+  class FormRunnerPipeline(url: String) {
+
+    private val config = PipelineUtils.createURLGenerator(url)
+    val processor      = new PipelineProcessor |!> (PipelineUtils.connect(config, "data", _, "config"))
+
+    def reset(pipelineContext: PipelineContext): Unit = {
+      config.reset(pipelineContext)
+      processor.reset(pipelineContext)
+    }
+  }
+
+  // Same as the PDF page, which reads the form definition in `detail-model.xpl` and unrolls it in `pdf-view.xpl`
+  val ReadFormURL   = "oxf:/apps/fr/detail/read-form.xpl"
+  val UnrollFormURL = "oxf:/apps/fr/unroll-form.xpl"
+  val PrintPDFURL   = "oxf:/apps/fr/print/print-pdf.xpl"
+
+  // Request attribute with data to use instead of reading it, see `persistence-model.xml`
+  val FormDataAttribute = "fr-form-data"
+
+  // Writes the binary document on its input to a file
+  class PDFSerializer(pdf: SpooledContent) extends ProcessorImpl {
+    addInputInfo(new ProcessorInputOutputInfo(ProcessorImpl.INPUT_DATA))
+    override def start(pipelineContext: PipelineContext): Unit =
+      readInputAsSAX(pipelineContext, ProcessorImpl.INPUT_DATA, new BinaryTextXMLReceiver(pdf.outputStream))
+  }
+
+  // State shared by the workers of one batch
+  class Batch(app: String, form: String) {
+
+    // Unrolled form by form version, read on first use
+    private val unrolledForms = mutable.Map[Int, DocumentInfo]()
+
+    // PDFs produced and not yet deleted, so we can delete them if the batch stops early
+    private val pdfs = ju.Collections.newSetFromMap(new ConcurrentHashMap[SpooledContent, jl.Boolean])
+
+    def delete(pdf: SpooledContent): Unit = {
+      pdfs.remove(pdf)
+      pdf.delete()
+    }
+
+    def deleteAll(): Unit =
+      for (pdf ← pdfs.toArray(new Array[SpooledContent](0)))
+        delete(pdf)
+
+    def producePDF(documentId: String): SpooledContent = {
+
+      // Check the document can be read and find which version of the form it was created with
+      val (formVersion, data) = readDocument(documentId)
+
+      val unrolledForm =
+        unrolledForms.synchronized {
+          unrolledForms.getOrElseUpdate(formVersion, unrollForm(formVersion))
+        }
+
+      val pdf = new SpooledContent
+      pdfs.add(pdf)
+      try {
+        writePDF(unrolledForm, formVersion, documentId, data, pdf)
+        pdf
+      } catch {
+        case t: Throwable ⇒
+          delete(pdf)
+          throw t
+      }
+    }
+
+    // Same as the first steps of the PDF page: read the form definition and unroll it
+    protected def unrollForm(formVersion: Int): DocumentInfo =
+      withDocumentContext(s"/fr/$app/$form/pdf") { pipelineContext ⇒
+
+        val readForm   = new FormRunnerPipeline(ReadFormURL)
+        val unroll     = new FormRunnerPipeline(UnrollFormURL)
+        val serializer = new DOMSerializer
+
+        PipelineUtils.connect(parametersGenerator(formVersion, ""), "data",     readForm.processor, "instance")
+        PipelineUtils.connect(readForm.processor,                   "data",     unroll.processor,   "data")
+        PipelineUtils.connect(readForm.processor,                   "instance", unroll.processor,   "instance")
+        PipelineUtils.connect(unroll.processor,                     "data",     serializer,         "data")
+
+        readForm.reset(pipelineContext)
+        unroll.reset(pipelineContext)
+        serializer.runGetTinyTree(pipelineContext)
+      }
+
+    // Same as the last steps of the PDF page: produce the PDF of one document from the unrolled form
+    //
+    // The data already read is passed as the `fr-form-data` request attribute, as `print-form.xpl` does, so that the
+    // form doesn't read it again from the persistence layer.
+    protected def writePDF(
+      unrolledForm : DocumentInfo,
+      formVersion  : Int,
+      documentId   : String,
+      data         : Document,
+      pdf          : SpooledContent
+    ): Unit =
+      withDocumentContext(s"/fr/$app/$form/pdf/$documentId", Map(FormDataAttribute → data)) { pipelineContext ⇒
+
+        val printPDF   = new FormRunnerPipeline(PrintPDFURL)
+        val serializer = new PDFSerializer(pdf)
+
+        val formGenerator =
+          PipelineUtils.createDOMGenerator(
+            unrolledForm,
+            "fr-pdf-batch-form",
+            DOMGenerator.ZeroValidity,
+            DOMGenerator.DefaultContext
+          )
+
+        PipelineUtils.connect(formGenerator,                                  "data", printPDF.processor, "xforms")
+        PipelineUtils.connect(parametersGenerator(formVersion, documentId), "data", printPDF.processor, "parameters")
+        PipelineUtils.connect(printPDF.processor,                             "data", serializer,         "data")
+
+        printPDF.reset(pipelineContext)
+        serializer.reset(pipelineContext)
+        serializer.start(pipelineContext)
+      }
+
+    // Same parameters as extracted from the path of the PDF page
+    private def parametersGenerator(formVersion: Int, documentId: String) =
+      PipelineUtils.createDOMGenerator(
+        XML.elemToDom4j(
+          <request>
+            <app>{app}</app>
+            <form>{form}</form>
+            <form-version>{formVersion}</form-version>
+            <document>{documentId}</document>
+            <mode>pdf</mode>
+            <uuid/>
+          </request>
+        ),
+        "fr-pdf-batch-parameters",
+        DOMGenerator.ZeroValidity,
+        DOMGenerator.DefaultContext
+      )
+
+    // Read the data of the document, and the version of the form it was created with
+    protected def readDocument(documentId: String): (Int, Document) = {
+
+      implicit val logger = new IndentedLogger(Logger)
+
+      val request = NetUtils.getExternalContext.getRequest
+      val url     =
+        new URI(
+          URLRewriterUtils.rewriteServiceURL(
+            request,
+            s"/fr/service/persistence/crud/$app/$form/data/$documentId/data.xml",
+            URLRewriter.REWRITE_MODE_ABSOLUTE
+          )
+        )
+
+      val cxr =
+        Connection(
+          method      = GET,
+          url         = url,
+          credentials = None,
+          content     = None,
+          headers     = Connection.buildConnectionHeadersLowerIfNeeded(
+            scheme           = url.getScheme,
+            hasCredentials   = false,
+            customHeaders    = Map(),
+            headersToForward = Connection.headersToForwardFromProperty,
+            cookiesToForward = Connection.cookiesToForwardFromProperty,
+            getHeader        = Connection.getHeaderFromRequest(request)
+          ),
+          loadState   = false,
+          logBody     = false
+        ).connect(
+          saveState = false
+        )
+
+      ConnectionResult.withSuccessConnection(cxr, closeOnSuccess = true) { is ⇒
+        val formVersion = Headers.firstHeaderIgnoreCase(cxr.headers, OrbeonFormDefinitionVersion) map (_.toInt) getOrElse 1
+        formVersion → TransformerUtils.readDom4j(is, url.toString, false, false)
+      }
+    }
+  }
+
+  // Run `body` as if it was handling a GET of `path`, with its own request attributes and response, so that what the
+  // pipelines set there doesn't interfere with other documents or with the response of the batch
+  def withDocumentContext[T](path: String, attributes: Map[String, AnyRef] = Map.empty)(body: PipelineContext ⇒ T): T = {
+
+    val incomingExternalContext = NetUtils.getExternalContext
+    val incomingRequest         = incomingExternalContext.getRequest
+
+    // Keep the headers of the batch request, such as cookies, which requests made by the form might forward
+    val headers =
+      incomingRequest.getHeaderValuesMap.asScala.toMap collect {
+        case (name, values) if name != Headers.ContentLengthLower && name != Headers.ContentTypeLower ⇒
+          name → values.toList
+      }
+
+    val request =
+      new LocalRequest(
+        incomingRequest         = incomingRequest,
+        contextPath             = incomingRequest.getContextPath,
+        pathQuery               = path,
+        method                  = GET,
+        headersMaybeCapitalized = headers,
+        content                 = None
+      )
+
+    request.getAttributesMap.putAll(attributes.asJava)
+
+    val response = new LocalResponse(incomingExternalContext.getResponse: URLRewriter)
+
+    withPipelineContext { pipelineContext ⇒
+      pipelineContext.setAttribute(
+        PipelineContext.EXTERNAL_CONTEXT,
+        new LocalExternalContext(incomingExternalContext.getWebAppContext, request, response)
+      )
+      val result = body(pipelineContext)
+      if (! NetUtils.isSuccessCode(response.statusCode))
+        throw HttpStatusCodeException(response.statusCode)
+      result
+    }
+  }
+
+  trait Output {
+    def add(documentId: String, pdf: SpooledContent): Unit
+    def finish(report: Elem): Unit
+  }
+
+  class ZipOutput(response: Response) extends Output {
+
+    response.setContentType("application/zip")
+    private val zip = new ZipOutputStream(response.getOutputStream)
+
+    def add(documentId: String, pdf: SpooledContent): Unit = {
+      zip.putNextEntry(new ZipEntry(documentId + ".pdf"))
+      useAndClose(pdf.inputStream)(NetUtils.copyStream(_, zip))
+      zip.closeEntry()
+    }
+
+    def finish(report: Elem): Unit = {
+      zip.putNextEntry(new ZipEntry("report.xml"))
+      val writer = new OutputStreamWriter(zip, "utf-8")
+      writer.write(report.toString)
+      writer.flush()
+      zip.closeEntry()
+      zip.close()
+    }
+  }
+
+  class DirectoryOutput(directory: File, response: Response) extends Output {
+
+    directory.mkdirs()
+
+    // Write to a temporary file first, so that readers of the directory never see a partial PDF
+    def add(documentId: String, pdf: SpooledContent): Unit = {
+      val file     = new File(directory, documentId + ".pdf")
+      val tempFile = new File(directory, documentId + ".pdf.tmp")
+      try {
+        useAndClose(pdf.inputStream) { is ⇒
+          useAndClose(new FileOutputStream(tempFile)) { os ⇒
+            NetUtils.copyStream(is, os)
+          }
+        }
+        if (! tempFile.renameTo(file)) {
+          file.delete()
+          if (! tempFile.renameTo(file))
+            throw new OXFException(s"could not write `$file`")
+        }
+      } finally
+        tempFile.delete()
+    }
+
+    def finish(report: Elem): Unit = {
+      response.setContentType("application/xml")
+      useAndClose(new OutputStreamWriter(response.getOutputStream, "utf-8"))(_.write(report.toString))
+    }
+  }
+}
@@ -14,10 +14,15 @@
 package org.orbeon.oxf.fr
 
 
+import java.io.InterruptedIOException
 import java.net.URI
-import javax.xml.transform.stream.StreamResult
+import java.util.concurrent._
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 
+import org.orbeon.errorified.Exceptions
+import org.orbeon.oxf.cache.{InternalCacheKey, TimeToLiveCache}
 import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.externalcontext.LocalResponse
 import org.orbeon.oxf.externalcontext.URLRewriter._
 import org.orbeon.oxf.fr.persistence.relational.Provider
 import org.orbeon.oxf.fr.persistence.relational.index.Index
@@ -31,11 +36,14 @@ import org.orbeon.oxf.processor.generator.RequestGenerator
 import org.orbeon.oxf.properties.Properties
 import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.oxf.util._
-import org.orbeon.oxf.xforms.action.XFormsAPI
-import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.oxf.webapp.ProcessorService
+import org.orbeon.oxf.xml.XMLReceiverSupport._
+import org.orbeon.oxf.xml.{EmbeddedDocumentXMLReceiver, TransformerUtils}
+import org.orbeon.saxon.om.DocumentInfo
 import org.orbeon.scaxon.XML._
 
 import scala.collection.JavaConverters._
+import scala.util.{Failure, Success, Try}
 
 /**
  * The persistence proxy processor:
@@ -46,13 +54,18 @@ import scala.collection.JavaConverters._
  */
 class FormRunnerPersistenceProxy extends ProcessorImpl {
 
+  import FormRunnerPersistenceProxy._
+
   private val FormPath                   = """/fr/service/persistence(/crud/([^/]+)/([^/]+)/form/([^/]+))""".r
   private val DataPath                   = """/fr/service/persistence(/crud/([^/]+)/([^/]+)/(data|draft)/([^/]+)/([^/]+))""".r
   private val DataCollectionPath         = """/fr/service/persistence(/crud/([^/]+)/([^/]+)/data/)""".r
   private val SearchPath                 = """/fr/service/persistence(/search/([^/]+)/([^/]+))""".r
+  private val BulkPath                   = """/fr/service/persistence(/bulk/([^/]+)/([^/]+))""".r
   private val PublishedFormsMetadataPath = """/fr/service/persistence/form(/([^/]+)(?:/([^/]+))?)?""".r
   private val ReindexPath                =   "/fr/service/persistence/reindex"
 
+  private val FormsTimeoutProperty       = "oxf.fr.persistence.proxy.form-list-timeout"
+
   // Start the processor
   override def start(pipelineContext: PipelineContext): Unit = {
     val ec = NetUtils.getExternalContext
@@ -63,10 +76,17 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
   def proxyRequest(request: Request, response: Response): Unit = {
     val incomingPath = request.getRequestPath
     incomingPath match {
-      case FormPath(path, app, form, _)                ⇒ proxyRequest(request, response, app, form, "form", path)
+      case FormPath(path, app, form, _)                ⇒
+        try proxyRequest(request, response, app, form, "form", path)
+        finally
+          // Publishing or removing a form changes the list of forms, so forget them once the change is done, and not
+          // before, or a concurrent request could cache the list from before the change
+          if (request.getMethod != "GET")
+            FormsCache.invalidate()
       case DataPath(path, app, form, _, _, _)          ⇒ proxyRequest(request, response, app, form, "data", path)
       case DataCollectionPath(path, app, form)         ⇒ proxyRequest(request, response, app, form, "data", path)
       case SearchPath(path, app, form)                 ⇒ proxyRequest(request, response, app, form, "data", path)
+      case BulkPath(path, app, form)                   ⇒ proxyRequest(request, response, app, form, "data", path)
       case PublishedFormsMetadataPath(path, app, form) ⇒ proxyPublishedFormsMetadata(request, response, Option(app), Option(form), path)
       case ReindexPath                                 ⇒ proxyReindex(request, response)
       case _                                           ⇒ throw new OXFException(s"Unsupported path: $incomingPath")
@@ -180,6 +200,10 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
   /**
    * Proxies the request to every configured persistence layer to get the list of the forms, and aggregates the
    * results. So the response is not simply proxied, unlike for other persistence layer calls.
+   *
+   * Persistence layers are called concurrently, and a persistence layer which doesn't answer in time is left out
+   * so that one slow persistence layer doesn't hold the home page. Their lists of forms are kept for a short time,
+   * as they only change when forms are published.
    */
   private def proxyPublishedFormsMetadata(
     request  : Request,
@@ -203,29 +227,48 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
 
     val parameters = NetUtils.encodeQueryString(request.getParameterMap)
 
-    val allFormElements =
-      for {
-        provider           ← providers
-        (baseURI, headers) = FormRunner.getPersistenceURLHeadersFromProvider(provider)
-      } yield {
-        // Read all the forms for the current service
-        val serviceURI = NetUtils.appendQueryString(baseURI + "/form" + Option(path).getOrElse(""), parameters)
-        val cxr        = proxyEstablishConnection(request, serviceURI, headers)
-
-        ConnectionResult.withSuccessConnection(cxr, closeOnSuccess = true) { is ⇒
-          val forms = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, serviceURI, false, false)
-          forms \\ "forms" \\ "form"
-        }
+    // Read all the forms for the given provider
+    def readForms(provider: String): DocumentInfo = {
+      val (baseURI, headers) = FormRunner.getPersistenceURLHeadersFromProvider(provider)
+      val serviceURI = NetUtils.appendQueryString(baseURI + "/form" + Option(path).getOrElse(""), parameters)
+      val cxr        = proxyEstablishConnection(request, serviceURI, headers)
+
+      ConnectionResult.withSuccessConnection(cxr, closeOnSuccess = true) { is ⇒
+        TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, serviceURI, false, false)
       }
+    }
+
+    def readFormsCached(provider: String): DocumentInfo =
+      FormsCache.cached(provider, Option(path).getOrElse("") + '?' + parameters)(readForms(provider))
 
-    val filteredFormElements = FormRunner.filterFormsAndAnnotateWithOperations(allFormElements.flatten)
+    val allForms =
+      providers match {
+        case List(provider) ⇒
+          // Nothing to do concurrently
+          List(readFormsCached(provider))
+        case _ ⇒
+          val requestContext = ProcessorService.currentRequestContext
+          val timeout        = FormRunner.properties.getInteger(FormsTimeoutProperty, 10000).toInt
+
+          readConcurrently(providers, timeout) { provider ⇒
+            requestContext {
+              readFormsCached(provider)
+            }
+          }
+      }
 
-    // Aggregate and serialize
-    val documentElement = elementInfo("forms")
-    XFormsAPI.insert(into = documentElement, origin = filteredFormElements)
+    val filteredFormElements = FormRunner.filterFormsAndAnnotateWithOperations(allForms flatMap (_ \\ "forms" \\ "form"))
 
+    // Aggregate and serialize, one form at a time
     response.setContentType("application/xml")
-    TransformerUtils.getXMLIdentityTransformer.transform(documentElement, new StreamResult(response.getOutputStream))
+
+    implicit val receiver = LocalResponse.xmlReceiver(response)
+
+    withDocument {
+      withElement("forms") {
+        filteredFormElements foreach (TransformerUtils.writeTinyTree(_, new EmbeddedDocumentXMLReceiver(receiver)))
+      }
+    }
   }
 
   private def proxyReindex(
@@ -251,4 +294,83 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
       .distinct
       .filter(FormRunner.isActiveProvider)
   }
-}
\ No newline at end of file
+}
+
+private object FormRunnerPersistenceProxy {
+
+  val FormsMaxThreads = 8
+
+  // When all the threads are busy, the request thread reads the forms itself
+  val FormsExecutor =
+    new ThreadPoolExecutor(
+      0,
+      FormsMaxThreads,
+      60L,
+      TimeUnit.SECONDS,
+      new SynchronousQueue[Runnable],
+      new ThreadFactory {
+        private val threadNumber = new AtomicInteger(1)
+        def newThread(runnable: Runnable) =
+          new Thread(runnable, "orbeon-persistence-proxy-" + threadNumber.getAndIncrement) |!> (_.setDaemon(true))
+      },
+      new ThreadPoolExecutor.CallerRunsPolicy
+    )
+
+  // Call `read` for each provider, concurrently, leaving out the providers which time out
+  //
+  // The timeout applies to the connection to each persistence layer, so that a worker stuck on a slow persistence
+  // layer fails on its own. We must wait for all workers anyway, as they use the external context of the request.
+  // This is also why there is no deadline on the workers themselves: a persistence layer called in-process, without
+  // a socket, isn't subject to the timeout, and is waited for.
+  def readConcurrently[T](providers: List[String], timeout: Int)(read: String ⇒ T): List[T] = {
+
+    val futures =
+      for (provider ← providers)
+      yield
+        provider → FormsExecutor.submit(new Callable[T] {
+          def call() =
+            ApacheHttpClient.withSocketTimeout(timeout) {
+              read(provider)
+            }
+        })
+
+    // Wait for all the workers before failing
+    val results = futures map { case (provider, future) ⇒ provider → Try(future.get) }
+
+    results flatMap {
+      case (_, Success(forms)) ⇒
+        Some(forms)
+      case (provider, Failure(e: ExecutionException)) if isTimeout(e.getCause) ⇒
+        ProcessorImpl.logger.warn(s"persistence provider `$provider` didn't return its forms within ${timeout}ms")
+        None
+      case (_, Failure(e: ExecutionException)) ⇒
+        throw e.getCause
+      case (_, Failure(t)) ⇒
+        throw t
+    }
+  }
+
+  // Connection and read failures reach us wrapped, e.g. in a `ValidationException` or an `OXFException`
+  def isTimeout(t: Throwable) =
+    Exceptions.causesIterator(t) exists (_.isInstanceOf[InterruptedIOException])
+
+  // Lists of forms returned by each provider
+  object FormsCache {
+
+    private val Cache       = new TimeToLiveCache("cache.fr.persistence-proxy.forms", 100)
+    private val TTLProperty = "oxf.fr.persistence.proxy.form-list-cache-ttl"
+
+    // Changing the generation makes all existing entries unreachable, and they are evicted eventually
+    private val generation = new AtomicLong
+
+    def invalidate(): Unit =
+      generation.incrementAndGet()
+
+    // Read the generation before reading the forms, so forms read while a form is published are not reused
+    def cached(provider: String, query: String)(read: ⇒ DocumentInfo): DocumentInfo =
+      Cache.getOrRead(
+        new InternalCacheKey("forms", s"${generation.get}/$provider/$query"),
+        FormRunner.properties.getInteger(TTLProperty, 5000).toLong
+      )(read)
+  }
+}
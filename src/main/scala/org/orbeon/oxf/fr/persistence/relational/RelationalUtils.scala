@@ -18,14 +18,16 @@ import javax.naming.{Context, InitialContext}
 import javax.sql.DataSource
 
 import org.orbeon.errorified.Exceptions
+import org.orbeon.oxf.cache.{InternalCacheKey, TimeToLiveCache}
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.externalcontext.ExternalContextOps._
 import org.orbeon.oxf.fr.FormRunner
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.util.{IndentedLogger, LoggerFactory, Logging, NetUtils}
-import org.orbeon.saxon.om.NodeInfo
+import org.orbeon.oxf.util.{DynamicVariable, IndentedLogger, LoggerFactory, Logging, NetUtils}
+import org.orbeon.saxon.om.{DocumentInfo, NodeInfo}
 import org.orbeon.scaxon.XML._
 
+import scala.collection.mutable.ListBuffer
 import scala.util.control.NonFatal
 
 object RelationalUtils extends Logging {
@@ -37,19 +39,65 @@ object RelationalUtils extends Logging {
 
   def withConnection[T](datasourceName: String)(thunk: Connection ⇒ T): T =
     useAndClose(getConnection(getDataSource(datasourceName))) { connection ⇒
+      val transaction = new Transaction(connection)
       try {
-        val result = withDebug("executing block with connection")(thunk(connection))
+        val result =
+          currentTransaction.withValue(transaction) {
+            withDebug("executing block with connection")(thunk(connection))
+          }
         debug("about to commit")
         connection.commit()
+        transaction.end(committed = true)
         result
       } catch {
         case NonFatal(t) ⇒
           debug("about to rollback", List("throwable" → Exceptions.getRootThrowable(t).toString))
-          connection.rollback()
+          try
+            connection.rollback()
+          finally
+            transaction.end(committed = false)
           throw t
       }
     }
 
+  // Actions to run when the current transaction on a connection ends, for what is kept outside of the database, and
+  // must not see changes which end up being rolled back
+  private class Transaction(val connection: Connection) {
+
+    private val actions = ListBuffer[Boolean ⇒ Unit]()
+
+    def onEnd(action: Boolean ⇒ Unit): Unit =
+      actions += action
+
+    def end(committed: Boolean): Unit = {
+      val toRun = actions.toList
+      actions.clear()
+      toRun foreach { action ⇒
+        try action(committed)
+        catch {
+          case NonFatal(t) ⇒ Logger.logError("", "error running action at the end of a transaction", t)
+        }
+      }
+    }
+  }
+
+  // Not inheritable, so threads created while running a block, like reindexing threads, don't keep the transaction
+  private val currentTransaction = new DynamicVariable[Transaction](isInheritable = false)
+
+  private def transaction(connection: Connection): Transaction =
+    currentTransaction.value filter (_.connection eq connection) getOrElse
+      (throw new IllegalStateException("No transaction in progress on connection"))
+
+  // Run `action` when the transaction commits, with `true`, or rolls back, with `false`
+  def onTransactionEnd(connection: Connection)(action: Boolean ⇒ Unit): Unit =
+    transaction(connection).onEnd(action)
+
+  // For code committing in the middle of a `withConnection` block, so actions waiting for the commit run
+  def commit(connection: Connection): Unit = {
+    connection.commit()
+    transaction(connection).end(committed = true)
+  }
+
   /**
     * For cases where we can't use `setString` on a prepared statement
     * - Apache Commons Lang had a `StringEscapeUtils.escapeSql` [1] but it has been deprecated in Commons Lang 3 [2]
@@ -62,7 +110,7 @@ object RelationalUtils extends Logging {
     */
   def sqlString(text: String) = "'" + text.replaceAllLiterally("'", "''") + "'"
 
-  private def getDataSourceNameFromHeaders =
+  private[relational] def getDataSourceNameFromHeaders =
     NetUtils.getExternalContext.getRequest.getFirstHeader("orbeon-datasource") getOrElse
       (throw new OXFException("Missing `orbeon-datasource` header"))
 
@@ -86,12 +134,29 @@ object RelationalUtils extends Logging {
     }
 
   def readFormPermissions(app: String, form: String): Option[NodeInfo]=
-    FormRunner
-      .readFormMetadata(app, form)
-      .getOrElse(throw new IllegalStateException)
+    readFormMetadata(app, form)
       .child("forms").child("form").child("permissions")
       .headOption
 
+  private val FormMetadataCache = new TimeToLiveCache("cache.fr.relational.form-metadata", 200)
+
+  private def formMetadataCacheKey(app: String, form: String) =
+    new InternalCacheKey("formMetadata", app + '/' + form)
+
+  // Form metadata is read over HTTP, for every CRUD and search request on data, so it can be kept for a short time,
+  // and is forgotten as soon as the form definition is published through this persistence layer. As permissions
+  // changed on another server, or directly in the database, apply late, this is only done if configured.
+  private def readFormMetadata(app: String, form: String): DocumentInfo =
+    FormMetadataCache.getOrRead(
+      formMetadataCacheKey(app, form),
+      FormRunner.properties.getInteger("oxf.fr.persistence.form-metadata-cache-ttl", 0).toLong
+    ) {
+      FormRunner.readFormMetadata(app, form).getOrElse(throw new IllegalStateException)
+    }
+
+  def invalidateFormMetadata(app: String, form: String): Unit =
+    FormMetadataCache.remove(formMetadataCacheKey(app, form))
+
   // Given a user/group name coming from the data, tells us what operations we can do in this data,
   // assuming that it is for the current request app/form
   def allAuthorizedOperations(
@@ -42,4 +42,17 @@ object Statement {
     ps.executeQuery()
   }
 
+  // Values for an `IN (?, ?, …)`, with the last value repeated so there are a power of 2 values, which keeps the
+  // number of distinct SQL strings small, so that the driver's statement cache, such as MySQL's `cachePrepStmts` or
+  // PostgreSQL's `prepareThreshold`, can reuse the statements it prepared
+  def inListValues[T](values: List[T]): List[T] =
+    values match {
+      case Nil ⇒ Nil
+      case _   ⇒
+        val size = Integer.highestOneBit(values.size - 1) << 1 max 1
+        values ::: List.fill(size - values.size)(values.last)
+    }
+
+  def inListPlaceholders(values: List[_]): String =
+    values.map(_ ⇒ "?").mkString(", ")
 }
@@ -0,0 +1,511 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.persistence.relational.crud
+
+import java.io.OutputStreamWriter
+import java.net.{URLDecoder, URLEncoder}
+import java.sql.{Connection, PreparedStatement, Timestamp}
+import java.util.Properties
+import java.util.zip.{ZipEntry, ZipInputStream, ZipOutputStream}
+
+import org.apache.commons.io.input.CloseShieldInputStream
+import org.orbeon.oxf.externalcontext.ExternalContextOps._
+import org.orbeon.oxf.fr.persistence.relational.Provider._
+import org.orbeon.oxf.fr.persistence.relational.Statement._
+import org.orbeon.oxf.fr.persistence.relational.index.Index
+import org.orbeon.oxf.fr.persistence.relational.{Provider, RelationalUtils}
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.orbeon.oxf.processor.ProcessorImpl
+import org.orbeon.oxf.util.NetUtils
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.webapp.HttpStatusCodeException
+
+import scala.collection.mutable.ListBuffer
+import scala.util.Try
+
+/**
+ * Processor exporting and importing the current data of a form in bulk, as a ZIP archive with, for each document:
+ *
+ * - `data/[document id]/metadata.properties`        or `draft/[document id]/metadata.properties`
+ * - `data/[document id]/data.xml`                   or `draft/[document id]/data.xml`
+ * - `data/[document id]/attachments/[file name]`    or `draft/[document id]/attachments/[file name]`, for each current
+ *   attachment of the document, with the file name URL-encoded
+ *
+ * Documents are streamed in both directions, so memory use doesn't depend on the size of the archive.
+ *
+ * - A `GET` exports documents by increasing `data-id`, and with `?after=[data id]` resumes after the last document
+ *   fully received. As when reading a document, only the documents the user can read are exported.
+ * - A `PUT` or `POST` imports documents, committing every batch, and skipping documents already imported with the
+ *   same last modified time, so an interrupted import can just be run again. As it creates documents, and updates
+ *   documents whoever owns them, the user's roles must allow both. For the same reason, the username and group
+ *   name stored with each document, which determine who owns it, are taken from the archive as they are.
+ *
+ * - mapped to `fr:relational-bulk` in `processors.xml`
+ * - mapped to `/fr/service/[provider]/bulk/[app]/[form]` in `fr/page-flow.xml`
+ * - called through the persistence proxy with `/fr/service/persistence/bulk/[app]/[form]`
+ */
+class Bulk extends ProcessorImpl with RequestResponse {
+
+  private val BulkPath  = """/fr/service/([^/]+)/bulk/([^/]+)/([^/]+)""".r
+  private val EntryPath = """(data|draft)/([^/]+)/(metadata\.properties|data\.xml|attachments/[^/]+)""".r
+
+  private val AttachmentsDirectory = "attachments/"
+
+  private val BatchSize = 100
+  private val FetchSize = 100
+  private val PageSize  = 100
+
+  override def start(pipelineContext: PipelineContext): Unit =
+    try {
+      val BulkPath(providerToken, app, form) = httpRequest.getRequestPath
+      val provider = providerFromToken(providerToken)
+
+      httpRequest.getMethod match {
+        case "GET" ⇒
+          val afterDataId =
+            httpRequest.getFirstParamAsString("after") map
+              (after ⇒ Try(after.toInt) getOrElse (throw HttpStatusCodeException(400))) getOrElse 0
+          exportData(provider, app, form, afterDataId)
+        case "PUT" | "POST" ⇒
+          importData(provider, app, form)
+        case _ ⇒
+          httpResponse.setStatus(405)
+      }
+    } catch {
+      case e: HttpStatusCodeException ⇒
+        httpResponse.setStatus(e.code)
+    }
+
+  // Columns of `orbeon_form_data` exported as metadata
+  private case class ExportedDocument(
+    dataId           : Int,
+    created          : Timestamp,
+    lastModifiedTime : Timestamp,
+    lastModifiedBy   : String,
+    username         : String,
+    groupname        : String,
+    formVersion      : Int,
+    documentId       : String,
+    draft            : Boolean
+  )
+
+  private def exportData(provider: Provider, app: String, form: String, afterDataId: Int): Unit = {
+
+    // Read before establishing a connection, so we don't use two simultaneous connections
+    val permissionsOpt = RelationalUtils.readFormPermissions(app, form)
+
+    RelationalUtils.withConnection { connection ⇒
+
+      httpResponse.setContentType("application/zip")
+      val zip    = new ZipOutputStream(httpResponse.getOutputStream)
+      val writer = new OutputStreamWriter(zip, "utf-8")
+
+      // Same check as when reading a document
+      def canRead(document: ExportedDocument) =
+        RelationalUtils.allAuthorizedOperations(
+          permissionsOpt,
+          Option(document.username) → Option(document.groupname)
+        ).contains("read")
+
+      def writeDocument(document: ExportedDocument): Unit = {
+
+        import document._
+
+        val path = entryPath(draft, documentId)
+
+        val metadata = new Properties
+        def setMetadata(key: String, value: Option[Any]) = value foreach (v ⇒ metadata.setProperty(key, v.toString))
+
+        setMetadata("data-id",            Some(dataId))
+        setMetadata("created",            Option(created))
+        setMetadata("last-modified-time", Option(lastModifiedTime))
+        setMetadata("last-modified-by",   Option(lastModifiedBy))
+        setMetadata("username",           Option(username))
+        setMetadata("groupname",          Option(groupname))
+        setMetadata("form-version",       Some(formVersion))
+
+        zip.putNextEntry(new ZipEntry(path + "metadata.properties"))
+        metadata.store(zip, null)
+        zip.closeEntry()
+
+        zip.putNextEntry(new ZipEntry(path + "data.xml"))
+        useAndClose(streamingStatement(provider, connection,
+          s"SELECT ${Provider.xmlCol(provider, "d")} FROM orbeon_form_data d WHERE d.id = ?"
+        )) { xmlPs ⇒
+          xmlPs.setInt(1, dataId)
+          useAndClose(xmlPs.executeQuery()) { rs ⇒
+            if (rs.next()) {
+              val xmlReader = provider match {
+                case PostgreSQL ⇒ rs.getCharacterStream("xml")
+                case _          ⇒ rs.getClob("xml").getCharacterStream
+              }
+              useAndClose(xmlReader)(NetUtils.copyStream(_, writer))
+              writer.flush()
+            }
+          }
+        }
+        zip.closeEntry()
+
+        // The current version of each attachment, as when reading an attachment
+        useAndClose(streamingStatement(provider, connection,
+          s"""SELECT a.file_name,
+             |       a.file_content
+             |  FROM orbeon_form_data_attach a,
+             |       (
+             |           SELECT   file_name, max(last_modified_time) last_modified_time
+             |           FROM     orbeon_form_data_attach
+             |           WHERE    app = ? AND form = ? AND document_id = ? AND draft = ?
+             |           GROUP BY file_name
+             |       ) l
+             | WHERE a.app                = ?
+             |   AND a.form               = ?
+             |   AND a.document_id        = ?
+             |   AND a.draft              = ?
+             |   AND a.file_name          = l.file_name
+             |   AND a.last_modified_time = l.last_modified_time
+             |   AND a.deleted            = 'N'
+             |""".stripMargin
+        )) { attachmentsPs ⇒
+          for (offset ← List(0, 4)) {
+            attachmentsPs.setString(offset + 1, app)
+            attachmentsPs.setString(offset + 2, form)
+            attachmentsPs.setString(offset + 3, documentId)
+            attachmentsPs.setString(offset + 4, if (draft) "Y" else "N")
+          }
+          useAndClose(attachmentsPs.executeQuery()) { rs ⇒
+            while (rs.next()) {
+              zip.putNextEntry(new ZipEntry(path + AttachmentsDirectory + URLEncoder.encode(rs.getString("file_name"), "utf-8")))
+              val is = provider match {
+                case PostgreSQL ⇒ rs.getBinaryStream("file_content")
+                case _          ⇒ rs.getBlob("file_content").getBinaryStream
+              }
+              useAndClose(is)(NetUtils.copyStream(_, zip))
+              zip.closeEntry()
+            }
+          }
+        }
+      }
+
+      // Documents are read a page at a time, as MySQL doesn't allow reading their XML and attachments while a
+      // result set is being streamed
+      var documents = documentsAfter(connection, app, form, afterDataId)
+      while (documents.nonEmpty) {
+        documents filter canRead foreach writeDocument
+        documents = if (documents.size < PageSize) Nil else documentsAfter(connection, app, form, documents.last.dataId)
+      }
+
+      zip.finish()
+      zip.flush()
+    }
+  }
+
+  // Have the driver fetch rows as we go instead of loading all of them, which MySQL only does with this value
+  private def streamingStatement(provider: Provider, connection: Connection, sql: String): PreparedStatement =
+    connection.prepareStatement(sql) |!> (_.setFetchSize(provider match {
+      case MySQL ⇒ Integer.MIN_VALUE
+      case _     ⇒ FetchSize
+    }))
+
+  // The next page of current documents, by increasing data id
+  private def documentsAfter(connection: Connection, app: String, form: String, afterDataId: Int): List[ExportedDocument] = {
+
+    useAndClose(connection.prepareStatement(
+      s"""  SELECT d.id,
+         |         d.created,
+         |         d.last_modified_time,
+         |         d.last_modified_by,
+         |         d.username,
+         |         d.groupname,
+         |         d.form_version,
+         |         d.document_id,
+         |         d.draft
+         |    FROM orbeon_form_data d,
+         |         (
+         |             SELECT   document_id, draft, max(last_modified_time) last_modified_time
+         |             FROM     orbeon_form_data
+         |             WHERE    app = ? AND form = ?
+         |             GROUP BY document_id, draft
+         |         ) l
+         |   WHERE d.app                = ?
+         |     AND d.form               = ?
+         |     AND d.document_id        = l.document_id
+         |     AND d.draft              = l.draft
+         |     AND d.last_modified_time = l.last_modified_time
+         |     AND d.deleted            = 'N'
+         |     AND d.id                 > ?
+         |ORDER BY d.id
+         |   LIMIT $PageSize
+         |""".stripMargin
+    )) { ps ⇒
+      ps.setString(1, app)
+      ps.setString(2, form)
+      ps.setString(3, app)
+      ps.setString(4, form)
+      ps.setInt   (5, afterDataId)
+
+      useAndClose(ps.executeQuery()) { rs ⇒
+        Iterator.iterateWhile(
+          cond = rs.next(),
+          elem = ExportedDocument(
+            dataId           = rs.getInt      ("id"),
+            created          = rs.getTimestamp("created"),
+            lastModifiedTime = rs.getTimestamp("last_modified_time"),
+            lastModifiedBy   = rs.getString   ("last_modified_by"),
+            username         = rs.getString   ("username"),
+            groupname        = rs.getString   ("groupname"),
+            formVersion      = rs.getInt      ("form_version"),
+            documentId       = rs.getString   ("document_id"),
+            draft            = rs.getString   ("draft") == "Y"
+          )
+        ).toList
+      }
+    }
+  }
+
+  private def entryPath(draft: Boolean, documentId: String) =
+    s"${if (draft) "draft" else "data"}/$documentId/"
+
+  private case class ImportedDocument(
+    draft            : Boolean,
+    documentId       : String,
+    lastModifiedTime : Timestamp,
+    metadata         : Properties,
+    xml              : SpooledContent,
+    attachments      : ListBuffer[(String, SpooledContent)] = ListBuffer()
+  ) {
+    def delete(): Unit = {
+      xml.delete()
+      attachments foreach (_._2.delete())
+    }
+  }
+
+  private def importData(provider: Provider, app: String, form: String): Unit = {
+
+    val operations = RelationalUtils.authorizedOperationsBasedOnRoles(RelationalUtils.readFormPermissions(app, form))
+    if (! Set("create", "update").subsetOf(operations))
+      throw HttpStatusCodeException(403)
+
+    var imported = 0
+    var skipped  = 0
+
+    RelationalUtils.withConnection { connection ⇒
+
+      val batch = ListBuffer[ImportedDocument]()
+
+      def flushBatch(): Unit =
+        if (batch.nonEmpty)
+          try {
+            val toImport = batch.toList filterNot alreadyImported(connection, app, form, batch.toList)
+            insertDocuments(provider, connection, app, form, toImport)
+            insertAttachments(provider, connection, app, form, toImport)
+
+            // Update the index, or record the changes so it is updated later
+            if (toImport.nonEmpty) {
+              if (Index.isChangeLogEnabled(provider))
+                for (document ← toImport)
+                  Index.logChange(connection, app, form, formVersion(document), Some(document.documentId))
+              else
+                Index.reindex(provider, connection, Index.DataForDocumentIds(toImport.map(_.documentId).distinct))
+            }
+
+            // Commit each batch, so what is imported stays imported if the import is interrupted
+            RelationalUtils.commit(connection)
+
+            imported += toImport.size
+            skipped  += batch.size - toImport.size
+          } finally {
+            batch foreach (_.delete())
+            batch.clear()
+          }
+
+      val zip = new ZipInputStream(RequestReader.requestInputStream())
+      try {
+        var metadataOpt: Option[(String, Properties)] = None
+
+        Iterator.continually(zip.getNextEntry).takeWhile(_ ne null) foreach { entry ⇒
+          entry.getName match {
+            case EntryPath(dataOrDraft, documentId, "metadata.properties") ⇒
+              // Only flush once the previous document is complete, as its attachments follow its data
+              if (batch.size >= BatchSize)
+                flushBatch()
+              metadataOpt = Some(entryPath(dataOrDraft == "draft", documentId) → (new Properties |!> (_.load(zip))))
+            case EntryPath(dataOrDraft, documentId, "data.xml") ⇒
+              val path     = entryPath(dataOrDraft == "draft", documentId)
+              val metadata = metadataOpt collect { case (`path`, properties) ⇒ properties } getOrElse
+                (throw HttpStatusCodeException(400))
+              val lastModifiedTime =
+                Try(Timestamp.valueOf(metadata.getProperty("last-modified-time"))) getOrElse
+                  (throw HttpStatusCodeException(400))
+              // The parser closes its input, which must not close the archive
+              val (xml, _) = RequestReader.dataAndMetadata(new CloseShieldInputStream(zip), metadata = false)
+              batch += ImportedDocument(dataOrDraft == "draft", documentId, lastModifiedTime, metadata, xml)
+              metadataOpt = None
+            case EntryPath(dataOrDraft, documentId, attachmentPath) if attachmentPath.startsWith(AttachmentsDirectory) ⇒
+              val draft    = dataOrDraft == "draft"
+              val document = batch.lastOption filter (d ⇒ d.draft == draft && d.documentId == documentId) getOrElse
+                (throw HttpStatusCodeException(400))
+              val fileName = URLDecoder.decode(attachmentPath.substring(AttachmentsDirectory.length), "utf-8")
+              val content  = new SpooledContent
+              document.attachments += fileName → content
+              useAndClose(content.outputStream)(NetUtils.copyStream(new CloseShieldInputStream(zip), _))
+            case _ ⇒
+              throw HttpStatusCodeException(400)
+          }
+        }
+
+        flushBatch()
+      } finally {
+        batch foreach (_.delete())
+        runQuietly(zip.close())
+      }
+    }
+
+    httpResponse.setContentType("application/xml")
+    useAndClose(new OutputStreamWriter(httpResponse.getOutputStream, "utf-8"))(
+      _.write(<bulk-import imported={imported.toString} skipped={skipped.toString}/>.toString)
+    )
+  }
+
+  private def formVersion(document: ImportedDocument) =
+    Option(document.metadata.getProperty("form-version")) map (_.toInt) getOrElse 1
+
+  // Documents of the batch for which there is already a row with the same last modified time
+  private def alreadyImported(
+    connection : Connection,
+    app        : String,
+    form       : String,
+    batch      : List[ImportedDocument]
+  ): ImportedDocument ⇒ Boolean = {
+
+    val documentIds = inListValues(batch.map(_.documentId).distinct)
+    useAndClose(connection.prepareStatement(
+      s"""SELECT document_id, draft, last_modified_time
+         |  FROM orbeon_form_data
+         | WHERE app = ? AND form = ? AND document_id IN (${inListPlaceholders(documentIds)})
+         |""".stripMargin
+    )) { ps ⇒
+      ps.setString(1, app)
+      ps.setString(2, form)
+      for ((documentId, index) ← documentIds.zipWithIndex)
+        ps.setString(index + 3, documentId)
+
+      val existing =
+        useAndClose(ps.executeQuery()) { rs ⇒
+          Iterator.iterateWhile(
+            cond = rs.next(),
+            elem = (rs.getString("document_id"), rs.getString("draft") == "Y", rs.getTimestamp("last_modified_time"))
+          ).toSet
+        }
+
+      document ⇒ existing((document.documentId, document.draft, document.lastModifiedTime))
+    }
+  }
+
+  private def insertDocuments(
+    provider   : Provider,
+    connection : Connection,
+    app        : String,
+    form       : String,
+    documents  : List[ImportedDocument]
+  ): Unit =
+    if (documents.nonEmpty) {
+      val xmlVal = if (provider == PostgreSQL) "XMLPARSE( DOCUMENT ? )" else "?"
+      useAndClose(connection.prepareStatement(
+        s"""INSERT INTO orbeon_form_data
+           |           (created,
+           |            last_modified_time,
+           |            last_modified_by,
+           |            username,
+           |            groupname,
+           |            app,
+           |            form,
+           |            form_version,
+           |            document_id,
+           |            deleted,
+           |            draft,
+           |            xml)
+           |    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, 'N', ?, $xmlVal)
+           |""".stripMargin
+      )) { ps ⇒
+        for (document ← documents) {
+          import document._
+          def timestamp(key: String) = Option(metadata.getProperty(key)).map(Timestamp.valueOf(_)).orNull
+
+          val position = Iterator.from(1)
+          ps.setTimestamp      (position.next(), timestamp("created"))
+          ps.setTimestamp      (position.next(), lastModifiedTime)
+          ps.setString         (position.next(), metadata.getProperty("last-modified-by"))
+          ps.setString         (position.next(), metadata.getProperty("username"))
+          ps.setString         (position.next(), metadata.getProperty("groupname"))
+          ps.setString         (position.next(), app)
+          ps.setString         (position.next(), form)
+          ps.setInt            (position.next(), formVersion(document))
+          ps.setString         (position.next(), documentId)
+          ps.setString         (position.next(), if (draft) "Y" else "N")
+          ps.setCharacterStream(position.next(), xml.reader, xml.charLength.toInt)
+          ps.addBatch()
+        }
+        ps.executeBatch()
+      }
+    }
+
+  private def insertAttachments(
+    provider   : Provider,
+    connection : Connection,
+    app        : String,
+    form       : String,
+    documents  : List[ImportedDocument]
+  ): Unit =
+    if (documents exists (_.attachments.nonEmpty)) {
+      useAndClose(connection.prepareStatement(
+        s"""INSERT INTO orbeon_form_data_attach
+           |           (created,
+           |            last_modified_time,
+           |            last_modified_by,
+           |            username,
+           |            groupname,
+           |            app,
+           |            form,
+           |            form_version,
+           |            document_id,
+           |            deleted,
+           |            draft,
+           |            file_name,
+           |            file_content)
+           |    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, 'N', ?, ?, ?)
+           |""".stripMargin
+      )) { ps ⇒
+        for (document ← documents; (fileName, content) ← document.attachments) {
+          import document._
+          def timestamp(key: String) = Option(metadata.getProperty(key)).map(Timestamp.valueOf(_)).orNull
+
+          val position = Iterator.from(1)
+          ps.setTimestamp   (position.next(), timestamp("created"))
+          ps.setTimestamp   (position.next(), lastModifiedTime)
+          ps.setString      (position.next(), metadata.getProperty("last-modified-by"))
+          ps.setString      (position.next(), metadata.getProperty("username"))
+          ps.setString      (position.next(), metadata.getProperty("groupname"))
+          ps.setString      (position.next(), app)
+          ps.setString      (position.next(), form)
+          ps.setInt         (position.next(), formVersion(document))
+          ps.setString      (position.next(), documentId)
+          ps.setString      (position.next(), if (draft) "Y" else "N")
+          ps.setString      (position.next(), fileName)
+          ps.setBinaryStream(position.next(), content.inputStream, content.byteLength.toInt)
+          ps.addBatch()
+        }
+        ps.executeBatch()
+      }
+    }
+}
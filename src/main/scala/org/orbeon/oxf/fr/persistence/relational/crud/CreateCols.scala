@@ -47,11 +47,34 @@ trait CreateCols extends RequestResponse with Common {
     value        : ColValue
   )
 
+  // Request body, read before the insert, and passed to the database as streams
+  case class RequestContent(
+    xmlOpt        : Option[SpooledContent],
+    metadataOpt   : Option[String],
+    attachmentOpt : Option[SpooledContent]
+  ) {
+    def delete(): Unit = {
+      xmlOpt        foreach (_.delete())
+      attachmentOpt foreach (_.delete())
+    }
+  }
+
+  def readRequestContent(req: Request, delete: Boolean): RequestContent =
+    if (req.forAttachment) {
+      RequestContent(None, None, Some(RequestReader.spooledBytes()))
+    } else if (! delete) {
+      val (xml, metadataOpt) = RequestReader.dataAndMetadata(metadata = ! req.forData)
+      RequestContent(Some(xml), metadataOpt, None)
+    } else {
+      RequestContent(None, None, None)
+    }
+
   def insertCols(
     req          : Request,
     existingRow  : Option[Row],
     delete       : Boolean,
-    versionToSet : Int)
+    versionToSet : Int,
+    content      : RequestContent)
     : List[Col]  = {
 
     val xmlCol           = "xml"
@@ -59,14 +82,6 @@ trait CreateCols extends RequestResponse with Common {
     val isFormDefinition = req.forForm && ! req.forAttachment
     val now              = new Timestamp(System.currentTimeMillis())
 
-    val (xmlOpt, metadataOpt) =
-      if (! delete && ! req.forAttachment) {
-        val (xml, metadataOpt) = RequestReader.dataAndMetadataAsString(metadata = !req.forData)
-        (Some(xml), metadataOpt)
-      } else {
-        (None, None)
-      }
-
     List(
       Col(
         included      = true,
@@ -153,7 +168,10 @@ trait CreateCols extends RequestResponse with Common {
         name          = "file_content",
         value         = DynamicColValue(
           placeholder = "?",
-          paramSetter = param(_.setBytes, RequestReader.bytes())
+          paramSetter = (ps: PreparedStatement, i: Int) ⇒ {
+            val attachment = content.attachmentOpt.get
+            ps.setBinaryStream(i, attachment.inputStream, attachment.byteLength.toInt)
+          }
         )
       ),
       Col(
@@ -161,7 +179,7 @@ trait CreateCols extends RequestResponse with Common {
         name          = "form_metadata",
         value         = DynamicColValue(
           placeholder = "?",
-          paramSetter = param(_.setString, metadataOpt.orNull)
+          paramSetter = param(_.setString, content.metadataOpt.orNull)
         )
       ),
       Col(
@@ -185,7 +203,11 @@ trait CreateCols extends RequestResponse with Common {
         name          = xmlCol,
         value         = DynamicColValue(
           placeholder = xmlVal,
-          paramSetter = param(_.setString, xmlOpt.orNull)
+          paramSetter = (ps: PreparedStatement, i: Int) ⇒
+            content.xmlOpt match {
+              case Some(xml) ⇒ ps.setCharacterStream(i, xml.reader, xml.charLength.toInt)
+              case None      ⇒ ps.setString(i, null)
+            }
         )
       )
     )
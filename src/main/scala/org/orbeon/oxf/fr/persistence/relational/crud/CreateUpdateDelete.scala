@@ -13,7 +13,7 @@
  */
 package org.orbeon.oxf.fr.persistence.relational.crud
 
-import java.io.{ByteArrayOutputStream, InputStream, Writer}
+import java.io.{InputStream, Writer}
 import java.sql.{Array ⇒ _, _}
 import javax.xml.transform.OutputKeys
 import javax.xml.transform.sax.{SAXResult, SAXSource}
@@ -34,6 +34,8 @@ import org.orbeon.saxon.om.DocumentInfo
 import org.orbeon.scaxon.SAXEvents.{Atts, StartElement}
 import org.xml.sax.InputSource
 
+import scala.util.control.NonFatal
+
 object RequestReader {
 
   object IdAtt {
@@ -68,16 +70,30 @@ object RequestReader {
       case _               ⇒ NetUtils.getExternalContext.getRequest.getInputStream
     }
 
-  def bytes(): Array[Byte] = {
-    val os = new ByteArrayOutputStream
-    NetUtils.copyStream(requestInputStream(), os)
-    os.toByteArray
+  // Request body, spooled so it can be passed to JDBC as a stream of known length
+  def spooledBytes(): SpooledContent = {
+    val spooled = new SpooledContent
+    useAndClose(requestInputStream()) { is ⇒
+      useAndClose(spooled.outputStream) { os ⇒
+        NetUtils.copyStream(is, os)
+      }
+    }
+    spooled
   }
 
-  def dataAndMetadataAsString(metadata: Boolean): (String, Option[String]) =
-    dataAndMetadataAsString(requestInputStream(), metadata)
-
   def dataAndMetadataAsString(inputStream: InputStream, metadata: Boolean): (String, Option[String]) = {
+    val (spooledData, metadataOpt) = dataAndMetadata(inputStream, metadata)
+    try
+      (useAndClose(spooledData.reader)(NetUtils.readStreamAsString), metadataOpt)
+    finally
+      spooledData.delete()
+  }
+
+  def dataAndMetadata(metadata: Boolean): (SpooledContent, Option[String]) =
+    dataAndMetadata(requestInputStream(), metadata)
+
+  // Serialize the data without holding it in memory if it is large, and extract the metadata, which is small
+  def dataAndMetadata(inputStream: InputStream, metadata: Boolean): (SpooledContent, Option[String]) = {
 
     def newTransformer = (
       TransformerUtils.getXMLIdentityTransformer
@@ -113,8 +129,9 @@ object RequestReader {
       (metadataWriter, metadataFilter)
     }
 
-    val source     = new SAXSource(XMLParsing.newXMLReader(XMLParsing.ParserConfiguration.PLAIN), new InputSource(inputStream))
-    val dataWriter = new StringBuilderWriter()
+    val source      = new SAXSource(XMLParsing.newXMLReader(XMLParsing.ParserConfiguration.PLAIN), new InputSource(inputStream))
+    val spooledData = new SpooledContent
+    val dataWriter  = spooledData.writer
 
     val resultReceiver = metadataWriterAndReceiver match {
       case Some((_, metadataFilter)) ⇒
@@ -123,9 +140,16 @@ object RequestReader {
         newIdentityReceiver(dataWriter)
     }
 
-    newTransformer.transform(source, new SAXResult(resultReceiver))
+    try {
+      newTransformer.transform(source, new SAXResult(resultReceiver))
+      dataWriter.close()
+    } catch {
+      case NonFatal(t) ⇒
+        spooledData.delete()
+        throw t
+    }
 
-    (dataWriter.toString, metadataWriterAndReceiver map (_._1.toString))
+    (spooledData, metadataWriterAndReceiver map (_._1.toString))
   }
 
   // Used by FlatView
@@ -223,9 +247,10 @@ trait CreateUpdateDelete
     }
 
     // Do insert
-    locally {
+    val content = readRequestContent(req, delete)
+    try {
 
-      val possibleCols = insertCols(req, existingRow, delete, versionToSet)
+      val possibleCols = insertCols(req, existingRow, delete, versionToSet, content)
       val includedCols = possibleCols.filter(_.included)
       val colNames     = includedCols.map(_.name).mkString(", ")
       val colValues    =
@@ -249,6 +274,8 @@ trait CreateUpdateDelete
         .foreach{ case (paramSetter, index) ⇒ paramSetter(ps, index + 1)}
 
       ps.executeUpdate()
+    } finally {
+      content.delete()
     }
 
     versionToSet
@@ -343,17 +370,21 @@ trait CreateUpdateDelete
       // Update database
       val versionSet = store(connection, req, existing, delete)
 
-      // Update index
-      val whatToReindex = req.dataPart match {
-          case Some(dataPart) ⇒
-            // Data: update index for this document id
-            Index.DataForDocumentId(dataPart.documentId)
-          case None ⇒
-            // Form definition: update index for this form version
-            // Re. the asInstanceOf, when updating a form, we must have a specific version specified
-            Index.DataForForm(req.app, req.form, versionSet)
-        }
-      Index.reindex(req.provider, connection, whatToReindex)
+      // Update index, or just record what changed if the index is updated later
+      if (Index.isChangeLogEnabled(req.provider))
+        Index.logChange(connection, req.app, req.form, versionSet, req.dataPart.map(_.documentId))
+      else {
+        val whatToReindex = req.dataPart match {
+            case Some(dataPart) ⇒
+              // Data: update index for this document id
+              Index.DataForDocumentId(dataPart.documentId)
+            case None ⇒
+              // Form definition: update index for this form version
+              // Re. the asInstanceOf, when updating a form, we must have a specific version specified
+              Index.DataForForm(req.app, req.form, versionSet)
+          }
+        Index.reindex(req.provider, connection, whatToReindex)
+      }
 
       // Create flat view if needed
       if (requestFlatView && FlatView.SupportedProviders(req.provider) && req.forForm && ! req.forAttachment && ! delete && req.form != "library")
@@ -364,5 +395,9 @@ trait CreateUpdateDelete
 
       httpResponse.setStatus(if (delete) 204 else 201)
     }
+
+    // Once committed, make sure the new permissions apply to the next requests
+    if (req.forForm)
+      RelationalUtils.invalidateFormMetadata(req.app, req.form)
   }
 }
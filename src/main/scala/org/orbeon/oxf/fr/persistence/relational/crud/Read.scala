@@ -13,12 +13,12 @@
  */
 package org.orbeon.oxf.fr.persistence.relational.crud
 
-import java.io.{ByteArrayInputStream, OutputStreamWriter, StringReader}
+import java.io._
 
 import org.orbeon.oxf.fr.FormRunnerPersistence
 import org.orbeon.oxf.fr.persistence.relational.Version._
 import org.orbeon.oxf.fr.persistence.relational._
-import org.orbeon.oxf.http.Headers
+import org.orbeon.oxf.http.{ByteRange, Headers}
 import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.oxf.util.NetUtils
 import org.orbeon.oxf.webapp.HttpStatusCodeException
@@ -52,6 +52,7 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
         val ps = connection.prepareStatement(
           s"""|SELECT  t.last_modified_time
               |        ${if (req.forAttachment) ", t.file_content"            else s", $xmlCol"}
+              |        ${if (req.forAttachment && req.provider == PostgreSQL) ", octet_length(t.file_content) file_content_length" else ""}
               |        ${if (req.forData)       ", t.username, t.groupname"   else ""}
               |        , t.form_version, t.deleted
               |FROM    $table t,
@@ -115,20 +116,48 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
 
         // Write content (XML / file)
         if (req.forAttachment) {
-          val stream = req.provider match {
-            case PostgreSQL ⇒ new ByteArrayInputStream(resultSet.getBytes("file_content"))
-            case _          ⇒ resultSet.getBlob("file_content").getBinaryStream
+
+          // Stream from the database, except for PostgreSQL where the driver already holds the bytea value
+          val (totalLength, streamForRange) = req.provider match {
+            case PostgreSQL ⇒
+              val length = resultSet.getLong("file_content_length")
+              (length, (start: Long, count: Long) ⇒ {
+                val is = resultSet.getBinaryStream("file_content")
+                skipFully(is, start)
+                is
+              })
+            case _ ⇒
+              val blob = resultSet.getBlob("file_content")
+              (blob.length, (start: Long, count: Long) ⇒
+                if (start == 0) blob.getBinaryStream else blob.getBinaryStream(start + 1, count))
+          }
+
+          httpResponse.setHeader("Accept-Ranges", "bytes")
+
+          ByteRange(headerValue("range"), totalLength) match {
+            case ByteRange.Full ⇒
+              httpResponse.setContentLength(totalLength.toInt)
+              useAndClose(streamForRange(0, totalLength))(NetUtils.copyStream(_, httpResponse.getOutputStream))
+            case range @ ByteRange.Partial(start, _, _) ⇒
+              httpResponse.setStatus(206)
+              httpResponse.setHeader("Content-Range", range.contentRange)
+              httpResponse.setContentLength(range.length.toInt)
+              useAndClose(streamForRange(start, range.length))(copyStreamLength(_, httpResponse.getOutputStream, range.length))
+            case notSatisfiable: ByteRange.NotSatisfiable ⇒
+              httpResponse.setStatus(416)
+              httpResponse.setHeader("Content-Range", notSatisfiable.contentRange)
           }
-          NetUtils.copyStream(stream, httpResponse.getOutputStream)
         } else {
-          val stream = req.provider match {
-            case PostgreSQL ⇒ new StringReader(resultSet.getString("xml"))
+          val reader = req.provider match {
+            case PostgreSQL ⇒ resultSet.getCharacterStream("xml")
             case _          ⇒ resultSet.getClob("xml").getCharacterStream
           }
           httpResponse.setHeader(Headers.ContentType, "application/xml")
-          val writer = new OutputStreamWriter(httpResponse.getOutputStream, "UTF-8")
-          NetUtils.copyStream(stream, writer)
-          writer.close()
+          useAndClose(reader) { _ ⇒
+            useAndClose(new OutputStreamWriter(httpResponse.getOutputStream, "UTF-8")) { writer ⇒
+              NetUtils.copyStream(reader, writer)
+            }
+          }
         }
 
       } else {
@@ -136,4 +165,26 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
       }
     }
   }
+
+  private def skipFully(is: InputStream, count: Long): Unit = {
+    var remaining = count
+    while (remaining > 0) {
+      val skipped = is.skip(remaining)
+      if (skipped <= 0)
+        throw new EOFException
+      remaining -= skipped
+    }
+  }
+
+  private def copyStreamLength(is: InputStream, os: OutputStream, length: Long): Unit = {
+    val buffer = new Array[Byte](8192)
+    var remaining = length
+    while (remaining > 0) {
+      val read = is.read(buffer, 0, (buffer.length.toLong min remaining).toInt)
+      if (read == -1)
+        throw new EOFException
+      os.write(buffer, 0, read)
+      remaining -= read
+    }
+  }
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.persistence.relational.crud
+
+import java.io._
+
+import org.apache.commons.io.output.DeferredFileOutputStream
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.SystemUtils
+
+// Content written once and then read back, kept in memory when small and in a temporary file otherwise, so that
+// large request bodies can be passed to JDBC as streams without holding them in the heap
+class SpooledContent(threshold: Int = SpooledContent.DefaultThreshold) {
+
+  private val deferredOutputStream =
+    new DeferredFileOutputStream(threshold, "orbeon-crud-", ".tmp", SystemUtils.getTemporaryDirectory)
+
+  private var _charLength = 0L
+
+  // Write bytes; the caller must close the stream
+  def outputStream: OutputStream = deferredOutputStream
+
+  // Write characters as UTF-8, keeping track of the number of characters; the caller must close the writer
+  def writer: Writer =
+    new FilterWriter(new OutputStreamWriter(deferredOutputStream, "utf-8")) {
+      override def write(c: Int): Unit = {
+        super.write(c)
+        _charLength += 1
+      }
+      override def write(cbuf: Array[Char], off: Int, len: Int): Unit = {
+        super.write(cbuf, off, len)
+        _charLength += len
+      }
+      override def write(str: String, off: Int, len: Int): Unit = {
+        super.write(str, off, len)
+        _charLength += len
+      }
+    }
+
+  def byteLength: Long = deferredOutputStream.getByteCount
+  def charLength: Long = _charLength
+  def isInMemory       = deferredOutputStream.isInMemory
+
+  // Streams given to the database, which we close before deleting the file
+  private var openedInputStreams: List[InputStream] = Nil
+
+  def inputStream: InputStream =
+    if (deferredOutputStream.isInMemory)
+      new ByteArrayInputStream(deferredOutputStream.getData)
+    else {
+      val is = new BufferedInputStream(new FileInputStream(deferredOutputStream.getFile))
+      openedInputStreams ::= is
+      is
+    }
+
+  // Read characters written with `writer`
+  def reader: Reader =
+    new InputStreamReader(inputStream, "utf-8")
+
+  def delete(): Unit = {
+    openedInputStreams foreach (is ⇒ runQuietly(is.close()))
+    openedInputStreams = Nil
+    if (! deferredOutputStream.isInMemory)
+      deferredOutputStream.getFile.delete()
+  }
+}
+
+object SpooledContent {
+  val DefaultThreshold = 256 * 1024
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.persistence.relational.index
+
+import java.sql.Connection
+
+import org.orbeon.oxf.fr.FormRunner
+import org.orbeon.oxf.fr.persistence.relational.Provider._
+import org.orbeon.oxf.fr.persistence.relational.RelationalUtils
+import org.orbeon.oxf.fr.persistence.relational.Statement._
+import org.orbeon.oxf.util.ScalaUtils._
+
+// With the change log enabled, saving data or a form definition only records what changed in `orbeon_i_change_log`,
+// and the index is updated later, in batches, when calling `/fr/service/[provider]/reindex-changes`, typically from a
+// scheduled task. Until then, searches don't see the changes. Reindexing reads the published form definitions, which
+// requires the context of a request, so this isn't done by a thread of our own.
+trait ChangeLog {
+
+  this: Reindex ⇒
+
+  def isChangeLogEnabled(provider: Provider): Boolean =
+    FormRunner.properties.getBoolean(s"oxf.fr.persistence.${provider.name}.index-change-log", false)
+
+  // Without a document id, the change is to the form definition, and all the data for that version is reindexed
+  def logChange(
+    connection    : Connection,
+    app           : String,
+    form          : String,
+    formVersion   : Int,
+    documentIdOpt : Option[String]
+  ): Unit =
+    useAndClose(connection.prepareStatement(
+      """INSERT INTO orbeon_i_change_log
+        |           (app,
+        |            form,
+        |            form_version,
+        |            document_id)
+        |    VALUES (?, ?, ?, ?)
+      """.stripMargin
+    )) { ps ⇒
+      ps.setString(1, app)
+      ps.setString(2, form)
+      ps.setInt   (3, formVersion)
+      ps.setString(4, documentIdOpt.orNull)
+      ps.executeUpdate()
+    }
+
+  private[fr] case class Change(id: Int, app: String, form: String, formVersion: Int, documentIdOpt: Option[String])
+
+  // The same document is often saved several times between two runs, and documents of a form version which is
+  // reindexed as a whole don't need to be reindexed on their own
+  private[fr] def changesToReindex(changes: List[Change]): List[WhatToReindex] = {
+
+    val forms       = changes.collect { case Change(_, app, form, version, None) ⇒ DataForForm(app, form, version) }.distinct
+    val formsSet    = forms.toSet
+    val documentIds =
+      changes.collect {
+        case Change(_, app, form, version, Some(documentId)) if ! formsSet(DataForForm(app, form, version)) ⇒ documentId
+      }.distinct
+
+    forms ::: (documentIds.nonEmpty list DataForDocumentIds(documentIds))
+  }
+
+  // Whether reindexing `whatToReindex` took care of `change`
+  private[fr] def isChangeReindexed(change: Change, whatToReindex: WhatToReindex): Boolean =
+    (change, whatToReindex) match {
+      case (Change(_, app, form, version, _), DataForForm(reindexedApp, reindexedForm, reindexedVersion)) ⇒
+        app == reindexedApp && form == reindexedForm && version == reindexedVersion
+      case (Change(_, _, _, _, Some(documentId)), DataForDocumentIds(documentIds)) ⇒
+        documentIds contains documentId
+      case _ ⇒
+        false
+    }
+
+  // Reindex what changed, optionally only for a given app/form, and return the number of changes processed. Changes
+  // are locked while being processed, so concurrent calls don't index the same documents twice, and each batch is
+  // committed, so locks aren't held for long and work done isn't lost. With an app/form, only the rows of that form
+  // are locked, through the `(app, form, id)` index.
+  def reindexChanges(
+    provider      : Provider,
+    connection    : Connection,
+    appFormOpt    : Option[(String, String)]
+  ): Int = {
+
+    val batchSize = reindexBatchSize
+
+    def nextChanges(): List[Change] = {
+      useAndClose(connection.prepareStatement(
+        s"""  SELECT id, app, form, form_version, document_id
+           |    FROM orbeon_i_change_log
+           |    ${appFormOpt.isDefined.string("WHERE app = ? AND form = ?")}
+           |ORDER BY id
+           |   LIMIT $batchSize
+           |     FOR UPDATE
+           |""".stripMargin
+      )) { ps ⇒
+        appFormOpt foreach { case (app, form) ⇒
+          ps.setString(1, app)
+          ps.setString(2, form)
+        }
+        useAndClose(ps.executeQuery()) { rs ⇒
+          Iterator.iterateWhile(
+            cond = rs.next(),
+            elem = Change(
+              id            = rs.getInt("id"),
+              app           = rs.getString("app"),
+              form          = rs.getString("form"),
+              formVersion   = rs.getInt("form_version"),
+              documentIdOpt = Option(rs.getString("document_id"))
+            )
+          ).toList
+        }
+      }
+    }
+
+    def deleteChanges(changes: List[Change]): Unit = {
+      val ids = inListValues(changes map (_.id))
+      useAndClose(connection.prepareStatement(s"DELETE FROM orbeon_i_change_log WHERE id IN (${inListPlaceholders(ids)})")) { ps ⇒
+        for ((id, index) ← ids.zipWithIndex)
+          ps.setInt(index + 1, id)
+        ps.executeUpdate()
+      }
+    }
+
+    var processed = 0
+    var changes   = nextChanges()
+
+    while (changes.nonEmpty) {
+
+      // Reindexing stops when asked to, and changes which weren't reindexed stay in the log for the next run
+      val reindexed = changesToReindex(changes) takeWhile (reindex(provider, connection, _))
+      val done      = changes filter (change ⇒ reindexed exists (isChangeReindexed(change, _)))
+
+      if (done.nonEmpty)
+        deleteChanges(done)
+      RelationalUtils.commit(connection)
+
+      processed += done.size
+      changes = if (done.size < changes.size || changes.size < batchSize) Nil else nextChanges()
+    }
+
+    processed
+  }
+}
@@ -0,0 +1,373 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.persistence.relational.index
+
+import java.io.File
+import java.sql.Connection
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import org.apache.lucene.analysis.KeywordAnalyzer
+import org.apache.lucene.document.{Field, Document ⇒ LuceneDocument}
+import org.apache.lucene.index.{IndexReader, IndexWriter, Term}
+import org.apache.lucene.search._
+import org.apache.lucene.store.{Directory, FSDirectory}
+import org.orbeon.oxf.fr.FormRunner
+import org.orbeon.oxf.fr.persistence.relational.Provider._
+import org.orbeon.oxf.fr.persistence.relational.RelationalUtils
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.{IndentedLogger, LoggerFactory, NetUtils}
+import org.orbeon.oxf.webapp.WebAppListener
+
+import scala.collection.JavaConverters._
+
+// Optional index on local disk, with the trigrams of the XML of each current data document, used to find the few
+// documents which can match a free text search, instead of scanning the XML of all the documents.
+//
+// Free text search is done in SQL with a case insensitive `LIKE '%text%'` on the XML, so it also matches part of
+// words, attribute values, and markup. Any document matching the `LIKE` contains all the trigrams of the search text,
+// so looking for documents with those trigrams finds a superset of the documents matching, on which the `LIKE` still
+// runs. Case insensitive comparisons can consider non-ASCII characters equal to other characters, so non-ASCII
+// characters are indexed as a placeholder, which the search accepts in place of any character, and only trigrams of
+// ASCII characters are searched.
+//
+// This requires the database to compare characters one by one, as PostgreSQL's `ILIKE` does. MySQL collations other
+// than binary ones, like the `utf8_unicode_ci` used by default, don't: they can consider strings of different lengths
+// equal (e.g. `ß` and `ss`), and ignore some characters, so on MySQL the index is only used with a binary collation.
+//
+// The index is only used when it has all the data, that is after a full reindex, and until the server stops without
+// closing it. Documents are added before the transaction commits, and removed once it commits, so the index always
+// has at least the documents searches can see.
+object FullTextIndex {
+
+  private implicit val Logger = new IndentedLogger(LoggerFactory.createLogger(FullTextIndex.getClass))
+
+  // Above this, scanning with a `LIKE` is as good as an `IN` with many ids
+  val MaxCandidates = 1000
+
+  // Each searched trigram becomes 8 clauses, and searching more trigrams rarely narrows down the search much more
+  private val MaxSearchedTrigrams = 8
+
+  private val DataIdField      = "data_id"
+  private val DocumentIdField  = "document_id"
+  private val AppField         = "app"
+  private val FormField        = "form"
+  private val FormVersionField = "form_version"
+  private val GenerationField  = "generation"
+  private val TrigramField     = "trigram"
+
+  // Stored with each commit, `true` when the index was closed with all the data
+  private val CompleteKey = "complete"
+
+  private val Placeholder = '\uFFFD'
+
+  private class OpenIndex(val writer: IndexWriter, @volatile var complete: Boolean) {
+
+    // Updates not yet committed or rolled back, and whether one ran while reindexing all the data
+    val inProgress = new AtomicInteger
+    @volatile var reindexingAll: Option[Update] = None
+    @volatile var reindexingAllDisturbed = false
+
+    def commit(): Unit =
+      writer.commit(Map(CompleteKey → "false").asJava)
+
+    def close(): Unit = {
+      writer.commit(Map(CompleteKey → complete.toString).asJava)
+      writer.close()
+    }
+  }
+
+  // One writer per datasource, shared by all threads, as only one writer can hold the lock on a directory
+  private val indexes     = new ConcurrentHashMap[String, OpenIndex]
+  private val generations = new AtomicLong
+
+  // Whether the database compares characters one by one, by datasource
+  private val comparesCharacters = new ConcurrentHashMap[String, java.lang.Boolean]
+
+  private def indexDirectoryOpt =
+    FormRunner.properties.getString("oxf.fr.persistence.full-text-index.directory", "").trimAllToOpt
+
+  def isEnabled(provider: Provider): Boolean =
+    FormRunner.properties.getBoolean(s"oxf.fr.persistence.${provider.name}.full-text-index", false) &&
+      indexDirectoryOpt.isDefined
+
+  private def openIndex(datasourceName: String): OpenIndex =
+    Option(indexes.get(datasourceName)) getOrElse {
+      indexes.synchronized {
+        Option(indexes.get(datasourceName)) getOrElse {
+
+          val directory = FSDirectory.open(new File(new File(indexDirectoryOpt.get), datasourceName))
+          val complete  = isComplete(directory)
+          val writer    = new IndexWriter(directory, new KeywordAnalyzer, IndexWriter.MaxFieldLength.UNLIMITED)
+
+          // Until it is closed, the index on disk can miss changes, so if the server stops without closing it, the
+          // index can't be used until all the data is reindexed
+          val index = new OpenIndex(writer, complete) |!> (_.commit())
+          indexes.put(datasourceName, index)
+
+          NetUtils.getExternalContext.getWebAppContext.addListener(new WebAppListener {
+            def webAppDestroyed() = close(datasourceName)
+          })
+
+          if (! complete)
+            Logger.logWarning("", s"full text index for `$datasourceName` is not used until all the data is reindexed")
+
+          index
+        }
+      }
+    }
+
+  private def isComplete(directory: Directory): Boolean =
+    IndexReader.indexExists(directory) &&
+      Option(IndexReader.getCommitUserData(directory)).exists(_.get(CompleteKey) == "true")
+
+  private def close(datasourceName: String): Unit =
+    Option(indexes.remove(datasourceName)) foreach (_.close())
+
+  // Changes done by reindexing in the transaction on a connection. Documents are added right away, and replaced
+  // documents are only removed once the transaction commits. If it rolls back, the index keeps documents which
+  // searches can't see anymore, which only makes it find more candidates, until these documents are reindexed.
+  class Update private[FullTextIndex] (index: OpenIndex) {
+
+    private val generation    = generations.incrementAndGet().toString
+    private var deleteQueries = List[Query]()
+    private var addedAll      = false
+
+    // When reindexing all the data, the index isn't used until the transaction commits, and isn't used at all if
+    // other documents were reindexed at the same time, as they might have been removed with everything else
+    def deleteAll(): Unit = {
+      index.complete = false
+      index.reindexingAll = Some(this)
+      index.reindexingAllDisturbed = index.inProgress.get > 1
+      index.writer.deleteAll()
+    }
+
+    def deleteDocuments(documentIds: Seq[String]): Unit =
+      for (documentIdsInClause ← documentIds.grouped(BooleanQuery.getMaxClauseCount - 1))
+        deleteQueries ::= replaced(
+          new BooleanQuery |!> { query ⇒
+            for (documentId ← documentIdsInClause)
+              query.add(new TermQuery(new Term(DocumentIdField, documentId)), BooleanClause.Occur.SHOULD)
+          }
+        )
+
+    def deleteForm(app: String, form: String, formVersion: Int): Unit =
+      deleteQueries ::= replaced(
+        new BooleanQuery |!> { query ⇒
+          query.add(new TermQuery(new Term(AppField,         app)),                  BooleanClause.Occur.MUST)
+          query.add(new TermQuery(new Term(FormField,        form)),                 BooleanClause.Occur.MUST)
+          query.add(new TermQuery(new Term(FormVersionField, formVersion.toString)), BooleanClause.Occur.MUST)
+        }
+      )
+
+    // What `query` matches, except what this update adds
+    private def replaced(query: Query): Query =
+      new BooleanQuery |!> { replacedQuery ⇒
+        replacedQuery.add(query, BooleanClause.Occur.MUST)
+        replacedQuery.add(new TermQuery(new Term(GenerationField, generation)), BooleanClause.Occur.MUST_NOT)
+      }
+
+    def add(dataId: Int, documentId: String, app: String, form: String, formVersion: Int, xml: String): Unit =
+      index.writer.updateDocument(
+        new Term(DataIdField, dataId.toString),
+        document(dataId, documentId, app, form, formVersion, generation, xml)
+      )
+
+    // Called once all the data was added after `deleteAll()`, unless reindexing was stopped
+    def allAdded(): Unit =
+      addedAll = true
+
+    private[FullTextIndex] def start(): Unit = {
+      index.inProgress.incrementAndGet()
+      if (index.reindexingAll exists (_ ne this))
+        index.reindexingAllDisturbed = true
+    }
+
+    private[FullTextIndex] def end(committed: Boolean): Unit = {
+      index.inProgress.decrementAndGet()
+      if (committed)
+        deleteQueries foreach (index.writer.deleteDocuments(_))
+      if (index.reindexingAll exists (_ eq this)) {
+        index.reindexingAll = None
+        if (committed && addedAll && ! index.reindexingAllDisturbed) {
+          index.commit()
+          index.complete = true
+        } else
+          Logger.logWarning("", "full text index is not used until all the data is reindexed again")
+      }
+    }
+  }
+
+  // Not maintained if it can't be used with the database, as searches would never use it
+  def update(provider: Provider, connection: Connection): Option[Update] = {
+    val datasourceName = RelationalUtils.getDataSourceNameFromHeaders
+    isUsable(provider, connection, datasourceName) option {
+      val update = new Update(openIndex(datasourceName))
+      update.start()
+      RelationalUtils.onTransactionEnd(connection)(update.end)
+      update
+    }
+  }
+
+  // Ids of the data which can match the search, `None` if the index can't narrow down the search, either because
+  // it is disabled or doesn't have all the data, because the search text is too short, or because there are too
+  // many matches
+  def findCandidates(
+    provider       : Provider,
+    connection     : Connection,
+    app            : String,
+    form           : String,
+    freeTextSearch : String
+  ): Option[List[Int]] = {
+    val datasourceName = RelationalUtils.getDataSourceNameFromHeaders
+    if (! isUsable(provider, connection, datasourceName))
+      None
+    else {
+      val index = openIndex(datasourceName)
+      if (! index.complete)
+        None
+      else
+        candidatesQuery(app, form, freeTextSearch) flatMap { query ⇒
+          useAndClose(index.writer.getReader)(search(_, query))
+        }
+    }
+  }
+
+  // Whether the index is enabled, and the database compares characters as the index requires, which is checked the
+  // first time the datasource is used after startup, for a search or for reindexing, so a misconfiguration is logged
+  // even if no one searches
+  private def isUsable(provider: Provider, connection: Connection, datasourceName: String): Boolean =
+    isEnabled(provider) && (
+      provider match {
+        case MySQL ⇒
+          Option(comparesCharacters.get(datasourceName)) map (_.booleanValue) getOrElse {
+            val binary = isXmlCollationBinary(connection)
+            if (! binary)
+              Logger.logError("",
+                s"`oxf.fr.persistence.${provider.name}.full-text-index` is enabled, but the full text index for " +
+                s"`$datasourceName` is disabled, as the collation of `orbeon_form_data.xml` isn't binary"
+              )
+            comparesCharacters.put(datasourceName, binary)
+            binary
+          }
+        case _ ⇒
+          true
+      }
+    )
+
+  private def isXmlCollationBinary(connection: Connection): Boolean =
+    useAndClose(connection.prepareStatement(
+      """SELECT collation_name
+        |  FROM information_schema.columns
+        | WHERE table_schema = DATABASE()
+        |   AND table_name   = 'orbeon_form_data'
+        |   AND column_name  = 'xml'
+      """.stripMargin
+    )) { ps ⇒
+      useAndClose(ps.executeQuery()) { rs ⇒
+        rs.next() && (Option(rs.getString("collation_name")) exists (_.toLowerCase.endsWith("_bin")))
+      }
+    }
+
+  private[fr] def document(
+    dataId      : Int,
+    documentId  : String,
+    app         : String,
+    form        : String,
+    formVersion : Int,
+    generation  : String,
+    xml         : String
+  ): LuceneDocument = {
+    val document = new LuceneDocument
+    document.add(new Field(DataIdField,      dataId.toString,      Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS))
+    document.add(new Field(DocumentIdField,  documentId,           Field.Store.NO,  Field.Index.NOT_ANALYZED_NO_NORMS))
+    document.add(new Field(AppField,         app,                  Field.Store.NO,  Field.Index.NOT_ANALYZED_NO_NORMS))
+    document.add(new Field(FormField,        form,                 Field.Store.NO,  Field.Index.NOT_ANALYZED_NO_NORMS))
+    document.add(new Field(FormVersionField, formVersion.toString, Field.Store.NO,  Field.Index.NOT_ANALYZED_NO_NORMS))
+    document.add(new Field(GenerationField,  generation,           Field.Store.NO,  Field.Index.NOT_ANALYZED_NO_NORMS))
+    for (trigram ← indexedTrigrams(xml))
+      document.add(new Field(TrigramField, trigram, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS))
+    document
+  }
+
+  // Documents of the form with all the searched trigrams, `None` if the search text has no trigram we can search
+  private[fr] def candidatesQuery(app: String, form: String, freeTextSearch: String): Option[Query] =
+    searchedTrigrams(freeTextSearch) match {
+      case Nil ⇒
+        None
+      case trigrams ⇒
+        Some(
+          new BooleanQuery |!> { query ⇒
+            query.add(new TermQuery(new Term(AppField,  app)),  BooleanClause.Occur.MUST)
+            query.add(new TermQuery(new Term(FormField, form)), BooleanClause.Occur.MUST)
+            for (trigram ← trigrams)
+              query.add(
+                new BooleanQuery |!> { trigramQuery ⇒
+                  for (variant ← trigramVariants(trigram))
+                    trigramQuery.add(new TermQuery(new Term(TrigramField, variant)), BooleanClause.Occur.SHOULD)
+                },
+                BooleanClause.Occur.MUST
+              )
+          }
+        )
+    }
+
+  private[fr] def search(reader: IndexReader, query: Query): Option[List[Int]] = {
+    val searcher = new IndexSearcher(reader)
+    val topDocs  = searcher.search(query, null, MaxCandidates + 1)
+    (topDocs.totalHits <= MaxCandidates) option
+      (topDocs.scoreDocs.toList map (scoreDoc ⇒ searcher.doc(scoreDoc.doc).get(DataIdField).toInt))
+  }
+
+  // ASCII letters are compared ignoring case, and other characters could be equal to any character
+  private def fold(c: Char): Char =
+    if (c >= 'A' && c <= 'Z')
+      (c + ('a' - 'A')).toChar
+    else if (c < 0x80)
+      c
+    else
+      Placeholder
+
+  private[fr] def indexedTrigrams(xml: String): Set[String] = {
+    val folded = xml map fold
+    (0 to folded.length - 3).iterator.map(i ⇒ folded.substring(i, i + 3)).toSet
+  }
+
+  // In a `LIKE`, `%` and `_` are wildcards, and `\` escapes, so we only use trigrams of the text between them
+  private[fr] def searchedTrigrams(freeTextSearch: String): List[String] = {
+
+    val trigrams =
+      for {
+        literal ← freeTextSearch.split("""[%_\\]""").toList
+        i       ← 0 to literal.length - 3
+        trigram = literal.substring(i, i + 3)
+        if trigram forall (_ < 0x80)
+      } yield
+        trigram map fold
+
+    val distinct = trigrams.distinct
+
+    // Trigrams spread over the text are more likely to narrow down the search
+    if (distinct.size <= MaxSearchedTrigrams)
+      distinct
+    else
+      (0 until MaxSearchedTrigrams).toList map (i ⇒ distinct(i * (distinct.size - 1) / (MaxSearchedTrigrams - 1)))
+  }
+
+  // The trigram as it is indexed, with any of its characters possibly indexed as the placeholder
+  private[fr] def trigramVariants(trigram: String): List[String] =
+    (0 until 8).toList map { mask ⇒
+      trigram.zipWithIndex.map { case (c, i) ⇒ if ((mask & (1 << i)) != 0) Placeholder else c }.mkString
+    }
+}
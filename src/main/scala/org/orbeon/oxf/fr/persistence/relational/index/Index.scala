@@ -17,7 +17,8 @@ import org.orbeon.oxf.fr.persistence.relational.Provider._
 
 object Index
   extends FormDefinition
-  with Reindex {
+  with Reindex
+  with ChangeLog {
 
   val ProvidersWithIndexSupport: Set[Provider] = Set(MySQL, PostgreSQL)
 
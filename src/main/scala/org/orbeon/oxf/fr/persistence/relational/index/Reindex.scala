@@ -13,21 +13,24 @@
  */
 package org.orbeon.oxf.fr.persistence.relational.index
 
-import java.sql.{Connection, PreparedStatement}
+import java.sql.{Connection, PreparedStatement, ResultSet, Timestamp}
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
 
 import org.orbeon.oxf.fr.FormRunner
 import org.orbeon.oxf.fr.persistence.relational.Provider
 import org.orbeon.oxf.fr.persistence.relational.Provider._
 import org.orbeon.oxf.fr.persistence.relational.index.status.{Backend, StatusStore, Stopping}
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.util.{IndentedLogger, LoggerFactory}
+import org.orbeon.oxf.util.{IndentedLogger, LoggerFactory, NetUtils, XPath}
 import org.orbeon.oxf.xforms.XFormsConstants
-import org.orbeon.oxf.xml.{NamespaceMapping, XMLConstants}
+import org.orbeon.oxf.xml.{NamespaceMapping, TransformerUtils, XMLConstants}
 import org.orbeon.saxon.om.NodeInfo
 import org.orbeon.scaxon.XML
 import org.orbeon.scaxon.XML._
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 
 trait Reindex extends FormDefinition {
 
@@ -36,6 +39,7 @@ trait Reindex extends FormDefinition {
   sealed trait                                                              WhatToReindex
   case object  AllData                                              extends WhatToReindex
   case class   DataForDocumentId(documentId: String)                extends WhatToReindex
+  case class   DataForDocumentIds(documentIds: Seq[String])         extends WhatToReindex
   case class   DataForForm(app: String, form: String, version: Int) extends WhatToReindex
 
   // Reindexing is a 3 step process:
@@ -44,13 +48,17 @@ trait Reindex extends FormDefinition {
   //   3. For each document:
   //      - add 1 row to orbeon_i_current
   //      - add as many as necessary to orbeon_i_control_text
+  // Documents are parsed in parallel, and rows are inserted in batches, as reindexing a large database otherwise
+  // takes a very long time. Returns `false` if reindexing was asked to stop before all the documents were indexed.
   def reindex(
     provider      : Provider,
     connection    : Connection,
     whatToReindex : WhatToReindex
-  ): Unit = {
+  ): Boolean = {
 
-    if (Index.ProvidersWithIndexSupport.contains(provider)) {
+    if (! Index.ProvidersWithIndexSupport.contains(provider))
+      true
+    else {
 
       // If a document id was provided, produce WHERE clause, and set parameter
       val (whereConditions, paramSetter) =
@@ -63,6 +71,10 @@ trait Reindex extends FormDefinition {
             List("document_id = ?"),
             (ps: PreparedStatement) ⇒ ps.setString(1, id)
           )
+          case DataForDocumentIds(ids) ⇒ (
+            List(s"document_id IN (${ids.map(_ ⇒ "?").mkString(", ")})"),
+            (ps: PreparedStatement) ⇒ for ((id, index) ← ids.zipWithIndex) ps.setString(index + 1, id)
+          )
           case DataForForm(app, form, version) ⇒ (
             List(
               "app = ?",
@@ -105,6 +117,17 @@ trait Reindex extends FormDefinition {
           .execute()
       }
 
+      // Clean the full text index the same way, if enabled
+      val fullTextUpdateOpt = FullTextIndex.update(provider, connection)
+      fullTextUpdateOpt foreach { fullTextUpdate ⇒
+        whatToReindex match {
+          case AllData                         ⇒ fullTextUpdate.deleteAll()
+          case DataForDocumentId(id)           ⇒ fullTextUpdate.deleteDocuments(List(id))
+          case DataForDocumentIds(ids)         ⇒ fullTextUpdate.deleteDocuments(ids)
+          case DataForForm(app, form, version) ⇒ fullTextUpdate.deleteForm(app, form, version)
+        }
+      }
+
       val currentFromWhere =
         s"""|    FROM
             |      orbeon_form_data d,
@@ -162,113 +185,249 @@ trait Reindex extends FormDefinition {
         .kestrel(paramSetter)
         .executeQuery()
 
-      // Info on indexed controls for a given app/form
-      case class FormIndexedControls(
-        app             : String,
-        form            : String,
-        indexedControls : Seq[IndexedControl]
+      // Indexed controls for each app/form, computed once per form definition
+      val indexedControlsForForm = mutable.Map[(String, String), Seq[IndexedControl]]()
+      def indexedControls(app: String, form: String): Seq[IndexedControl] =
+        indexedControlsForForm.getOrElseUpdate((app, form),
+          FormRunner.readPublishedForm(app, form) match {
+            case None ⇒
+              Logger.logError("", s"Can't index documents for $app/$form as form definition can't be found")
+              Seq.empty
+            case Some(formDefinition) ⇒
+              findIndexedControls(formDefinition)
+          }
+        )
+
+      // Statements are prepared once, and rows are sent to the database in batches
+      val insertCurrent = connection.prepareStatement(
+        """INSERT INTO orbeon_i_current
+          |           (data_id,
+          |            created,
+          |            last_modified_time,
+          |            last_modified_by,
+          |            username,
+          |            groupname,
+          |            app,
+          |            form,
+          |            form_version,
+          |            document_id,
+          |            draft)
+          |    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """.stripMargin
+      )
+      val insertControlText = connection.prepareStatement(
+        """INSERT INTO orbeon_i_control_text
+          |           (data_id,
+          |            pos,
+          |            control,
+          |            val)
+          |    VALUES (? , ? , ? , ? )
+        """.stripMargin
       )
 
-      // Go through each data document
-      // - we keep track of the indexed controls along in the iteration, and thus avoid recomputing them
-      var prevIndexedControls: Option[FormIndexedControls] = None
-      while (currentData.next() && StatusStore.getStatus != Stopping) {
-
-        Backend.setProviderDocumentNext()
-        val app = currentData.getString("app")
-        val form = currentData.getString("form")
-
-        // Get indexed controls for current app/form
-        val indexedControls: Seq[IndexedControl] = prevIndexedControls match {
-          case Some(FormIndexedControls(`app`, `form`, indexedControls)) ⇒
-            // Use indexed controls from previous iteration
-            indexedControls
-          case _ ⇒
-            // Compute indexed controls reading the form definition
-            FormRunner.readPublishedForm(app, form) match {
-              case None ⇒
-                Logger.logError("", s"Can't index documents for $app/$form as form definition can't be found")
-                Seq.empty
-              case Some(formDefinition) ⇒
-                findIndexedControls(formDefinition)
-            }
+      val batchSize   = reindexBatchSize
+      val parallelism = whatToReindex match {
+        case DataForDocumentId(_)                             ⇒ 1
+        // Changes from the change log come in batches of at most that size, not worth handing over
+        case DataForDocumentIds(ids) if ids.size <= batchSize ⇒ 1
+        case _                                                ⇒ ReindexExecutor.getMaximumPoolSize
+      }
+
+      // Parsing documents and evaluating XPath expressions is done by a pool of threads, while this thread, which
+      // owns the connection, reads the documents and batches the inserts; with no parallelism, everything runs here
+      val executorOpt = (parallelism > 1).option(ReindexExecutor)
+
+      def submit(task: Callable[IndexedDocument]): Future[IndexedDocument] =
+        executorOpt match {
+          case Some(executor) ⇒ executor.submit(task)
+          case None           ⇒ new FutureTask(task).kestrel(_.run())
+        }
+
+      // Documents being parsed, in the order in which they were read, so we insert in that order too; only a few per
+      // thread, enough to keep the threads busy, as each one holds the document's XML in memory
+      val inFlight         = mutable.Queue[Future[IndexedDocument]]()
+      val maxInFlight      = parallelism * InFlightPerThread
+      var documentsInBatch = 0
+
+      def flushBatch(): Unit =
+        if (documentsInBatch > 0) {
+          insertCurrent.executeBatch()
+          insertControlText.executeBatch()
+          Backend.setProviderDocumentsIndexed(documentsInBatch)
+          documentsInBatch = 0
         }
 
-        // Insert into the "current data" table
+      def addToBatch(future: Future[IndexedDocument]): Unit = {
+
+        val indexedDocument =
+          try future.get
+          catch { case e: ExecutionException ⇒ throw e.getCause }
+
+        import indexedDocument._
+
         val position = Iterator.from(1)
-        val insert = connection.prepareStatement(
-          """INSERT INTO orbeon_i_current
-            |           (data_id,
-            |            created,
-            |            last_modified_time,
-            |            last_modified_by,
-            |            username,
-            |            groupname,
-            |            app,
-            |            form,
-            |            form_version,
-            |            document_id,
-            |            draft)
-            |    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-          """.stripMargin
-        )
-        insert.setInt(position.next(), currentData.getInt("id"))
-        insert.setTimestamp(position.next(), currentData.getTimestamp("created"))
-        insert.setTimestamp(position.next(), currentData.getTimestamp("last_modified_time"))
-        insert.setString(position.next(), currentData.getString("last_modified_by"))
-        insert.setString(position.next(), currentData.getString("username"))
-        insert.setString(position.next(), currentData.getString("groupname"))
-        insert.setString(position.next(), app)
-        insert.setString(position.next(), form)
-        insert.setInt(position.next(), currentData.getInt("form_version"))
-        insert.setString(position.next(), currentData.getString("document_id"))
-        insert.setString(position.next(), currentData.getString("draft"))
-        insert.execute()
-
-        // Read data (XML)
-        // - using lazy, as we might not need the data, if there are no controls to index
-        // - return root element, as XPath this is the node XPath expressions are relative to
-        lazy val dataRootElement: NodeInfo = {
-          val document = readXmlColumn(provider, currentData)
-          document.descendant(*).head
+        insertCurrent.setInt      (position.next(), row.dataId)
+        insertCurrent.setTimestamp(position.next(), row.created)
+        insertCurrent.setTimestamp(position.next(), row.lastModifiedTime)
+        insertCurrent.setString   (position.next(), row.lastModifiedBy)
+        insertCurrent.setString   (position.next(), row.username)
+        insertCurrent.setString   (position.next(), row.groupname)
+        insertCurrent.setString   (position.next(), row.app)
+        insertCurrent.setString   (position.next(), row.form)
+        insertCurrent.setInt      (position.next(), row.formVersion)
+        insertCurrent.setString   (position.next(), row.documentId)
+        insertCurrent.setString   (position.next(), row.draft)
+        insertCurrent.addBatch()
+
+        for (value ← values) {
+          val position = Iterator.from(1)
+          insertControlText.setInt   (position.next(), row.dataId)
+          insertControlText.setInt   (position.next(), value.pos)
+          insertControlText.setString(position.next(), value.control)
+          insertControlText.setString(position.next(), value.value)
+          insertControlText.addBatch()
         }
 
-        // Extract and insert value for each indexed control
-        for (control ← indexedControls) {
-
-          val nodes = XML.eval(dataRootElement, control.xpath, FbNamespaceMapping).asInstanceOf[Seq[NodeInfo]]
-          for ((node, pos) ← nodes.zipWithIndex) {
-            val nodeValue = truncateValue(provider, node.getStringValue)
-            // For indexing, we are not interested in empty values
-            if (!nodeValue.isEmpty) {
-              val position = Iterator.from(1)
-              val insert = connection.prepareStatement(
-                """INSERT INTO orbeon_i_control_text
-                  |           (data_id,
-                  |            pos,
-                  |            control,
-                  |            val)
-                  |    VALUES (? , ? , ? , ? )
-                """.stripMargin
+        for (fullTextUpdate ← fullTextUpdateOpt; xml ← xmlOpt)
+          fullTextUpdate.add(row.dataId, row.documentId, row.app, row.form, row.formVersion, xml)
+
+        documentsInBatch += 1
+        if (documentsInBatch >= batchSize)
+          flushBatch()
+      }
+
+      try {
+        // Go through each data document
+        while (currentData.next() && StatusStore.getStatus != Stopping) {
+
+          val row = DataRow(
+            dataId           = currentData.getInt      ("id"),
+            created          = currentData.getTimestamp("created"),
+            lastModifiedTime = currentData.getTimestamp("last_modified_time"),
+            lastModifiedBy   = currentData.getString   ("last_modified_by"),
+            username         = currentData.getString   ("username"),
+            groupname        = currentData.getString   ("groupname"),
+            app              = currentData.getString   ("app"),
+            form             = currentData.getString   ("form"),
+            formVersion      = currentData.getInt      ("form_version"),
+            documentId       = currentData.getString   ("document_id"),
+            draft            = currentData.getString   ("draft")
+          )
+
+          // Only read the data if there are controls to index, or if the full text index needs it
+          val controls = indexedControls(row.app, row.form)
+          val fullText = fullTextUpdateOpt.isDefined
+          val xmlOpt   = (controls.nonEmpty || fullText).option(readXmlColumnAsString(provider, currentData))
+
+          inFlight += submit(new Callable[IndexedDocument] {
+            def call() =
+              IndexedDocument(
+                row    = row,
+                values = xmlOpt filter (_ ⇒ controls.nonEmpty) map (indexDocument(provider, _, controls)) getOrElse Nil,
+                xmlOpt = xmlOpt filter (_ ⇒ fullText)
               )
-              insert.setInt(position.next(), currentData.getInt("id"))
-              insert.setInt(position.next(), pos + 1)
-              insert.setString(position.next(), control.xpath)
-              insert.setString(position.next(), nodeValue)
-              insert.executeUpdate()
-              // For a query, we need to close so not to keep an open cursor; it's unclear if this
-              // is really needed with executeUpdate(), but it shouldn't hurt
-              insert.close()
-            }
-          }
+          })
+
+          while (inFlight.size > maxInFlight)
+            addToBatch(inFlight.dequeue())
         }
 
-        // Pass current indexed controls to the next iteration
-        prevIndexedControls = Some(FormIndexedControls(app, form, indexedControls))
+        // Once stopping, we still insert what was already read, so those documents are consistently indexed
+        while (inFlight.nonEmpty)
+          addToBatch(inFlight.dequeue())
+        flushBatch()
+        val completed = StatusStore.getStatus != Stopping
+        if (completed)
+          fullTextUpdateOpt foreach (_.allAdded())
+        completed
+      } finally {
+        // The executor is shared, so only give up on our own tasks, if we didn't get to insert them
+        inFlight foreach (_.cancel(true))
+        runQuietly(insertCurrent.close())
+        runQuietly(insertControlText.close())
       }
     }
   }
 
+  // Columns of `orbeon_form_data` copied to `orbeon_i_current`
+  private case class DataRow(
+    dataId           : Int,
+    created          : Timestamp,
+    lastModifiedTime : Timestamp,
+    lastModifiedBy   : String,
+    username         : String,
+    groupname        : String,
+    app              : String,
+    form             : String,
+    formVersion      : Int,
+    documentId       : String,
+    draft            : String
+  )
+
+  private case class ControlValue(control: String, pos: Int, value: String)
+  private case class IndexedDocument(row: DataRow, values: List[ControlValue], xmlOpt: Option[String])
+
+  // Can run on any thread, as it doesn't touch the connection
+  private def indexDocument(
+    provider : Provider,
+    xml      : String,
+    controls : Seq[IndexedControl]
+  ): List[ControlValue] = {
+
+    // Return root element, as XPath this is the node XPath expressions are relative to
+    val dataRootElement: NodeInfo =
+      TransformerUtils.stringToTinyTree(XPath.GlobalConfiguration, xml, false, false).descendant(*).head
+
+    for {
+      control     ← controls.toList
+      nodes       = XML.eval(dataRootElement, control.xpath, FbNamespaceMapping).asInstanceOf[Seq[NodeInfo]]
+      (node, pos) ← nodes.zipWithIndex
+      nodeValue   = truncateValue(provider, node.getStringValue)
+      // For indexing, we are not interested in empty values
+      if nodeValue.nonEmpty
+    } yield
+      ControlValue(control.xpath, pos + 1, nodeValue)
+  }
+
+  private def readXmlColumnAsString(provider: Provider, resultSet: ResultSet): String =
+    provider match {
+      case PostgreSQL ⇒ resultSet.getString("xml")
+      case _          ⇒ useAndClose(resultSet.getClob("xml").getCharacterStream)(NetUtils.readStreamAsString)
+    }
+
+  private[index] def reindexBatchSize =
+    FormRunner.properties.getInteger("oxf.fr.persistence.reindex.batch-size", 500) max 1
+
+  // 0 means as many threads as there are processors
+  private def reindexParallelism =
+    FormRunner.properties.getInteger("oxf.fr.persistence.reindex.parallelism", 0).toInt match {
+      case parallelism if parallelism > 0 ⇒ parallelism
+      case _                              ⇒ Runtime.getRuntime.availableProcessors
+    }
+
+  // Documents read ahead for each indexing thread, independently of the batch size, which only concerns inserts
+  private val InFlightPerThread = 4
+
+  private val ReindexThreadFactory = new ThreadFactory {
+    private val threadNumber = new AtomicInteger(1)
+    def newThread(runnable: Runnable) =
+      new Thread(runnable, "orbeon-reindex-" + threadNumber.getAndIncrement) |!> (_.setDaemon(true))
+  }
+
+  // Shared by all reindexing, so we don't create threads each time, and concurrent reindexing doesn't use more threads
+  // than configured
+  private lazy val ReindexExecutor = {
+    val parallelism = reindexParallelism max 1
+    new ThreadPoolExecutor(
+      parallelism,
+      parallelism,
+      60L,
+      TimeUnit.SECONDS,
+      new LinkedBlockingQueue[Runnable],
+      ReindexThreadFactory
+    ) |!> (_.allowCoreThreadTimeOut(true))
+  }
+
   /**
    * If control values are "really long", we might not be able fully index them. Here we truncate values stored
    * in the index table so it doesn't exceed the limit imposed by the type used to store the value in
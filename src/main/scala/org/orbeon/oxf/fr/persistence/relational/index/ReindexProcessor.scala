@@ -13,6 +13,7 @@
  */
 package org.orbeon.oxf.fr.persistence.relational.index
 
+import org.orbeon.oxf.externalcontext.ExternalContextOps._
 import org.orbeon.oxf.fr.persistence.relational._
 import org.orbeon.oxf.pipeline.api.PipelineContext
 import org.orbeon.oxf.processor.ProcessorImpl
@@ -25,16 +26,30 @@ import org.orbeon.oxf.fr.persistence.relational.Provider._
  *
  * - mapped to `fr:persistence-reindex` in `processors.xml`
  * - mapped to `/fr/service/[provider]/reindex` in `fr/page-flow.xml`
+ * - mapped to `/fr/service/[provider]/reindex-changes` to only reindex what is in the change log, optionally only
+ *   for the `app` and `form` passed as request parameters
  */
 class ReindexProcessor extends ProcessorImpl {
 
-  private val ReindexPathRegex    = """/fr/service/([^/]+)/reindex""".r
+  private val ReindexPathRegex    = """/fr/service/([^/]+)/reindex(-changes)?""".r
 
   override def start(pipelineContext: PipelineContext): Unit = {
 
-    val ReindexPathRegex(providerToken) = NetUtils.getExternalContext.getRequest.getRequestPath
+    val request = NetUtils.getExternalContext.getRequest
+    val ReindexPathRegex(providerToken, changes) = request.getRequestPath
     val provider = providerFromToken(providerToken)
-    RelationalUtils.withConnection(Index.reindex(provider, _, Index.AllData))
+    RelationalUtils.withConnection { connection ⇒
+      if (changes ne null) {
+        val appFormOpt =
+          for {
+            app  ← request.getFirstParamAsString("app")
+            form ← request.getFirstParamAsString("form")
+          } yield
+            app → form
+        Index.reindexChanges(provider, connection, appFormOpt)
+      } else
+        Index.reindex(provider, connection, Index.AllData)
+    }
   }
 
 }
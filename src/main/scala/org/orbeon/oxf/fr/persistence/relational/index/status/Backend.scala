@@ -40,8 +40,9 @@ object Backend {
 
   def setProviderDocumentTotal(total: Int): Unit =
     setIndexing(i ⇒ Some(i.copy(documentCount = Some(Count(total = total, current = 0)))))
-  def setProviderDocumentNext(): Unit =
-    setDocumentCount(c ⇒ c.copy(current = c.current + 1))
+  // Called as batches of documents are written, so the count reflects what is actually in the index
+  def setProviderDocumentsIndexed(count: Int): Unit =
+    setDocumentCount(c ⇒ c.copy(current = c.current + count))
 
   private def setIndexing(setter: Indexing ⇒ Option[Indexing]): Unit =
     Some(StatusStore.getStatus).collect { case status: Indexing ⇒
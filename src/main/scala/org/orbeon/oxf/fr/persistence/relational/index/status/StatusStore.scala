@@ -22,7 +22,8 @@ import scala.collection.JavaConverters._
 
 object StatusStore {
 
-  private var currentStatus: Status = Stopped
+  // Read by the UI while the reindex runs on another thread
+  @volatile private var currentStatus: Status = Stopped
 
   private def session =
     NetUtils.getExternalContext.getSession(true).getAttributesMap.asScala
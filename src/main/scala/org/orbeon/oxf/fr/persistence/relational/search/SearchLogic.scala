@@ -13,8 +13,7 @@
  */
 package org.orbeon.oxf.fr.persistence.relational.search
 
-import java.sql.Timestamp
-
+import org.orbeon.oxf.cache.{InternalCacheKey, TimeToLiveCache}
 import org.orbeon.oxf.fr.FormRunner
 import org.orbeon.oxf.fr.persistence.relational.RelationalUtils
 import org.orbeon.oxf.fr.persistence.relational.RelationalUtils.Logger
@@ -59,90 +58,182 @@ trait SearchLogic extends SearchRequest {
           draftsPart         (request),
           permissionsPart    (permissions),
           columnFilterPart   (request),
-          freeTextFilterPart (request)
+          freeTextFilterPart (request, connection)
         )
 
-        val searchCount = {
-
-          val innerSQL = buildQuery(commonParts)
-          val sql =
-            s"""SELECT count(*)
-               |  FROM (
-               |       $innerSQL
-               |       ) a
-             """.stripMargin
+        val searchCount =
+          SearchLogic.cachedCount(request, permissions) {
 
-          Logger.logDebug("search total query", sql)
-          val rs = executeQuery(connection, sql, commonParts)
-          rs.next()
-          rs.getInt(1)
-        }
+            val innerSQL = buildQuery(commonParts)
+            val sql =
+              s"""SELECT count(*)
+                 |  FROM (
+                 |       $innerSQL
+                 |       ) a
+               """.stripMargin
 
-        val documentsResultSet = {
+            Logger.logDebug("search total query", sql)
+            val rs = executeQuery(connection, sql, commonParts)
+            rs.next()
+            rs.getInt(1)
+          }
 
-          // Build SQL and create statement
-          val parts =
-            commonParts :+
-            mySqlOrderForRowNumPart(request)
-          val innerSQL = buildQuery(parts)
-
-          val startOffsetZeroBased = (request.pageNumber - 1) * request.pageSize
-          // Use LEFT JOIN instead of regular join, in case the form doesn't have any control marked
-          // to be indexed, in which case there won't be anything for it in orbeon_i_control_text.
-          val sql =
-            s"""    SELECT c.*, t.control, t.pos, t.val
-               |      FROM (
-               |           $innerSQL
-               |           ) c
-               | LEFT JOIN orbeon_i_control_text t
-               |           ON c.data_id = t.data_id
-               |     WHERE row_number
-               |           BETWEEN ${startOffsetZeroBased + 1}
-               |           AND     ${startOffsetZeroBased + request.pageSize}
-               |""".stripMargin
+        // Only the values of the controls shown in the result are needed
+        val controls = request.columns.map(_.path).distinct
 
+        val documentsResultSet = {
+          val (sql, parts) = SearchLogic.documentsQuery(request, commonParts, controls)
           Logger.logDebug("search items query", sql)
           executeQuery(connection, sql, parts)
         }
 
-        val documents =
-          Iterator.iterateWhile(
-            cond = documentsResultSet.next(),
-            elem = (
-                DocumentMetaData(
-                  documentId       = documentsResultSet.getString        ("document_id"),
-                  draft            = documentsResultSet.getString        ("draft") == "Y",
-                  created          = documentsResultSet.getTimestamp     ("created"),
-                  lastModifiedTime = documentsResultSet.getTimestamp     ("last_modified_time"),
-                  lastModifiedBy   = documentsResultSet.getString        ("last_modified_by"),
-                  username         = Option(documentsResultSet.getString ("username")),
-                  groupname        = Option(documentsResultSet.getString ("groupname"))
-                ),
-                DocumentValue(
-                  control          = documentsResultSet.getString        ("control"),
-                  pos              = documentsResultSet.getInt           ("pos"),
-                  value            = documentsResultSet.getString        ("val")
-                )
-            )
+        def readMetadata() =
+          DocumentMetaData(
+            dataId           = documentsResultSet.getInt           ("data_id"),
+            documentId       = documentsResultSet.getString        ("document_id"),
+            draft            = documentsResultSet.getString        ("draft") == "Y",
+            created          = documentsResultSet.getTimestamp     ("created"),
+            lastModifiedTime = documentsResultSet.getTimestamp     ("last_modified_time"),
+            lastModifiedBy   = documentsResultSet.getString        ("last_modified_by"),
+            username         = Option(documentsResultSet.getString ("username")),
+            groupname        = Option(documentsResultSet.getString ("groupname"))
           )
-            .toList
-
-            // Group row by common metadata, since the metadata is repeated in the result set
-            .groupBy(_._1).mapValues(_.map(_._2)).toList
-
-            // Sort by last modified in descending order, as the call expects the result to be pre-sorted
-            .sortBy(_._1.lastModifiedTime)(Ordering[Timestamp].reverse)
-
-            // Compute possible operations for each document
-            .map{ case (metadata, values) ⇒
-              val operations =
-                permissions.formPermissionsElOpt
-                .map(FormRunner.allAuthorizedOperations(_, metadata.username, metadata.groupname))
-                .getOrElse(SearchOperations)
-              Document(metadata, operations, values)
-            }
-          (documents, searchCount)
+
+        def readValueOpt() =
+          if (controls.isEmpty)
+            None
+          else
+            Option(documentsResultSet.getString("control")).map(control ⇒
+              DocumentValue(
+                control          = control,
+                pos              = documentsResultSet.getInt           ("pos"),
+                value            = documentsResultSet.getString        ("val")
+              )
+            )
+
+        // Group contiguous rows for the same document as we read them, since the metadata is repeated in the
+        // result set, and rows come in the order expected by the caller
+        val documentsBuilder = List.newBuilder[(DocumentMetaData, List[DocumentValue])]
+        var currentOpt: Option[(DocumentMetaData, List[DocumentValue])] = None
+
+        while (documentsResultSet.next()) {
+          val dataId = documentsResultSet.getInt("data_id")
+          currentOpt match {
+            case Some((metadata, values)) if metadata.dataId == dataId ⇒
+              currentOpt = Some(metadata → (readValueOpt().toList ::: values))
+            case _ ⇒
+              currentOpt foreach (documentsBuilder += _)
+              currentOpt = Some(readMetadata() → readValueOpt().toList)
+          }
         }
+        currentOpt foreach (documentsBuilder += _)
+
+        // Compute possible operations for each document
+        val documents =
+          documentsBuilder.result() map { case (metadata, values) ⇒
+            val operations =
+              permissions.formPermissionsElOpt
+              .map(FormRunner.allAuthorizedOperations(_, metadata.username, metadata.groupname))
+              .getOrElse(SearchOperations)
+            Document(metadata, operations, values.reverse)
+          }
+
+        (documents, searchCount)
+      }
     }
 
 }
+
+object SearchLogic {
+
+  // Query returning the documents for the requested page, with the values of the given controls, where the rows for
+  // a given document are contiguous and in the order of the page
+  def documentsQuery(request: Request, commonParts: List[StatementPart], controls: List[String]): (String, List[StatementPart]) = {
+
+    val parts =
+      commonParts            :+
+      pageAfterPart(request) :+
+      mySqlOrderForRowNumPart(request)
+    val innerSQL = buildQuery(parts)
+
+    // Use LEFT JOIN instead of regular join, in case the form doesn't have any control marked
+    // to be indexed, in which case there won't be anything for it in orbeon_i_control_text.
+    val controlsJoin =
+      controls.nonEmpty.string(
+        s"""| LEFT JOIN orbeon_i_control_text t
+            |           ON c.data_id = t.data_id AND
+            |              t.control IN (${controls.map(_ ⇒ "?").mkString(", ")})
+            |""".stripMargin
+      )
+
+    val controlsPart =
+      StatementPart("", controls.map(control ⇒ (_.setString(_, control)): Setter))
+
+    request.pageAfter match {
+      case Some(_) ⇒
+        // The inner query already seeks past the cursor and is limited to one page
+        val sql =
+          s"""    SELECT c.*
+             |           ${controls.nonEmpty.string(", t.control, t.pos, t.val")}
+             |      FROM (
+             |           $innerSQL
+             |           ) c
+             |$controlsJoin
+             |  ORDER BY c.last_modified_time desc, c.data_id desc
+             |""".stripMargin
+
+        (sql, parts :+ controlsPart)
+
+      case None ⇒
+        // Order by row number so that the rows for a given document are contiguous
+        val sql =
+          s"""    SELECT c.*
+             |           ${controls.nonEmpty.string(", t.control, t.pos, t.val")}
+             |      FROM (
+             |           $innerSQL
+             |           ) c
+             |$controlsJoin
+             |     WHERE row_number
+             |           BETWEEN ?
+             |           AND     ?
+             |  ORDER BY row_number
+             |""".stripMargin
+
+        // Row numbers are parameters, so the SQL is the same for all the pages
+        val startOffsetZeroBased = (request.pageNumber - 1) * request.pageSize
+        val rowNumbersPart =
+          StatementPart("", List(
+            _.setInt(_, startOffsetZeroBased + 1),
+            _.setInt(_, startOffsetZeroBased + request.pageSize)
+          ))
+
+        (sql, parts :+ controlsPart :+ rowNumbersPart)
+    }
+  }
+
+  private val CountCache = new TimeToLiveCache("cache.fr.search-count", 200)
+
+  // Total counts can be cached for a short time, as counting can be expensive on large tables
+  def cachedCount(request: Request, permissions: Permissions)(count: ⇒ Int): Int = {
+
+    val ttl = FormRunner.properties.getInteger(s"oxf.fr.persistence.${request.provider.name}.search-count-ttl", 0).toLong
+
+    // Everything which influences the count, but not the page requested
+    def key =
+      new InternalCacheKey(
+        "searchCount",
+        List(
+          RelationalUtils.getDataSourceNameFromHeaders,
+          request.copy(pageSize = 0, pageNumber = 0, pageAfter = None),
+          permissions.authorizedBasedOnRole,
+          permissions.authorizedIfUsername,
+          permissions.authorizedIfGroup
+        ).toString
+      )
+
+    if (ttl <= 0)
+      count
+    else
+      CountCache.getOrRead(key, ttl)(count)
+  }
+}
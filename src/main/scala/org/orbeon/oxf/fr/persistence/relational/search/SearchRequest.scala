@@ -17,6 +17,7 @@ import org.orbeon.oxf.fr.persistence.relational.Provider._
 import org.orbeon.oxf.fr.persistence.relational.RelationalUtils.Logger
 import org.orbeon.oxf.fr.persistence.relational.search.adt._
 import org.orbeon.oxf.util.{NetUtils, ScalaUtils}
+import org.orbeon.oxf.webapp.HttpStatusCodeException
 import org.orbeon.oxf.xml.TransformerUtils
 import org.orbeon.saxon.om.DocumentInfo
 import org.orbeon.scaxon.XML._
@@ -50,6 +51,10 @@ trait SearchRequest {
           group          = group,
           pageSize       = searchElement.firstChild("page-size")  .get.stringValue.toInt,
           pageNumber     = searchElement.firstChild("page-number").get.stringValue.toInt,
+          pageAfter      =
+            searchElement.firstChild("page-after")
+              .flatMap(e ⇒ ScalaUtils.trimAllToOpt(e.stringValue))
+              .map(cursor ⇒ PageCursor.decode(cursor).getOrElse(throw HttpStatusCodeException(400))),
           freeTextSearch =
             queryEls
               // Free text is in the first <query>
@@ -17,7 +17,9 @@ import org.orbeon.oxf.util.DateUtils._
 import org.orbeon.oxf.xml.XMLReceiver
 import org.orbeon.scaxon.XML
 import org.orbeon.oxf.fr.persistence.relational.RelationalUtils.Logger
-import org.orbeon.oxf.fr.persistence.relational.search.adt.{Document, Request}
+import org.orbeon.oxf.fr.persistence.relational.search.adt.{Document, PageCursor, Request}
+
+import scala.xml.Text
 
 
 trait SearchResult extends SearchRequest {
@@ -29,9 +31,15 @@ trait SearchResult extends SearchRequest {
     receiver  : XMLReceiver)
   : Unit = {
 
+    // When the page is full, tell the caller where the next page starts, so it doesn't need to use page numbers
+    val nextPageAfterOpt =
+      documents.lastOption
+        .filter(_ ⇒ documents.size == request.pageSize)
+        .map(doc ⇒ Text(PageCursor(doc.metadata.lastModifiedTime, doc.metadata.dataId).encode))
+
     // Produce XML result
     val documentsElem =
-      <documents search-total={count.toString}>{
+      <documents search-total={count.toString} next-page-after={nextPageAfterOpt}>{
         documents.map(doc ⇒
           <document
             created       ={DateTime.print(doc.metadata.created.getTime)}
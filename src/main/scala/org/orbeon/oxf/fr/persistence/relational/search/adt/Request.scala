@@ -13,8 +13,12 @@
  */
 package org.orbeon.oxf.fr.persistence.relational.search.adt
 
+import java.sql.Timestamp
+
 import org.orbeon.oxf.fr.persistence.relational.Provider._
 
+import scala.util.Try
+
 case class Request(
     provider       : Provider,
     app            : String,
@@ -23,11 +27,29 @@ case class Request(
     group          : Option[String],
     pageSize       : Int,
     pageNumber     : Int,
+    pageAfter      : Option[PageCursor],
     columns        : List[Column],
     drafts         : Drafts,
     freeTextSearch : Option[String]
   )
 
+  // Position after which to return the next page, so deep pages don't require counting rows from the start
+  case class PageCursor(
+    lastModifiedTime : Timestamp,
+    dataId           : Int
+  ) {
+    def encode = s"$lastModifiedTime|$dataId"
+  }
+
+  object PageCursor {
+    def decode(s: String): Option[PageCursor] =
+      s.lastIndexOf('|') match {
+        case -1    ⇒ None
+        case index ⇒
+          Try(PageCursor(Timestamp.valueOf(s.substring(0, index)), s.substring(index + 1).toInt)).toOption
+      }
+  }
+
   case class Column(
     path           : String,
     filterWith     : Option[String]
@@ -25,15 +25,20 @@ object commonPart  {
     StatementPart(
       sql = {
 
+        // With a cursor, the page is obtained by seeking past the cursor, so rows don't need to be numbered
+        val numberRows = request.pageAfter.isEmpty
+
         val rowNumCol =
-          if (request.provider == MySQL)
+          if (! numberRows)
+            ""
+          else if (request.provider == MySQL)
             // MySQL lacks row_number, see http://stackoverflow.com/a/1895127/5295
-            "@rownum := @rownum + 1 row_number"
+            ", @rownum := @rownum + 1 row_number"
           else
-            "row_number() over (order by c.last_modified_time desc) row_number"
+            ", row_number() over (order by c.last_modified_time desc, c.data_id desc) row_number"
 
         val mySqlRowNumTable =
-          (request.provider == MySQL).string(", (select @rownum := 0) r")
+          (numberRows && request.provider == MySQL).string(", (select @rownum := 0) r")
         val columnFilterTables =
           request.columns
             .filter(_.filterWith.nonEmpty)
@@ -50,7 +55,7 @@ object commonPart  {
             |           c.last_modified_time,
             |           c.last_modified_by,
             |           c.username,
-            |           c.groupname,
+            |           c.groupname
             |           $rowNumCol
             |      FROM orbeon_i_current c
             |           $mySqlRowNumTable
@@ -13,27 +13,45 @@
  */
 package org.orbeon.oxf.fr.persistence.relational.search.part
 
+import java.sql.Connection
+
 import org.orbeon.oxf.fr.persistence.relational.Provider
 import org.orbeon.oxf.fr.persistence.relational.Statement._
+import org.orbeon.oxf.fr.persistence.relational.index.FullTextIndex
 import org.orbeon.oxf.fr.persistence.relational.search.adt.Request
 
 object freeTextFilterPart {
 
-  def apply(request: Request): StatementPart =
+  def apply(request: Request, connection: Connection): StatementPart =
     request.freeTextSearch match {
 
       case None ⇒
         NilPart
 
       case Some(freeTextSearch) ⇒
+
+        // When the full text index can tell, it returns a superset of the documents matching, so the database only
+        // needs to check those, instead of scanning the data of all the documents, and none can match without any
+        val candidatesOpt =
+          FullTextIndex.findCandidates(request.provider, connection, request.app, request.form, freeTextSearch) map (inListValues(_))
+
+        val candidatesSql =
+          candidatesOpt match {
+            case None                                   ⇒ ""
+            case Some(candidates) if candidates.isEmpty ⇒ "AND 1 = 0"
+            case Some(candidates)                       ⇒ s"AND c.data_id IN (${inListPlaceholders(candidates)})"
+          }
+
         StatementPart(
           sql =
             s"""|AND d.id = c.data_id
+                |$candidatesSql
                 |AND ${Provider.xmlContains(request.provider)}
                 |""".stripMargin,
           setters = {
             val param = Provider.xmlContainsParam(request.provider, freeTextSearch)
-            List(_.setString(_, param))
+            candidatesOpt.toList.flatten.map(dataId ⇒ (_.setInt(_, dataId)): Setter) :+
+              ((_.setString(_, param)): Setter)
           }
         )
 
@@ -21,9 +21,9 @@ object mySqlOrderForRowNumPart {
 
   def apply(request: Request) =
     request.provider match {
-      case MySQL ⇒
+      case MySQL if request.pageAfter.isEmpty ⇒
         StatementPart(
-          sql     = "ORDER BY c.last_modified_time desc",
+          sql     = "ORDER BY c.last_modified_time desc, c.data_id desc",
           setters = Nil
         )
       case _ ⇒ NilPart
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.persistence.relational.search.part
+
+import org.orbeon.oxf.fr.persistence.relational.Statement._
+import org.orbeon.oxf.fr.persistence.relational.search.adt.Request
+
+object pageAfterPart {
+
+  // Seek past the last document of the previous page, in the `last_modified_time desc, data_id desc` order, and only
+  // return one page, so the database can stop reading after the page instead of numbering all the following rows
+  // NOTE: Must come last in the query, as it includes the `ORDER BY` and `LIMIT` clauses
+  def apply(request: Request) =
+    request.pageAfter match {
+      case None ⇒
+        NilPart
+      case Some(cursor) ⇒
+        StatementPart(
+          sql =
+            """|AND (
+               |      c.last_modified_time < ? OR
+               |      (c.last_modified_time = ? AND c.data_id < ?)
+               |    )
+               |ORDER BY c.last_modified_time desc, c.data_id desc
+               |LIMIT ?
+               |""".stripMargin,
+          setters = List(
+            _.setTimestamp(_, cursor.lastModifiedTime),
+            _.setTimestamp(_, cursor.lastModifiedTime),
+            _.setInt      (_, cursor.dataId),
+            _.setInt      (_, request.pageSize)
+          )
+        )
+    }
+}
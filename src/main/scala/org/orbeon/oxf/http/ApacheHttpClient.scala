@@ -16,12 +16,14 @@ package org.orbeon.oxf.http
 import java.io.IOException
 import java.net.{CookieStore ⇒ _, _}
 import java.security.KeyStore
+import java.util.concurrent.{ConcurrentHashMap, Executors, ThreadFactory, TimeUnit}
 import javax.net.ssl.SSLContext
 
 import jcifs.ntlmssp.{Type1Message, Type2Message, Type3Message}
 import jcifs.util.Base64
 import org.apache.http.auth._
 import org.apache.http.client.methods._
+import org.apache.http.client.params.HttpClientParams
 import org.apache.http.client.protocol.{ClientContext, RequestAcceptEncoding, ResponseContentEncoding}
 import org.apache.http.client.{CookieStore, CredentialsProvider}
 import org.apache.http.conn.routing.{HttpRoute, HttpRoutePlanner}
@@ -32,13 +34,18 @@ import org.apache.http.impl.auth.{BasicScheme, NTLMEngine, NTLMEngineException,
 import org.apache.http.impl.client.{BasicCredentialsProvider, DefaultHttpClient}
 import org.apache.http.impl.conn.PoolingClientConnectionManager
 import org.apache.http.params.{BasicHttpParams, HttpConnectionParams}
+import org.apache.http.pool.PoolStats
 import org.apache.http.protocol.{BasicHttpContext, ExecutionContext, HttpContext}
 import org.apache.http.util.EntityUtils
 import org.apache.http.{ProtocolException ⇒ _, _}
+import org.orbeon.oxf.util.DynamicVariable
 import org.orbeon.oxf.util.ScalaUtils._
 
+import scala.collection.JavaConverters._
+
 class ApacheHttpClient(settings: HttpClientSettings) extends HttpClient {
 
+  import ApacheHttpClient._
   import Private._
 
   def connect(
@@ -103,6 +110,12 @@ class ApacheHttpClient(settings: HttpClientSettings) extends HttpClient {
         case TRACE   ⇒ new HttpTrace(uri)
       }
 
+    // Shorter timeouts asked for by the caller, so that a slow service fails early instead of holding the caller
+    socketTimeout.value foreach { timeout ⇒
+      HttpConnectionParams.setConnectionTimeout(requestMethod.getParams, timeout)
+      HttpConnectionParams.setSoTimeout(requestMethod.getParams, timeout)
+    }
+
     val skipAuthorizationHeader = credentials.isDefined
 
     // Set all headers
@@ -153,6 +166,12 @@ class ApacheHttpClient(settings: HttpClientSettings) extends HttpClient {
 
     val response = httpClient.execute(requestMethod, httpContext)
 
+    // Remember the route so that statistics can be reported per route
+    httpContext.getAttribute(ClientContext.ROUTE) match {
+      case route: HttpRoute if usedRoutes.size < MaxReportedRoutes ⇒ usedRoutes.putIfAbsent(route, java.lang.Boolean.TRUE)
+      case _                                                       ⇒
+    }
+
     new HttpResponse {
 
       lazy val statusCode =
@@ -179,16 +198,33 @@ class ApacheHttpClient(settings: HttpClientSettings) extends HttpClient {
     }
   }
 
-  def shutdown() = connectionManager.shutdown()
+  def shutdown() = {
+    connectionReaper.shutdownNow()
+    connectionManager.shutdown()
+  }
+
   def usingProxy = proxyHost.isDefined
 
+  // Snapshot of the connection pool, in total and for each route with connections
+  def statistics: HttpPoolStatistics = {
+
+    def fromPoolStats(stats: PoolStats) =
+      HttpRouteStatistics(stats.getLeased, stats.getPending, stats.getAvailable, stats.getMax)
+
+    HttpPoolStatistics(
+      total  = fromPoolStats(connectionManager.getTotalStats),
+      routes = usedRoutes.keySet.asScala.map(route ⇒ route.toString → fromPoolStats(connectionManager.getStats(route))).toMap
+    )
+  }
+
   private object Private {
 
     // BasicHttpParams is not thread-safe per the doc
     def newHttpParams =
       new BasicHttpParams |!>
       (HttpConnectionParams.setStaleCheckingEnabled(_, settings.staleCheckingEnabled)) |!>
-      (HttpConnectionParams.setSoTimeout(_, settings.soTimeout))
+      (HttpConnectionParams.setSoTimeout(_, settings.soTimeout))                       |!>
+      (HttpClientParams.setConnectionManagerTimeout(_, settings.poolLeaseTimeout.toLong))
 
     // It seems that credentials and state are not thread-safe, so create every time
     def newProxyAuthState = proxyCredentials map {
@@ -257,10 +293,50 @@ class ApacheHttpClient(settings: HttpClientSettings) extends HttpClient {
 
       schemeRegistry.register(new Scheme("https", 443, sslSocketFactory))
 
-      // Pooling connection manager with limits removed
+      // Pooling connection manager with bounded limits, so that a slow or unresponsive service can't cause an
+      // unbounded number of sockets and threads to pile up: when the pool is exhausted, callers wait for at most
+      // `poolLeaseTimeout` ms (see `newHttpParams`) and then fail with a `ConnectionPoolTimeoutException`
       new PoolingClientConnectionManager(schemeRegistry) |!>
-        (_.setMaxTotal(Integer.MAX_VALUE))               |!>
-        (_.setDefaultMaxPerRoute(Integer.MAX_VALUE))
+        (_.setMaxTotal(settings.poolMaxTotal))           |!>
+        (_.setDefaultMaxPerRoute(settings.poolMaxPerRoute))
+    }
+
+    // Routes with connections, used as a set, which the reaper removes once they have no connections left
+    val usedRoutes = new ConcurrentHashMap[HttpRoute, java.lang.Boolean]
+
+    def removeUnusedRoutes(): Unit =
+      for (route ← usedRoutes.keySet.asScala) {
+        val stats = connectionManager.getStats(route)
+        if (stats.getLeased == 0 && stats.getPending == 0 && stats.getAvailable == 0)
+          usedRoutes.remove(route)
+      }
+
+    // Close expired connections and connections idle for too long in the background, so that we don't hand out
+    // connections which the server has already closed and we don't keep sockets open forever
+    val connectionReaper = {
+
+      val executor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+          def newThread(r: Runnable) =
+            new Thread(r, "Orbeon HTTP connection reaper") |!> (_.setDaemon(true))
+        })
+
+      executor.scheduleWithFixedDelay(
+        new Runnable {
+          def run() =
+            runQuietly {
+              connectionManager.closeExpiredConnections()
+              if (settings.poolIdleTimeout > 0)
+                connectionManager.closeIdleConnections(settings.poolIdleTimeout.toLong, TimeUnit.MILLISECONDS)
+              removeUnusedRoutes()
+            }
+        },
+        ReaperIntervalMs,
+        ReaperIntervalMs,
+        TimeUnit.MILLISECONDS
+      )
+
+      executor
     }
 
 
@@ -355,3 +431,23 @@ class ApacheHttpClient(settings: HttpClientSettings) extends HttpClient {
     }
   }
 }
+
+object ApacheHttpClient {
+
+  val ReaperIntervalMs = 5000L
+
+  private val socketTimeout = new DynamicVariable[Int](isInheritable = false)
+
+  // Use the given connect and socket timeout for requests made by `body` on the current thread
+  def withSocketTimeout[T](timeoutMs: Int)(body: ⇒ T): T =
+    socketTimeout.withValue(timeoutMs)(body)
+
+  // Routes reported in statistics, in case many hosts are accessed at the same time
+  val MaxReportedRoutes = 100
+}
+
+case class HttpRouteStatistics(leased: Int, pending: Int, available: Int, max: Int)
+
+case class HttpPoolStatistics(total: HttpRouteStatistics, routes: Map[String, HttpRouteStatistics]) {
+  def jRoutes = routes.asJava
+}
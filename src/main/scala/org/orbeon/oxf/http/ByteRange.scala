@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.http
+
+import scala.util.Try
+
+// Result of evaluating a `Range` request header against a resource of known length
+sealed trait ByteRange
+
+object ByteRange {
+
+  // Serve the whole content with a 200, e.g. no header, a malformed header, or multiple ranges
+  case object Full extends ByteRange
+
+  // Serve bytes `start` to `end` included with a 206
+  case class Partial(start: Long, end: Long, totalLength: Long) extends ByteRange {
+    def length       = end - start + 1
+    def contentRange = s"bytes $start-$end/$totalLength"
+  }
+
+  // Respond with a 416
+  case class NotSatisfiable(totalLength: Long) extends ByteRange {
+    def contentRange = s"bytes */$totalLength"
+  }
+
+  private val SingleRange = """bytes=(\d*)-(\d*)""".r
+
+  // We only support a single range, which is what clients typically ask for when resuming a download or seeking
+  def apply(rangeHeader: Option[String], totalLength: Long): ByteRange = {
+
+    // Outer `None` if malformed, inner `None` if absent
+    def parse(s: String): Option[Option[Long]] =
+      if (s.isEmpty) Some(None) else Try(s.toLong).toOption map (Some(_))
+
+    rangeHeader map (_.trim) match {
+      case Some(SingleRange(first, last)) ⇒
+        (parse(first), parse(last)) match {
+          case (Some(Some(start)), Some(endOpt)) ⇒
+            if (endOpt exists (_ < start))
+              Full
+            else if (start >= totalLength)
+              NotSatisfiable(totalLength)
+            else
+              Partial(start, endOpt map (_ min (totalLength - 1)) getOrElse (totalLength - 1), totalLength)
+          case (Some(None), Some(Some(suffixLength))) ⇒
+            if (suffixLength == 0 || totalLength == 0)
+              NotSatisfiable(totalLength)
+            else
+              Partial((totalLength - suffixLength) max 0, totalLength - 1, totalLength)
+          case _ ⇒
+            Full
+        }
+      case _ ⇒
+        Full
+    }
+  }
+}
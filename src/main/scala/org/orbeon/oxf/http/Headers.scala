@@ -31,6 +31,7 @@ object Headers {
   val LastModified        = "Last-Modified"
   val Authorization       = "Authorization"
   val Location            = "Location"
+  val RetryAfter          = "Retry-After"
   val OrbeonClient        = "Orbeon-Client"
 
   val OrbeonTokenLower    = OrbeonToken.toLowerCase
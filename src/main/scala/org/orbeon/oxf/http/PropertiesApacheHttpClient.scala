@@ -43,7 +43,12 @@ object PropertiesConnectionSettings {
       proxyUsername        = Option(props.getString(ProxyUsernameProperty)),
       proxyPassword        = Option(props.getString(ProxyPasswordProperty)),
       proxyNTLMHost        = Option(props.getString(ProxyNTLMHostProperty)),
-      proxyNTLMDomain      = Option(props.getString(ProxyNTLMDomainProperty))
+      proxyNTLMDomain      = Option(props.getString(ProxyNTLMDomainProperty)),
+
+      poolMaxTotal         = props.getInteger(PoolMaxTotalProperty, PoolMaxTotalDefault).toInt,
+      poolMaxPerRoute      = props.getInteger(PoolMaxPerRouteProperty, PoolMaxPerRouteDefault).toInt,
+      poolLeaseTimeout     = props.getInteger(PoolLeaseTimeoutProperty, PoolLeaseTimeoutDefault).toInt,
+      poolIdleTimeout      = props.getInteger(PoolIdleTimeoutProperty, PoolIdleTimeoutDefault).toInt
     )
   }
 }
\ No newline at end of file
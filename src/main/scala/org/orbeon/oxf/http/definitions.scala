@@ -105,7 +105,12 @@ case class HttpClientSettings(
   proxyUsername        : Option[String],
   proxyPassword        : Option[String],
   proxyNTLMHost        : Option[String],
-  proxyNTLMDomain      : Option[String]
+  proxyNTLMDomain      : Option[String],
+
+  poolMaxTotal         : Int,
+  poolMaxPerRoute      : Int,
+  poolLeaseTimeout     : Int,
+  poolIdleTimeout      : Int
 )
 
 object HttpClientSettings {
@@ -145,7 +150,12 @@ object HttpClientSettings {
       proxyUsername        = stringParam(ProxyUsernameProperty),
       proxyPassword        = stringParam(ProxyPasswordProperty),
       proxyNTLMHost        = stringParam(ProxyNTLMHostProperty),
-      proxyNTLMDomain      = stringParam(ProxyNTLMDomainProperty)
+      proxyNTLMDomain      = stringParam(ProxyNTLMDomainProperty),
+
+      poolMaxTotal         = intParamWithDefault(PoolMaxTotalProperty, PoolMaxTotalDefault),
+      poolMaxPerRoute      = intParamWithDefault(PoolMaxPerRouteProperty, PoolMaxPerRouteDefault),
+      poolLeaseTimeout     = intParamWithDefault(PoolLeaseTimeoutProperty, PoolLeaseTimeoutDefault),
+      poolIdleTimeout      = intParamWithDefault(PoolIdleTimeoutProperty, PoolIdleTimeoutDefault)
     )
   }
 
@@ -164,12 +174,20 @@ object HttpClientSettings {
   val ProxyPasswordProperty        = "oxf.http.proxy.password"
   val ProxyNTLMHostProperty        = "oxf.http.proxy.ntlm.host"
   val ProxyNTLMDomainProperty      = "oxf.http.proxy.ntlm.domain"
+  val PoolMaxTotalProperty         = "oxf.http.pool.max-total"
+  val PoolMaxPerRouteProperty      = "oxf.http.pool.max-per-route"
+  val PoolLeaseTimeoutProperty     = "oxf.http.pool.lease-timeout"
+  val PoolIdleTimeoutProperty      = "oxf.http.pool.idle-timeout"
 
   val StaleCheckingEnabledDefault  = true
   val SOTimeoutPropertyDefault     = 0
   val ChunkRequestsDefault         = false
   val ProxySSLPropertyDefault      = false
   val SSLHostnameVerifierDefault   = "strict"
+  val PoolMaxTotalDefault          = 1000
+  val PoolMaxPerRouteDefault       = 200
+  val PoolLeaseTimeoutDefault      = 30000
+  val PoolIdleTimeoutDefault       = 60000
 }
 
 case class Credentials(username: String, password: Option[String], preemptiveAuth: Boolean, domain: Option[String]) {
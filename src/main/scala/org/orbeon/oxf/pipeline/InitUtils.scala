@@ -40,6 +40,7 @@ import scala.util.control.NonFatal
 object InitUtils {
 
   private val CacheSizeProperty            = "oxf.cache.size"
+  private val CacheMaxWeightProperty       = "oxf.cache.max-weight"
   private val ProcessorsProperty           = "oxf.pipeline.processors"
   private val DeprecatedProcessorsProperty = "oxf.prologue"
   private val DefaultProcessors            = "oxf:/processors.xml"
@@ -79,6 +80,12 @@ object InitUtils {
       val cacheMaxSize = Properties.instance.getPropertySet.getInteger(CacheSizeProperty)
       if (cacheMaxSize ne null) ObjectCache.instance.setMaxSize(cacheMaxSize)
 
+      // Set cache weight, a long as it is a number of bytes
+      Properties.instance.getPropertySet.getObject(CacheMaxWeightProperty) match {
+        case cacheMaxWeight: Number ⇒ ObjectCache.instance.setMaxWeight(cacheMaxWeight.longValue)
+        case _ ⇒
+      }
+
       // Start execution
       processor.reset(pipelineContext)
       processor.start(pipelineContext)
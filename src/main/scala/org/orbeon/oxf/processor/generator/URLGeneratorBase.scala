@@ -37,14 +37,29 @@ object URLGeneratorBase {
     ScalaUtils.combineValues[String, String, Array](headerPairs).toMap
   }
 
-  def setIfModifiedIfNeeded(
+  def setConditionalHeadersIfNeeded(
     headersOrNull      : Map[String, Array[String]],
-    lastModifiedOrNull : jl.Long
+    lastModifiedOrNull : jl.Long,
+    eTagOrNull         : String
   ): ju.Map[String, Array[String]] = {
 
     val headersOrEmpty  = Option(headersOrNull) getOrElse Map.empty[String, Array[String]]
-    val newHeaderAsList = Option(lastModifiedOrNull).map(lastModified ⇒ "If-Modified-Since" → Array(DateUtils.RFC1123Date.print(lastModified))).to[List]
+    val ifModifiedSince = Option(lastModifiedOrNull).map(lastModified ⇒ "If-Modified-Since" → Array(DateUtils.RFC1123Date.print(lastModified))).to[List]
+    val ifNoneMatch     = Option(eTagOrNull).map(eTag ⇒ "If-None-Match" → Array(eTag)).to[List]
 
-    headersOrEmpty ++ newHeaderAsList
+    headersOrEmpty ++ ifModifiedSince ++ ifNoneMatch
   }.asJava
+
+  private val MaxAgeRE = """max-age\s*=\s*"?(\d+)"?""".r
+
+  // Time until which a response can be used without revalidation, based on `Cache-Control: max-age`
+  def findExpirationOrNull(cacheControlValues: List[String], now: Long): jl.Long = {
+
+    val directives = cacheControlValues flatMap (_.split(',')) map (_.trim.toLowerCase)
+
+    if (directives exists Set("no-cache", "no-store"))
+      null
+    else
+      directives collectFirst { case MaxAgeRE(seconds) ⇒ jl.Long.valueOf(now + seconds.toLong * 1000) } orNull
+  }
 }
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pdf
+
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.http.Headers
+import org.orbeon.oxf.util.{DynamicVariable, LoggerFactory, NetUtils}
+import org.orbeon.oxf.webapp.HttpStatusCodeException
+
+import scala.collection.mutable
+
+case class PDFRenderingStatistics(
+  running         : Int,
+  queued          : Int,
+  rendered        : Long,
+  failed          : Long,
+  rejected        : Long,
+  totalWaitMs     : Long,
+  maxWaitMs       : Long,
+  totalRenderMs   : Long
+)
+
+// Bound the number of PDFs rendered at the same time
+//
+// Rendering needs the pipeline and external contexts of the current request, which are thread-bound, so instead of
+// handing renders to separate threads, request threads wait for one of `parallelism` permits. At most `queueSize`
+// renders wait at a time, each for at most `queueTimeout` ms, after which we respond with a 503 so that clients can
+// retry later instead of piling up on the server, with a `Retry-After` of `queueTimeout` for interactive renders.
+// Interactive renders are always let in before batch renders.
+//
+// The limits are by-name so that changes to the properties apply without a restart.
+class PDFRenderingQueue(parallelism: ⇒ Int, queueSize: ⇒ Int, queueTimeout: ⇒ Long) {
+
+  import PDFRenderingQueue._
+
+  // Neither the priority nor the permit must be inherited by threads created during a render, or such threads would
+  // skip the limit
+  private val currentPriority = new DynamicVariable[Priority](isInheritable = false)
+  private val holdsPermit     = new DynamicVariable[Unit](isInheritable = false)
+
+  // Renders started within `body` on this thread wait behind interactive renders
+  def withBatchPriority[T](body: ⇒ T): T =
+    currentPriority.withValue(Batch)(body)
+
+  // All state below is guarded by `lock`
+  private val lock              = new AnyRef
+  private var running           = 0
+  private val interactiveQueue  = mutable.Queue[AnyRef]()
+  private val batchQueue        = mutable.Queue[AnyRef]()
+
+  private var rendered          = 0L
+  private var failed            = 0L
+  private var rejected          = 0L
+  private var totalWaitMs       = 0L
+  private var maxWaitMs         = 0L
+  private var totalRenderMs     = 0L
+
+  def statistics = lock.synchronized {
+    PDFRenderingStatistics(
+      running       = running,
+      queued        = interactiveQueue.size + batchQueue.size,
+      rendered      = rendered,
+      failed        = failed,
+      rejected      = rejected,
+      totalWaitMs   = totalWaitMs,
+      maxWaitMs     = maxWaitMs,
+      totalRenderMs = totalRenderMs
+    )
+  }
+
+  // Called with `lock` held
+  private def reject(): Nothing = {
+    rejected += 1
+    logger.warn(s"rejecting PDF rendering: $statistics")
+
+    // A batch responds to its own caller, so only the response of an interactive render is about the render
+    if (! (currentPriority.value contains Batch))
+      Option(NetUtils.getExternalContext) foreach
+        (_.getResponse.setHeader(Headers.RetryAfter, ((queueTimeout + 999) / 1000 max 1).toString))
+
+    throw HttpStatusCodeException(503)
+  }
+
+  // Whether the render identified by `ticket` is next in line and a permit is available
+  private def isNext(ticket: AnyRef) =
+    running < (parallelism max 1) && (
+      interactiveQueue.headOption.exists(_ eq ticket) ||
+      interactiveQueue.isEmpty && batchQueue.headOption.exists(_ eq ticket)
+    )
+
+  private def acquire(): Unit = lock.synchronized {
+
+    val queue = if (currentPriority.value contains Batch) batchQueue else interactiveQueue
+
+    if (running >= (parallelism max 1) && interactiveQueue.size + batchQueue.size >= (queueSize max 0))
+      reject()
+
+    val ticket    = new AnyRef
+    val startTime = System.currentTimeMillis
+    val deadline  = startTime + queueTimeout
+
+    queue += ticket
+    try {
+      while (! isNext(ticket)) {
+        val remaining = deadline - System.currentTimeMillis
+        if (remaining <= 0)
+          reject()
+        lock.wait(remaining)
+      }
+      running += 1
+    } finally {
+      queue.dequeueFirst(_ eq ticket)
+      // Whether we got a permit or not, the head of the queue has changed
+      lock.notifyAll()
+    }
+
+    val waitMs = System.currentTimeMillis - startTime
+    totalWaitMs += waitMs
+    maxWaitMs = maxWaitMs max waitMs
+  }
+
+  private def release(succeeded: Boolean, renderMs: Long): Unit = lock.synchronized {
+    running -= 1
+    if (succeeded) {
+      rendered      += 1
+      totalRenderMs += renderMs
+    } else
+      failed += 1
+    lock.notifyAll()
+  }
+
+  // A render nested within another one on the same thread, e.g. through a pipeline input, reuses the outer permit
+  def withRenderingPermit[T](body: ⇒ T): T =
+    if (holdsPermit.value.isDefined)
+      body
+    else {
+      acquire()
+      val startTime = System.currentTimeMillis
+      var succeeded = false
+      try {
+        val result = holdsPermit.withValue(())(body)
+        succeeded = true
+        result
+      } finally {
+        release(succeeded, System.currentTimeMillis - startTime)
+        if (logger.isDebugEnabled)
+          logger.debug(s"PDF rendering done: $statistics")
+      }
+    }
+}
+
+object PDFRenderingQueue {
+
+  val logger = LoggerFactory.createLogger(classOf[PDFRenderingQueue])
+
+  sealed trait Priority
+  case object Interactive extends Priority
+  case object Batch       extends Priority
+}
+
+object PDFRenderingScheduler {
+
+  private def propertySet = Properties.instance.getPropertySet
+
+  private val Instance =
+    new PDFRenderingQueue(
+      parallelism  = propertySet.getInteger("oxf.pdf.rendering.parallelism", 0).toInt match {
+        case 0 ⇒ Runtime.getRuntime.availableProcessors
+        case n ⇒ n
+      },
+      queueSize    = propertySet.getInteger("oxf.pdf.rendering.queue-size", 50).toInt,
+      queueTimeout = propertySet.getInteger("oxf.pdf.rendering.queue-timeout", 30000).toLong
+    )
+
+  def withBatchPriority[T](body: ⇒ T): T   = Instance.withBatchPriority(body)
+  def withRenderingPermit[T](body: ⇒ T): T = Instance.withRenderingPermit(body)
+  def statistics                            = Instance.statistics
+
+  // For callers in Java
+  def jWithRenderingPermit(runnable: Runnable): Unit =
+    withRenderingPermit(runnable.run())
+}
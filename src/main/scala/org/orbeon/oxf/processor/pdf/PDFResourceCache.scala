@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pdf
+
+import java.io.{File, InputStream}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.{lang ⇒ jl}
+
+import org.apache.commons.io.input.CountingInputStream
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache, Weighable}
+import org.orbeon.oxf.util.ConnectionResult
+import org.xhtmlrenderer.extend.FSImage
+import org.xhtmlrenderer.pdf.ITextFSImage
+import org.xhtmlrenderer.resource.ImageResource
+
+// Connect to and decode an image on behalf of a renderer
+trait PDFImageLoader {
+  def connect(ifModifiedSinceOrNull: jl.Long): ConnectionResult
+  def decode(is: InputStream): ImageResource
+}
+
+case class PDFImageStatistics(hits: Long, misses: Long, bytesSaved: Long, timeSavedMs: Long)
+
+// Resources shared by all PDF renderers in the process
+//
+// Images are kept decoded and scaled, and are revalidated with a conditional GET each time they are used, so that
+// we don't serve an image to a user who is not allowed to read it, or one which has changed. A `304` saves
+// transferring, spooling and decoding the image.
+//
+// Fonts are parsed and cached by iText itself (`BaseFont.createFont()`), but Flying Saucer keeps font descriptions
+// per renderer in package-private classes, so all we can do is to avoid retrying fonts which fail to load.
+object PDFResourceCache {
+
+  private val ImageCacheName             = "cache.pdf.images"
+  private val ImageCacheDefaultSize      = 500
+  private val ImageCacheDefaultMaxWeight = 50L * 1024 * 1024
+  private val ImageCacheValidity         = jl.Long.valueOf(0L)
+
+  private class CachedImage(
+    val image        : ITextFSImage,
+    val lastModified : Long,
+    val byteLength   : Long,
+    val loadTimeMs   : Long
+  ) extends Weighable {
+    def getApproximateSize =
+      byteLength + (Option(image.getImage.getRawData) map (_.length.toLong) getOrElse 0L)
+  }
+
+  private val Hits        = new AtomicLong
+  private val Misses      = new AtomicLong
+  private val BytesSaved  = new AtomicLong
+  private val TimeSavedMs = new AtomicLong
+
+  def imageStatistics =
+    PDFImageStatistics(Hits.get, Misses.get, BytesSaved.get, TimeSavedMs.get)
+
+  // Each renderer gets its own copy of the image, as renderers scale images in place
+  private def copy(image: ITextFSImage) =
+    image.clone().asInstanceOf[ITextFSImage]
+
+  def getImageResource(resolvedURI: String, loader: PDFImageLoader): ImageResource = {
+
+    val cache     = ObjectCache.instance(ImageCacheName, ImageCacheDefaultSize, ImageCacheDefaultMaxWeight)
+    val key       = new InternalCacheKey("pdfImage", resolvedURI)
+    val cachedOpt = Option(cache.findValid(key, ImageCacheValidity).asInstanceOf[CachedImage])
+    val startTime = System.currentTimeMillis
+
+    val cxr = loader.connect(cachedOpt map (c ⇒ jl.Long.valueOf(c.lastModified)) orNull)
+
+    cachedOpt match {
+      case Some(cached) if cxr.statusCode == 304 ⇒
+        cxr.close()
+        Hits.incrementAndGet()
+        BytesSaved.addAndGet(cached.byteLength)
+        TimeSavedMs.addAndGet((cached.loadTimeMs - (System.currentTimeMillis - startTime)) max 0)
+        new ImageResource(resolvedURI, copy(cached.image): FSImage)
+      case _ ⇒
+        Misses.incrementAndGet()
+        val (imageResource, byteLength) =
+          ConnectionResult.withSuccessConnection(cxr, closeOnSuccess = true) { is ⇒
+            val countingInputStream = new CountingInputStream(is)
+            val imageResource       = loader.decode(countingInputStream)
+            (imageResource, countingInputStream.getByteCount)
+          }
+
+        // Only cache what we'll be able to revalidate. Otherwise, we keep what we have, if anything, as the next
+        // conditional GET still tells us whether it is current.
+        (imageResource.getImage, cxr.lastModified) match {
+          case (image: ITextFSImage, Some(lastModified)) ⇒
+            cache.add(
+              key,
+              ImageCacheValidity,
+              new CachedImage(copy(image), lastModified, byteLength, System.currentTimeMillis - startTime)
+            )
+          case _ ⇒
+        }
+
+        imageResource
+    }
+  }
+
+  // Font paths which failed to load, with the modification time of the file when they did
+  private val FailedFonts = new ConcurrentHashMap[String, jl.Long]
+
+  def shouldLoadFont(path: String): Boolean =
+    Option(FailedFonts.get(path)) forall (_.longValue != new File(path).lastModified)
+
+  def fontFailed(path: String): Unit =
+    FailedFonts.put(path, new File(path).lastModified)
+}
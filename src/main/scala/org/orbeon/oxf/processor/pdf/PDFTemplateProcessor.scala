@@ -16,6 +16,7 @@ package org.orbeon.oxf.processor.pdf
 import java.io.{ByteArrayOutputStream, OutputStream}
 import java.net.URI
 import java.net.URLDecoder.{decode ⇒ decodeURL}
+import java.security.DigestOutputStream
 import java.util.{List ⇒ JList}
 
 import com.lowagie.text.{Image, Rectangle}
@@ -23,6 +24,7 @@ import com.lowagie.text.pdf._
 import org.orbeon.dom.Element
 import org.orbeon.dom.saxon.DocumentWrapper
 import org.orbeon.exception.OrbeonFormatter
+import org.orbeon.oxf.cache.{CacheKey, InternalCacheKey, ObjectCache, Weighable}
 import org.orbeon.oxf.http.GET
 import org.orbeon.oxf.pipeline.api.{FunctionLibrary, PipelineContext}
 import org.orbeon.oxf.processor.generator.URLGeneratorBase
@@ -65,88 +67,108 @@ class PDFTemplateProcessor extends HttpBinarySerializer with Logging {// TODO: H
     val instanceDocument = readInputAsDOM4J(pipelineContext, input)
     val instanceDocumentInfo = new DocumentWrapper(instanceDocument, null, XPath.GlobalConfiguration)
 
-    // Create PDF reader
-    val templateReader = {
+    // Reading the template, which might involve I/O, is done before waiting for a rendering permit, so permits are
+    // only held while rendering
+    val template = {
       val templateHref = templateRoot.attributeValue("href")
       Option(ProcessorImpl.getProcessorInputSchemeInputName(templateHref)) match {
         case Some(inputName) ⇒
-          val os = new ByteArrayOutputStream
-          readInputAsSAX(pipelineContext, inputName, new BinaryTextXMLReceiver(os))
-          new PdfReader(os.toByteArray)
+          cachedTemplate(
+            keyValidityOpt = Option(getInputKeyValidity(pipelineContext, inputName)) collect {
+              case kv if (kv.key ne null) && (kv.validity ne null) ⇒ kv.key → kv.validity
+            },
+            writeTemplate  = os ⇒ readInputAsSAX(pipelineContext, inputName, new BinaryTextXMLReceiver(os))
+          )
         case None ⇒
-          new PdfReader(URLFactory.createURL(templateHref))
+          cachedTemplate(
+            keyValidityOpt = NetUtils.getLastModifiedIfFast(templateHref) match {
+              case lastModified if lastModified > 0 ⇒
+                Some(new InternalCacheKey("pdfTemplateURL", templateHref) → java.lang.Long.valueOf(lastModified))
+              case _ ⇒
+                None
+            },
+            writeTemplate  = os ⇒ copyStream(URLFactory.createURL(templateHref).openStream, os)
+          )
       }
     }
 
-    useAndClose(new PdfStamper(templateReader, outputStream)) { stamper ⇒
-
-      stamper.setFormFlattening(true)
-
-      // Initial context
-      val initialContext =
-        ElementContext(
-          pipelineContext = pipelineContext,
-          logger          = new IndentedLogger(Logger),
-          contentByte     = null,
-          acroFields      = stamper.getAcroFields,
-          pageWidth       = 0,
-          pageHeight      = 0,
-          pageNumber      = -1,
-          variables       = Map(),
-          element         = configRoot,
-          contextSeq      = Seq(instanceDocumentInfo),
-          contextPosition = 1,
-          offsetX         = 0,
-          offsetY         = 0,
-          fontFamily      = "Courier",
-          fontSize        = 14,
-          fontPitch       = 15.9f
-        )
-
-      // Add substitution fonts for Acrobat fields
-      for (element ← configRoot.elements("substitution-font").asScala) {
-        val fontFamilyOrPath = decodeURL(element.attributeValue("font-family"), "utf-8")
-        val embed            = element.attributeValue("embed") == "true"
-
-        try initialContext.acroFields.addSubstitutionFont(createFont(fontFamilyOrPath, embed))
-        catch {
-          case NonFatal(t) ⇒
-            warn("could not load font", Seq(
-              "font-family" → fontFamilyOrPath,
-              "embed"       → embed.toString,
-              "throwable"   → OrbeonFormatter.format(t)))(initialContext.logger)
+    // Wait for our turn before using the CPU and memory needed for the rendering
+    PDFRenderingScheduler.withRenderingPermit {
+
+      // Partial read of the template: objects are parsed only as the stamper needs them
+      val templateReader = new PdfReader(new RandomAccessFileOrArray(template.bytes), null)
+
+      useAndClose(new PdfStamper(templateReader, outputStream)) { stamper ⇒
+
+        stamper.setFormFlattening(true)
+
+        // Initial context
+        val initialContext =
+          ElementContext(
+            pipelineContext = pipelineContext,
+            logger          = new IndentedLogger(Logger),
+            contentByte     = null,
+            acroFields      = stamper.getAcroFields,
+            fieldPages      = template.fieldPages,
+            pageWidth       = 0,
+            pageHeight      = 0,
+            pageNumber      = -1,
+            variables       = Map(),
+            element         = configRoot,
+            contextSeq      = Seq(instanceDocumentInfo),
+            contextPosition = 1,
+            offsetX         = 0,
+            offsetY         = 0,
+            fontFamily      = "Courier",
+            fontSize        = 14,
+            fontPitch       = 15.9f
+          )
+
+        // Add substitution fonts for Acrobat fields
+        for (element ← configRoot.elements("substitution-font").asScala) {
+          val fontFamilyOrPath = decodeURL(element.attributeValue("font-family"), "utf-8")
+          val embed            = element.attributeValue("embed") == "true"
+
+          try initialContext.acroFields.addSubstitutionFont(createFont(fontFamilyOrPath, embed))
+          catch {
+            case NonFatal(t) ⇒
+              warn("could not load font", Seq(
+                "font-family" → fontFamilyOrPath,
+                "embed"       → embed.toString,
+                "throwable"   → OrbeonFormatter.format(t)))(initialContext.logger)
+          }
         }
-      }
 
-      // Iterate through template pages
-      for (pageNumber ← 1 to templateReader.getNumberOfPages) {
+        // Iterate through template pages
+        for (pageNumber ← 1 to templateReader.getNumberOfPages) {
 
-        val pageSize = templateReader.getPageSize(pageNumber)
+          val pageSize = templateReader.getPageSize(pageNumber)
 
-        val variables = Map[String, ValueRepresentation](
-          "page-count"  → new Int64Value(templateReader.getNumberOfPages),
-          "page-number" → new Int64Value(pageNumber),
-          "page-width"  → new FloatValue(pageSize.getWidth),
-          "page-height" → new FloatValue(pageSize.getHeight)
-        )
+          val variables = Map[String, ValueRepresentation](
+            "page-count"  → new Int64Value(templateReader.getNumberOfPages),
+            "page-number" → new Int64Value(pageNumber),
+            "page-width"  → new FloatValue(pageSize.getWidth),
+            "page-height" → new FloatValue(pageSize.getHeight)
+          )
 
-        // Context for the page
-        val pageContext = initialContext.copy(
-          contentByte = stamper.getOverContent(pageNumber),
-          pageWidth   = pageSize.getWidth,
-          pageHeight  = pageSize.getHeight,
-          pageNumber  = pageNumber,
-          variables   = variables
-        )
+          // Context for the page
+          val pageContext = initialContext.copy(
+            contentByte = stamper.getOverContent(pageNumber),
+            pageWidth   = pageSize.getWidth,
+            pageHeight  = pageSize.getHeight,
+            pageNumber  = pageNumber,
+            variables   = variables
+          )
 
-        handleElements(pageContext, configRoot.elements.asScala)
+          handleElements(pageContext, configRoot.elements.asScala)
 
-        // Handle preview grid (NOTE: This can be heavy in memory)
-        if (templateRoot.attributeValue("show-grid") == "true")
-          stampGrid(pageContext)
-      }
+          // Handle preview grid (NOTE: This can be heavy in memory)
+          if (templateRoot.attributeValue("show-grid") == "true")
+            stampGrid(pageContext)
+        }
 
-      // no document.close() ?
+        // no document.close() ?
+      }
     }
   }
 
@@ -233,7 +255,7 @@ class PDFTemplateProcessor extends HttpBinarySerializer with Logging {// TODO: H
         // Acrobat field
         val fieldName = context.evaluateAsString(fieldNameExpr)
 
-        if (findFieldPage(context.acroFields, fieldName) contains context.pageNumber) {
+        if (context.fieldPages.get(fieldName) contains context.pageNumber) {
           Option(context.acroFields.getFieldItem(fieldName)) foreach { item ⇒
             // Field exists
             val exportValue = Option(context.att("export-value"))
@@ -364,7 +386,7 @@ class PDFTemplateProcessor extends HttpBinarySerializer with Logging {// TODO: H
         // Acrobat field
         val fieldName = context.evaluateAsString(fieldNameStr)
 
-        if (findFieldPage(context.acroFields, fieldName) contains context.pageNumber) {
+        if (context.fieldPages.get(fieldName) contains context.pageNumber) {
           Option(context.acroFields.getFieldPositions(fieldName)) foreach { positions ⇒
 
             val rectangle = new Rectangle(positions(1), positions(2), positions(3), positions(4))
@@ -463,6 +485,7 @@ object PDFTemplateProcessor {
     logger          : IndentedLogger,
     contentByte     : PdfContentByte,
     acroFields      : AcroFields,
+    fieldPages      : Map[String, Int],
     pageWidth       : Float,
     pageHeight      : Float,
     pageNumber      : Int,
@@ -558,8 +581,8 @@ object PDFTemplateProcessor {
     }
   }
 
-  // Create a font
-  def createFont(fontFamilyOrPath: String, embed: Boolean) =
+  // Create a font, which iText caches
+  def createFont(fontFamilyOrPath: String, embed: Boolean): BaseFont =
     BaseFont.createFont(fontFamilyOrPath, findFontEncoding(fontFamilyOrPath), embed)
 
   // PDF built-in fonts
@@ -602,4 +625,57 @@ object PDFTemplateProcessor {
       page = item.getPage(0).intValue
     } yield
       page
-}
\ No newline at end of file
+
+  // Page of each Acrobat field, which is known once the template is parsed
+  def findFieldPages(acroFields: AcroFields): Map[String, Int] =
+    (
+      for {
+        fieldName ← acroFields.getFields.keySet.asScala.iterator collect { case name: String ⇒ name }
+        page      ← findFieldPage(acroFields, fieldName)
+      } yield
+        fieldName → page
+    ).toMap
+
+  // The template, as the same template is typically used for many PDFs
+  case class Template(bytes: Array[Byte], fieldPages: Map[String, Int]) extends Weighable {
+    def getApproximateSize = bytes.length.toLong
+  }
+
+  private val TemplateCacheName             = "cache.pdf.templates"
+  private val TemplateCacheDefaultSize      = 50
+  private val TemplateCacheDefaultMaxWeight = 50L * 1024 * 1024
+  private val TemplateCacheValidity         = java.lang.Long.valueOf(0L)
+
+  // When the key and validity of where the template comes from are known, we only read it again once the validity
+  // changes. Either way, we only keep and parse the first copy of the template we see, identified by its digest.
+  def cachedTemplate(keyValidityOpt: Option[(CacheKey, AnyRef)], writeTemplate: OutputStream ⇒ Unit): Template = {
+
+    val cache = ObjectCache.instance(TemplateCacheName, TemplateCacheDefaultSize, TemplateCacheDefaultMaxWeight)
+
+    def digestKey(digest: String) = new InternalCacheKey("pdfTemplate", digest)
+
+    def findTemplate(digest: String) =
+      Option(cache.findValid(digestKey(digest), TemplateCacheValidity).asInstanceOf[Template])
+
+    def findDigest =
+      keyValidityOpt flatMap { case (key, validity) ⇒ Option(cache.findValid(key, validity).asInstanceOf[String]) }
+
+    findDigest flatMap findTemplate getOrElse {
+
+      val messageDigest = SecureUtils.defaultMessageDigest
+      val os            = new ByteArrayOutputStream
+
+      writeTemplate(new DigestOutputStream(os, messageDigest))
+
+      val digest = SecureUtils.byteArrayToHex(messageDigest.digest)
+
+      keyValidityOpt foreach { case (key, validity) ⇒ cache.add(key, validity, digest) }
+
+      findTemplate(digest) getOrElse {
+        val bytes      = os.toByteArray
+        val fieldPages = findFieldPages(new PdfReader(new RandomAccessFileOrArray(bytes), null).getAcroFields)
+        Template(bytes, fieldPages) |!> (cache.add(digestKey(digest), TemplateCacheValidity, _))
+      }
+    }
+  }
+}
@@ -214,16 +214,14 @@ trait ConnectionState {
   var cookieStoreOpt: Option[CookieStore] = None
 
   def loadHttpState()(implicit logger: IndentedLogger): Unit = {
-    cookieStoreOpt =
-      stateAttributes(createSession = false) flatMap
-      (m ⇒ Option(m.get(HttpCookieStoreAttribute).asInstanceOf[CookieStore]))
+    cookieStoreOpt = findCookieStore(stateScope)
 
     debugStore("loaded HTTP state", "did not load HTTP state")
   }
 
   def saveHttpState()(implicit logger: IndentedLogger): Unit = {
     cookieStoreOpt foreach { cookieStore ⇒
-      stateAttributes(createSession = true) foreach
+      stateAttributes(stateScope, createSession = true) foreach
       (_.put(HttpCookieStoreAttribute, cookieStore))
     }
 
@@ -243,8 +241,22 @@ trait ConnectionState {
           debug(negative)
       }
     }
+}
+
+private object ConnectionState {
+
+  def stateScopeFromProperty = {
+    val propertySet = Properties.instance.getPropertySet
+    val scopeString = propertySet.getString(HttpStateProperty, DefaultStateScope)
+
+    if (AllScopes(scopeString)) scopeString else DefaultStateScope
+  }
+
+  def findCookieStore(stateScope: String) =
+    stateAttributes(stateScope, createSession = false) flatMap
+    (m ⇒ Option(m.get(HttpCookieStoreAttribute).asInstanceOf[CookieStore]))
 
-  private def stateAttributes(createSession: Boolean) = {
+  def stateAttributes(stateScope: String, createSession: Boolean) = {
     val externalContext = NetUtils.getExternalContext
     stateScope match {
       case "request" ⇒
@@ -257,16 +269,6 @@ trait ConnectionState {
         None
     }
   }
-}
-
-private object ConnectionState {
-
-  def stateScopeFromProperty = {
-    val propertySet = Properties.instance.getPropertySet
-    val scopeString = propertySet.getString(HttpStateProperty, DefaultStateScope)
-
-    if (AllScopes(scopeString)) scopeString else DefaultStateScope
-  }
 
   val DefaultStateScope        = "session"
   val HttpStateProperty        = "oxf.http.state"
@@ -365,6 +367,10 @@ object Connection extends Logging {
       pathQuery
   }
 
+  // Whether connections made now would send cookies kept in the HTTP state, see `oxf.http.state`
+  def hasHttpStateCookies =
+    ConnectionState.findCookieStore(ConnectionState.stateScopeFromProperty) exists (! _.getCookies.isEmpty)
+
   // Whether the given method requires a request body
   def requiresRequestBody(httpMethodUpper: String) = Set("POST", "PUT")(httpMethodUpper)
 
@@ -21,7 +21,7 @@ import org.orbeon.oxf.common.Defaults
 import org.orbeon.oxf.http.{Headers ⇒ HttpHeaders, StreamedContent}
 import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.oxf.webapp.HttpStatusCodeException
-import org.orbeon.oxf.xml.{XMLParsing, XMLUtils}
+import org.orbeon.oxf.xml.{SAXStoreInputStream, XMLParsing, XMLUtils}
 
 import scala.util.Try
 import scala.util.control.NonFatal
@@ -127,22 +127,25 @@ object ConnectionResult {
     dontHandleResponse: Boolean = false // TODO: Should be outside of ConnectionResult.
   ): ConnectionResult = {
 
-    val (hasContent, resetInputStream) = {
-
-      val bis =
-        if (content.inputStream.markSupported)
-          content.inputStream
-        else
-          new BufferedInputStream(content.inputStream)
-
-      def hasContent(bis: InputStream) = {
-        bis.mark(1)
-        val result = bis.read != -1
-        bis.reset()
-        result
-      }
+    val (hasContent, resetInputStream) = content.inputStream match {
+      case xml: SAXStoreInputStream ⇒
+        // Don't serialize XML passed in-process just to find out whether there is content
+        (true, xml)
+      case _ ⇒
+        val bis =
+          if (content.inputStream.markSupported)
+            content.inputStream
+          else
+            new BufferedInputStream(content.inputStream)
+
+        def hasContent(bis: InputStream) = {
+          bis.mark(1)
+          val result = bis.read != -1
+          bis.reset()
+          result
+        }
 
-      (hasContent(bis), bis)
+        (hasContent(bis), bis)
     }
 
     ConnectionResult(
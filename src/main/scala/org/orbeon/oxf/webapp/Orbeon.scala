@@ -52,6 +52,9 @@ object Orbeon {
 
     logger.info("Initializing Resource Manager with: " + properties)
     ResourceManagerWrapper.init(properties)
+    context.addListener(new WebAppListener {
+      def webAppDestroyed() = ResourceManagerWrapper.destroy()
+    })
 
     // 2. Initialize properties
     val propertiesURL = {
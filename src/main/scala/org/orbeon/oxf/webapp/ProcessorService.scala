@@ -17,11 +17,12 @@ import java.io.PrintWriter
 import javax.naming.InitialContext
 
 import org.orbeon.exception.OrbeonFormatter
+import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.logging.LifecycleLogger
 import org.orbeon.oxf.pipeline.InitUtils
 import org.orbeon.oxf.pipeline.api.{ExternalContext, PipelineContext, ProcessorDefinition}
 import org.orbeon.oxf.properties.Properties
-import org.orbeon.oxf.util.{DynamicVariable, LoggerFactory}
+import org.orbeon.oxf.util.{DynamicVariable, LoggerFactory, NetUtils}
 import org.orbeon.oxf.webapp.ProcessorService._
 
 import scala.util.control.NonFatal
@@ -132,4 +133,27 @@ object ProcessorService {
     currentProcessorService.withValue(processorService)(thunk)
 
   val currentProcessorService = new DynamicVariable[ProcessorService]
+
+  // What internal requests need, captured on the request thread so that other threads can make internal requests on
+  // behalf of the current request, which must wait for them to complete
+  case class RequestContext(processorService: ProcessorService, externalContext: ExternalContext) {
+    def apply[T](thunk: ⇒ T): T =
+      withProcessorService(processorService) {
+        val pipelineContext = new PipelineContext
+        pipelineContext.setAttribute(PipelineContext.EXTERNAL_CONTEXT, externalContext)
+        var success = false
+        try {
+          val result = thunk
+          success = true
+          result
+        } finally
+          pipelineContext.destroy(success)
+      }
+  }
+
+  def currentRequestContext: RequestContext =
+    RequestContext(
+      currentProcessorService.value getOrElse (throw new OXFException("missing current servlet or portlet")),
+      NetUtils.getExternalContext
+    )
 }
\ No newline at end of file
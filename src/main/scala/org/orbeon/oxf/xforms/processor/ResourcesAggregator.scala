@@ -311,8 +311,9 @@ object ResourcesAggregator extends Logging {
 
         assert(resourcesConfig.head.getResourcePath(false) == resources.head) // set order is tricky so make sure order is kept
 
-        val combinedLastModified = XFormsResourceRewriter.computeCombinedLastModified(resourcesConfig, isMinimal = false)
-        XFormsResourceRewriter.cacheResources(resourcesConfig, path, namespaceOpt, combinedLastModified, isCSS, isMinimal = false)
+        // This also precompresses the resources, so the first request doesn't have to
+        val combinedLastModified = XFormsResourceRewriter.combinedLastModified(path, resourcesConfig, isMinimal = false)
+        XFormsResourceRewriter.findOrCacheCombinedResource(path, resourcesConfig, namespaceOpt, combinedLastModified, isCSS, isMinimal = false)
       }
 
       result
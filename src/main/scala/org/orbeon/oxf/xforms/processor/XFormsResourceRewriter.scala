@@ -17,7 +17,11 @@ package org.orbeon.oxf.xforms.processor
 import org.orbeon.oxf.util._
 import ScalaUtils._
 import java.io._
+import java.nio.file.{Files, StandardCopyOption}
+import java.security.DigestOutputStream
+import java.util.concurrent.ConcurrentHashMap
 import java.util.regex.Matcher
+import java.util.zip.GZIPOutputStream
 import org.orbeon.oxf.common.Version
 import org.orbeon.oxf.controller.PageFlowControllerProcessor
 import org.orbeon.oxf.externalcontext.URLRewriter
@@ -211,6 +215,37 @@ object XFormsResourceRewriter extends Logging {
     if (resources.isEmpty) 0L else resources map lastModified max
   }
 
+  // With versioned resources, resources only change along with the version, and clients already keep them for a
+  // year, so what we find out about a bundle from the filesystem is kept instead of checked again on each request
+  private val versionedLastModified     = new ConcurrentHashMap[String, java.lang.Long]
+  private val versionedCombinedResource = new ConcurrentHashMap[String, Option[CombinedResource]]
+
+  private def versionedOrComputed[T](versioned: ConcurrentHashMap[String, T], bundlePath: String)(compute: ⇒ T): T =
+    if (URLRewriterUtils.isResourcesVersioned)
+      Option(versioned.get(bundlePath)) getOrElse (compute |!> (versioned.put(bundlePath, _)))
+    else
+      compute
+
+  // Last modified of the resources of the bundle served at the given path
+  def combinedLastModified(bundlePath: String, resources: Seq[ResourceConfig], isMinimal: Boolean): Long =
+    versionedOrComputed(versionedLastModified, bundlePath)(
+      java.lang.Long.valueOf(computeCombinedLastModified(resources, isMinimal))
+    ).longValue
+
+  // Cached combined resource for the bundle served at the given path, if it can be cached
+  def findOrCacheCombinedResource(
+    bundlePath          : String,
+    resources           : Seq[ResourceConfig],
+    namespaceOpt        : Option[String],
+    combinedLastModified: Long,
+    isCSS               : Boolean,
+    isMinimal           : Boolean
+  ): Option[CombinedResource] =
+    versionedOrComputed(versionedCombinedResource, bundlePath)(
+      cacheResources(resources, bundlePath, namespaceOpt, combinedLastModified, isCSS, isMinimal) map
+        findOrCreateCombinedResource
+    )
+
   def cacheResources(
     resources           : Seq[ResourceConfig],
     resourcePath        : String,
@@ -235,17 +270,14 @@ object XFormsResourceRewriter extends Logging {
           if (resourceLastModified < combinedLastModified) {
             // Resource is out of date, generate
             debug("cached combined resources out of date, saving", logParameters)
-            val fos = new FileOutputStream(resourceFile)
-            generateAndClose(resources, namespaceOpt, fos, isCSS, isMinimal)(indentedLogger)
+            writeAtomically(resourceFile)(generateAndClose(resources, namespaceOpt, _, isCSS, isMinimal)(indentedLogger))
           } else
             debug("cached combined resources exist and are up-to-date", logParameters)
         } else {
           // Resource doesn't exist, generate
           debug("cached combined resources don't exist, saving", logParameters)
           resourceFile.getParentFile.mkdirs()
-          resourceFile.createNewFile()
-          val fos = new FileOutputStream(resourceFile)
-          generateAndClose(resources, namespaceOpt, fos, isCSS, isMinimal)(indentedLogger)
+          writeAtomically(resourceFile)(generateAndClose(resources, namespaceOpt, _, isCSS, isMinimal)(indentedLogger))
         }
         Some(resourceFile)
       case None ⇒
@@ -253,4 +285,70 @@ object XFormsResourceRewriter extends Logging {
         None
     }
   }
+
+  // Information about a cached combined resource and its precompressed variant
+  case class CombinedResource(
+    file         : File,
+    lastModified : Long,
+    length       : Long,
+    digest       : String,
+    gzipFile     : File,
+    gzipLength   : Long
+  )
+
+  // Combined resources are immutable for a given file modification date, so this is computed once per version
+  private val combinedResources = new ConcurrentHashMap[String, CombinedResource]
+
+  // Return the cached combined resource for the given file, digesting and compressing it if needed
+  def findOrCreateCombinedResource(resourceFile: File): CombinedResource = {
+
+    val lastModified = resourceFile.lastModified
+
+    Option(combinedResources.get(resourceFile.getPath)) filter
+      (c ⇒ c.lastModified == lastModified && c.gzipFile.isFile) getOrElse {
+
+      implicit val indentedLogger = XFormsResourceServer.indentedLogger
+      debug("digesting and compressing cached combined resources", Seq("path" → resourceFile.getPath))
+
+      val gzipFile      = new File(resourceFile.getPath + ".gz")
+      val messageDigest = SecureUtils.defaultMessageDigest
+
+      writeAtomically(gzipFile) { os ⇒
+        useAndClose(new GZIPOutputStream(os)) { gzipOS ⇒
+          useAndClose(new FileInputStream(resourceFile)) { is ⇒
+            copyStream(is, new DigestOutputStream(gzipOS, messageDigest))
+          }
+        }
+      }
+
+      val combinedResource =
+        CombinedResource(
+          file         = resourceFile,
+          lastModified = lastModified,
+          length       = resourceFile.length,
+          digest       = SecureUtils.byteArrayToHex(messageDigest.digest),
+          gzipFile     = gzipFile,
+          gzipLength   = gzipFile.length
+        )
+
+      combinedResources.put(resourceFile.getPath, combinedResource)
+      combinedResource
+    }
+  }
+
+  // Write to a temporary file first so that concurrent readers never see a partially written file
+  // NOTE: `write` may close the stream itself, which is harmless as closing a `FileOutputStream` twice is allowed
+  private def writeAtomically(file: File)(write: OutputStream ⇒ Unit): Unit = {
+    val tempFile = File.createTempFile(file.getName, ".tmp", file.getParentFile)
+    try {
+      useAndClose(new FileOutputStream(tempFile))(write)
+      try
+        Files.move(tempFile.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      catch {
+        case _: UnsupportedOperationException | _: IOException ⇒
+          Files.move(tempFile.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING)
+      }
+    } finally
+      tempFile.delete()
+  }
 }
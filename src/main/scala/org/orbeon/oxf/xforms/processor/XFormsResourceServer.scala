@@ -15,8 +15,10 @@ package org.orbeon.oxf.xforms.processor
 
 import java.io._
 import java.net.{URI, URLEncoder}
+import java.nio.channels.Channels
 
 import org.orbeon.exception.OrbeonFormatter
+import org.orbeon.oxf.externalcontext.ExternalContextOps._
 import org.orbeon.oxf.externalcontext.URLRewriter
 import org.orbeon.oxf.http.GET
 import org.orbeon.oxf.pipeline.api.ExternalContext.Session.APPLICATION_SCOPE
@@ -162,7 +164,7 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
     val isMinimal = false
 
     // Get last modified date
-    val combinedLastModified = XFormsResourceRewriter.computeCombinedLastModified(resources, isMinimal)
+    val combinedLastModified = XFormsResourceRewriter.combinedLastModified(requestPath, resources, isMinimal)
 
     // Set Last-Modified, required for caching and conditional get
     if (URLRewriterUtils.isResourcesVersioned)
@@ -193,19 +195,43 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
     if (XFormsProperties.isCacheCombinedResources) {
 
       // Caching requested
-      XFormsResourceRewriter.cacheResources(
-        resources,
+      XFormsResourceRewriter.findOrCacheCombinedResource(
         requestPath,
+        resources,
         namespaceOpt,
         combinedLastModified,
         isCSS,
         isMinimal
       ) match {
-        case Some(resourceFile) ⇒
+        case Some(combinedResource) ⇒
           // Caching could take place, send out cached result
           debug("serving from cache ", debugParameters)
+
+          val request = externalContext.getRequest
+
+          val useGzip = request.getFirstHeader("accept-encoding") exists acceptsGzip
+          val etag    = combinedResourceETag(combinedResource.digest, useGzip)
+
+          // The representation depends on Accept-Encoding
+          response.setHeader("Vary", "Accept-Encoding")
+          response.setHeader("ETag", etag)
+
+          if (request.getFirstHeader("if-none-match") exists (ifNoneMatchMatches(_, etag))) {
+            response.setStatus(SC_NOT_MODIFIED)
+            return
+          }
+
+          val (file, length) =
+            if (useGzip) {
+              response.setHeader("Content-Encoding", "gzip")
+              (combinedResource.gzipFile, combinedResource.gzipLength)
+            } else
+              (combinedResource.file, combinedResource.length)
+
+          response.setContentLength(length.toInt)
+
           useAndClose(response.getOutputStream) { os ⇒
-            copyStream(new FileInputStream(resourceFile), os)
+            transferFile(file, os)
           }
         case None ⇒
           // Was unable to cache, just serve
@@ -351,4 +377,37 @@ object XFormsResourceServer {
 
   private def filename(requestPath: String) =
     requestPath.substring(requestPath.lastIndexOf('/') + 1)
+
+  // Whether an Accept-Encoding header value allows gzip, e.g. "gzip, deflate" but not "gzip;q=0"
+  def acceptsGzip(acceptEncoding: String): Boolean =
+    acceptEncoding split ',' exists { coding ⇒
+
+      val parts = coding split ';' map (_.trim)
+      val name  = parts.head.toLowerCase
+
+      def qualityIsNotZero =
+        parts.tail collectFirst {
+          case param if param.startsWith("q=") ⇒ Try(param.substring("q=".length).toDouble) getOrElse 0.0
+        } forall (_ > 0.0)
+
+      (name == "gzip" || name == "x-gzip") && qualityIsNotZero
+    }
+
+  // Strong ETag, distinct for the compressed representation
+  def combinedResourceETag(digest: String, gzip: Boolean) =
+    "\"" + digest + (if (gzip) "-gzip" else "") + "\""
+
+  def ifNoneMatchMatches(ifNoneMatch: String, etag: String) =
+    ifNoneMatch.trim == "*" || (ifNoneMatch split ',' map (_.trim) contains etag)
+
+  // Copy the file with `FileChannel.transferTo`, which lets the JDK use the most direct copy available for the
+  // container's output stream
+  private def transferFile(file: File, os: OutputStream): Unit =
+    useAndClose(new FileInputStream(file).getChannel) { in ⇒
+      val out  = Channels.newChannel(os)
+      val size = in.size
+      var position = 0L
+      while (position < size)
+        position += in.transferTo(position, size - position, out)
+    }
 }
\ No newline at end of file
@@ -14,7 +14,7 @@
 package org.orbeon.oxf.xforms.submission
 
 import java.io.IOException
-import java.util.concurrent.Callable
+import java.util.concurrent.{Callable, RejectedExecutionException}
 
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.externalcontext.{LocalRequest, LocalResponse, URLRewriter}
@@ -67,7 +67,7 @@ abstract class BaseSubmission(val submission: XFormsModelSubmission) extends Sub
   /**
    * Submit the Callable for synchronous or asynchronous execution.
    *
-   * @return ConnectionResult or null if asynchronous
+   * @return ConnectionResult or null if asynchronous, unless the asynchronous submission was rejected
    */
   protected def submitCallable(
     p        : XFormsModelSubmission#SubmissionParameters,
@@ -75,10 +75,16 @@ abstract class BaseSubmission(val submission: XFormsModelSubmission) extends Sub
     callable : Callable[SubmissionResult]
   ): SubmissionResult =
     if (p2.isAsynchronous) {
-      // Tell XFCD that we have one more async submission
-      containingDocument.getAsynchronousSubmissionManager(true).addAsynchronousSubmission(callable)
-      // Tell caller he doesn't need to do anything
-      null
+      try {
+        // Tell XFCD that we have one more async submission
+        containingDocument.getAsynchronousSubmissionManager(true).addAsynchronousSubmission(submission.getEffectiveId, callable)
+        // Tell caller he doesn't need to do anything
+        null
+      } catch {
+        case e: RejectedExecutionException ⇒
+          // Too many submissions in progress: fail now, so that the caller dispatches xforms-submit-error
+          new SubmissionResult(submission.getEffectiveId, e, null)
+      }
     }  else if (p.isDeferredSubmissionSecondPass) {
       // Tell XFCD that we have a submission replace="all" ready for a second pass
       // Tell caller he doesn't need to do anything
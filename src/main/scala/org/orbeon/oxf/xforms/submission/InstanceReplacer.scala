@@ -47,6 +47,15 @@ class InstanceReplacer(submission: XFormsModelSubmission, containingDocument: XF
     this.instanceCaching     = Option(instanceCaching)
   }
 
+  // RegularSubmission: set the document found in the HTTP response cache, copying it if the instance is mutable
+  def setHttpCachedResult(documentInfo: DocumentInfo, isReadonly: Boolean): Unit =
+    _resultingDocumentOpt = Some(
+      if (isReadonly)
+        Right(documentInfo)
+      else
+        Left(TransformerUtils.tinyTreeToDom4j(documentInfo))
+    )
+
   def deserialize(
     connectionResult : ConnectionResult,
     p                : XFormsModelSubmission#SubmissionParameters,
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.submission
+
+import org.orbeon.dom.Document
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.http.{Headers, StreamedContent}
+import org.orbeon.oxf.processor.generator.URLGeneratorBase
+import org.orbeon.oxf.util.{Connection, ConnectionResult, DateUtils, IndentedLogger, Logging, XPath}
+import org.orbeon.oxf.xforms.XFormsProperties
+import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.saxon.om.{DocumentInfo, VirtualNode}
+
+/**
+ * Cache for `replace="instance"` GET submissions which honors the HTTP caching headers of the service.
+ *
+ * Unlike `xxf:cache="true"`, which keeps instances for a fixed time to live, this uses the response's
+ * `Cache-Control: max-age` to avoid connecting, and its `ETag` and `Last-Modified` to revalidate with a conditional
+ * GET. The parsed document is shared read-only across form instances, and copied when the instance is mutable.
+ *
+ * As the cache is shared by all users, it only keeps responses to requests which don't identify the user, and
+ * responses are keyed on all the headers sent, including forwarded ones.
+ */
+object SubmissionHttpCache extends Logging {
+
+  private val CacheName        = "xforms.cache.submission-responses"
+  private val CacheDefaultSize = 50
+  private val ConstantValidity = 0L
+
+  case class CachedResponse(
+    url          : String,
+    documentInfo : DocumentInfo,
+    headers      : Map[String, List[String]],
+    eTag         : Option[String],
+    lastModified : Option[Long],
+    expiration   : Option[Long]
+  ) {
+    require(! documentInfo.isInstanceOf[VirtualNode])
+
+    def isFresh = expiration exists (_ > System.currentTimeMillis)
+
+    // Stand-in for the actual connection, as CacheableSubmission does, for the replacer and the submission events
+    def connectionResult =
+      ConnectionResult(
+        url        = url,
+        statusCode = 200,
+        headers    = headers,
+        content    = StreamedContent.fromBytes(Array[Byte](0), None)
+      )
+  }
+
+  // Key if the submission can use the cache, null otherwise
+  //
+  // `headers` are all the headers sent, including the ones forwarded with `oxf.http.forward-headers`, such as
+  // `Accept-Language`, as the service might answer differently based on any of them.
+  def keyOrNull(
+    p       : XFormsModelSubmission#SubmissionParameters,
+    p2      : XFormsModelSubmission#SecondPassParameters,
+    url     : String,
+    headers : Map[String, List[String]]
+  ): String =
+    if (
+      XFormsProperties.isSubmissionHttpCache &&
+      p.isReplaceInstance                    &&
+      p.actualHttpMethod == "GET"            &&
+      (p2.credentials eq null)               &&
+      ! p2.isCache                           &&
+      ! isUserSpecificRequest(url, headers)
+    )
+      key(url, p2.isHandleXInclude, headers)
+    else
+      null
+
+  private[submission] def key(url: String, isHandleXInclude: Boolean, headers: Map[String, List[String]]) = {
+    val headersPart = headers.toList sortBy (_._1.toLowerCase) map { case (name, values) ⇒ name.toLowerCase + ":" + values.mkString(",") }
+    (url :: isHandleXInclude.toString :: headersPart) mkString "|"
+  }
+
+  // A shared cache must not answer requests which carry credentials with responses to other users (RFC 7234 §3.2),
+  // and the same goes for cookies. Internal services receive the user's identity through the `Orbeon-*` headers.
+  private def isUserSpecificRequest(url: String, headers: Map[String, List[String]]) =
+    hasUserSpecificHeaders(headers) || Connection.hasHttpStateCookies || Connection.findInternalURL(url).isDefined
+
+  private val UserSpecificHeadersLower =
+    Set(Headers.AuthorizationLower, "cookie", Headers.OrbeonUsernameLower, Headers.OrbeonGroupLower, Headers.OrbeonRolesLower)
+
+  private[submission] def hasUserSpecificHeaders(headers: Map[String, List[String]]) =
+    headers.keys exists (name ⇒ UserSpecificHeadersLower(name.toLowerCase))
+
+  def findOrNull(key: String)(implicit logger: IndentedLogger): CachedResponse =
+    Option(cache.findValid(cacheKey(key), ConstantValidity).asInstanceOf[CachedResponse]) match {
+      case Some(cachedResponse) ⇒
+        debug("found cached submission response", Seq("key" → key, "fresh" → cachedResponse.isFresh.toString))
+        cachedResponse
+      case None ⇒
+        null
+    }
+
+  // Add the headers needed to revalidate the cached response
+  def conditionalHeaders(headers: Map[String, List[String]], cachedResponse: CachedResponse): Map[String, List[String]] =
+    headers ++
+      (cachedResponse.eTag.toList         map (eTag ⇒ "if-none-match" → List(eTag))) ++
+      (cachedResponse.lastModified.toList map (lastModified ⇒ "if-modified-since" → List(DateUtils.RFC1123Date.print(lastModified))))
+
+  // Upon a 304, keep the cached document for as long as the new response allows
+  def revalidated(key: String, cachedResponse: CachedResponse, cxr: ConnectionResult)(implicit logger: IndentedLogger): ConnectionResult = {
+    cxr.close()
+    val updated = cachedResponse.copy(expiration = findExpiration(cxr))
+    cache.add(cacheKey(key), ConstantValidity, updated)
+    debug("revalidated cached submission response", Seq("key" → key))
+    updated.connectionResult
+  }
+
+  // Store the document read by the replacer if the response allows a shared cache to keep it
+  def storeIfCacheable(key: String, cxr: ConnectionResult, replacer: Replacer)(implicit logger: IndentedLogger): Unit =
+    replacer match {
+      case instanceReplacer: InstanceReplacer if isCacheable(cxr) ⇒
+
+        // Mutable instances will be modified by the form, so keep a read-only copy
+        val documentInfo =
+          instanceReplacer.resultingDocumentOrDocumentInfo match {
+            case document: Document         ⇒ TransformerUtils.dom4jToTinyTree(XPath.GlobalConfiguration, document, false)
+            case virtualNode: VirtualNode   ⇒ null
+            case documentInfo: DocumentInfo ⇒ documentInfo
+            case _                          ⇒ null
+          }
+
+        if (documentInfo ne null) {
+          cache.add(
+            cacheKey(key),
+            ConstantValidity,
+            CachedResponse(
+              url          = cxr.url,
+              documentInfo = documentInfo,
+              headers      = cxr.headers,
+              eTag         = cxr.getHeaderIgnoreCase("etag").headOption,
+              lastModified = cxr.lastModified,
+              expiration   = findExpiration(cxr)
+            )
+          )
+          debug("caching submission response", Seq("key" → key))
+        }
+      case _ ⇒
+    }
+
+  private[submission] def isCacheable(cxr: ConnectionResult) = {
+
+    def values(name: String) =
+      cxr.getHeaderIgnoreCase(name) flatMap (_.split(',')) map (_.trim.toLowerCase)
+
+    val cacheControl = values("cache-control")
+    val vary         = values("vary") filterNot (_ == "accept-encoding")
+
+    // A response setting cookies is specific to the session it was made for
+    def isShareable  =
+      ! (cacheControl exists (d ⇒ d == "no-store" || d.startsWith("private"))) &&
+      vary.isEmpty                                                             &&
+      cxr.getHeaderIgnoreCase("set-cookie").isEmpty
+    def hasValidator = cxr.getHeaderIgnoreCase("etag").nonEmpty || cxr.lastModified.isDefined
+
+    cxr.statusCode == 200 && isShareable && (findExpiration(cxr).isDefined || hasValidator)
+  }
+
+  private def findExpiration(cxr: ConnectionResult) =
+    Option(URLGeneratorBase.findExpirationOrNull(cxr.getHeaderIgnoreCase("cache-control"), System.currentTimeMillis)) map (_.longValue)
+
+  private def cache = ObjectCache.instance(CacheName, CacheDefaultSize)
+  private def cacheKey(key: String) = new InternalCacheKey(CacheName, key)
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, InputStream}
+import javax.xml.transform.stream.StreamResult
+
+import org.orbeon.oxf.util.ScalaUtils._
+
+// XML passed between the caller and the callee of an internal request as SAX events, so that it doesn't have to be
+// serialized and parsed again within the same JVM.
+//
+// - `XMLParsing` recognizes this stream and replays the events directly
+// - other readers, for example when the content is proxied to the browser, get the document serialized as UTF-8
+//   upon first read
+class SAXStoreInputStream(val saxStore: SAXStore) extends InputStream {
+
+  private lazy val serialized = {
+    val os = new ByteArrayOutputStream
+    saxStore.replay(TransformerUtils.getIdentityTransformerHandler |!> (_.setResult(new StreamResult(os))))
+    new ByteArrayInputStream(os.toByteArray)
+  }
+
+  def read()                                              = serialized.read()
+  override def read(b: Array[Byte], off: Int, len: Int)   = serialized.read(b, off, len)
+  override def skip(n: Long)                              = serialized.skip(n)
+  override def available                                  = serialized.available
+  override def markSupported                              = true
+  override def mark(readLimit: Int)                       = serialized.mark(readLimit)
+  override def reset()                                    = serialized.reset()
+}
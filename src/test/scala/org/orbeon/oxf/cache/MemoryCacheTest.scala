@@ -33,6 +33,8 @@ class MemoryCacheTest extends AssertionsForJUnit {
     def added(): Unit = {}
   }
 
+  class MyWeighable(val getApproximateSize: Long) extends Weighable
+
   case class Key(key: String) extends InternalCacheKey("test", key)
   val VALIDITY = 0L
 
@@ -219,4 +221,62 @@ class MemoryCacheTest extends AssertionsForJUnit {
     assert(range === keysAsInts)
     assert(range === values)
   }
-}
\ No newline at end of file
+
+  @Test def testWeightEvicts(): Unit = {
+    val cache = new MemoryCacheImpl(10, 100)
+
+    cache.add(Key("o1"), VALIDITY, new MyWeighable(40))
+    cache.add(Key("o2"), VALIDITY, new MyWeighable(40))
+
+    assert(cache.getCurrentSize === 2)
+    assert(cache.getCurrentWeight === 80)
+
+    // Push first object out with third object
+    cache.add(Key("o3"), VALIDITY, new MyWeighable(40))
+
+    assert(cache.findValid(Key("o1"), VALIDITY) eq null)
+    assert(cache.getCurrentSize === 2)
+    assert(cache.getCurrentWeight === 80)
+    assert(cache.getExpirationCount === 1)
+  }
+
+  @Test def testTooHeavyNotAdded(): Unit = {
+    val cache = new MemoryCacheImpl(10, 100)
+
+    cache.add(Key("o1"), VALIDITY, new MyWeighable(40))
+    cache.add(Key("o2"), VALIDITY, new MyWeighable(101))
+
+    assert(cache.getCurrentSize === 1)
+    assert(cache.getCurrentWeight === 40)
+    assert(cache.getExpirationCount === 0)
+  }
+
+  @Test def testReduceWeightEvicts(): Unit = {
+    val cache = new MemoryCacheImpl(10)
+
+    cache.add(Key("o1"), VALIDITY, new MyWeighable(40))
+    cache.add(Key("o2"), VALIDITY, new MyWeighable(40))
+    cache.add(Key("o3"), VALIDITY, new AnyRef)
+
+    cache.setMaxWeight(50)
+
+    assert(cache.findValid(Key("o2"), VALIDITY) ne null)
+    assert(cache.getCurrentSize === 2)
+    assert(cache.getCurrentWeight === 40)
+  }
+
+  @Test def testStatistics(): Unit = {
+    val cache = new MemoryCacheImpl(1)
+
+    cache.add(Key("o1"), VALIDITY, new AnyRef)
+    cache.findValid(Key("o1"), VALIDITY)
+    cache.findValid(Key("o2"), VALIDITY)
+    cache.add(Key("o2"), VALIDITY, new AnyRef)
+
+    val statistics = cache.getStatistics
+    assert(statistics.getAddCount === 2)
+    assert(statistics.getHitCount === 1)
+    assert(statistics.getMissCount === 1)
+    assert(statistics.getExpirationCount === 1)
+  }
+}
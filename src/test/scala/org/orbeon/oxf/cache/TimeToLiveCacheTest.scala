@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.cache
+
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.SecureUtils
+import org.scalatest.junit.AssertionsForJUnit
+
+class TimeToLiveCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  val cache = new TimeToLiveCache("cache.test.time-to-live", 10)
+
+  def newKey = new InternalCacheKey("test", SecureUtils.randomHexId)
+
+  // Returns the value and counts the reads
+  class Source {
+    var reads = 0
+    def read(): Int = { reads += 1; reads }
+  }
+
+  @Test def keptUntilExpired(): Unit = {
+
+    val key    = newKey
+    val source = new Source
+
+    assert(1 === cache.getOrRead(key, 60000)(source.read()))
+    assert(1 === cache.getOrRead(key, 60000)(source.read()))
+    assert(1 === source.reads)
+
+    // Expired entries are read again
+    val otherKey = newKey
+    assert(2 === cache.getOrRead(otherKey, 1)(source.read()))
+    Thread.sleep(10)
+    assert(3 === cache.getOrRead(otherKey, 60000)(source.read()))
+  }
+
+  @Test def notKeptWithoutTimeToLive(): Unit = {
+
+    val key    = newKey
+    val source = new Source
+
+    cache.getOrRead(key, 0)(source.read())
+    cache.getOrRead(key, 0)(source.read())
+    assert(2 === source.reads)
+  }
+
+  @Test def removed(): Unit = {
+
+    val key    = newKey
+    val source = new Source
+
+    cache.getOrRead(key, 60000)(source.read())
+    cache.remove(key)
+    cache.getOrRead(key, 60000)(source.read())
+    assert(2 === source.reads)
+  }
+}
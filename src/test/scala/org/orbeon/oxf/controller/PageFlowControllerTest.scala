@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.controller
+
+import org.junit.Test
+import org.orbeon.oxf.http.GET
+import org.orbeon.oxf.test.{ResourceManagerTestBase, TestHttpClient}
+import org.scalatest.junit.AssertionsForJUnit
+
+class PageFlowControllerTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  def statusCode(path: String) = {
+    val (_, response, _) = TestHttpClient.connect(path, GET, Map.empty, None)
+    response.statusCode
+  }
+
+  // A 503, e.g. when too many PDFs are being rendered, reaches the client instead of becoming a 500
+  @Test def serviceUnavailable(): Unit = {
+    assert(503 === statusCode("/unit-tests/service/unavailable"))
+    assert(503 === statusCode("/unit-tests/unavailable"))
+  }
+}
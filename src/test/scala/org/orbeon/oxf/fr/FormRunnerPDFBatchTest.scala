@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr
+
+import java.io.{File, FileInputStream}
+import java.util.zip.ZipInputStream
+
+import org.junit.Test
+import org.orbeon.dom.Document
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.externalcontext.LocalResponse
+import org.orbeon.oxf.fr.FormRunnerPDFBatch.{Batch, DirectoryOutput, ZipOutput}
+import org.orbeon.oxf.fr.persistence.relational.crud.SpooledContent
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.NetUtils
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.webapp.HttpStatusCodeException
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.saxon.om.DocumentInfo
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.mutable
+import scala.collection.mutable.ListBuffer
+
+class FormRunnerPDFBatchTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  def pdf(content: String) =
+    new SpooledContent |!> (pdf ⇒ useAndClose(pdf.outputStream)(_.write(content.getBytes("utf-8"))))
+
+  def withTempDirectory[T](body: File ⇒ T): T = {
+    val directory = File.createTempFile("orbeon-pdf-batch-test", "")
+    directory.delete()
+    directory.mkdir()
+    def delete(file: File): Unit = {
+      Option(file.listFiles) foreach (_ foreach delete)
+      file.delete()
+    }
+    try body(directory)
+    finally delete(directory)
+  }
+
+  @Test def zipOutput(): Unit = {
+
+    val response = new LocalResponse(null)
+    val output   = new ZipOutput(response)
+
+    output.add("a", pdf("first"))
+    output.add("b", pdf("second"))
+    output.finish(<pdf-batch total="3" generated="2" failed="1"><failed document-id="c" reason="403"/></pdf-batch>)
+
+    val entries = ListBuffer[(String, String)]()
+    val zip     = new ZipInputStream(response.getInputStream)
+    var entry = zip.getNextEntry
+    while (entry ne null) {
+      entries += entry.getName → new String(NetUtils.inputStreamToByteArray(zip), "utf-8")
+      entry = zip.getNextEntry
+    }
+
+    assert(Some("application/zip") === response.capitalizedHeaders.get("Content-Type").flatMap(_.headOption))
+    assert(List("a.pdf", "b.pdf", "report.xml") === entries.map(_._1).toList)
+    assert("first"  === entries(0)._2)
+    assert("second" === entries(1)._2)
+    assert(entries(2)._2.contains("""<failed document-id="c" reason="403"/>"""))
+  }
+
+  @Test def directoryOutput(): Unit =
+    withTempDirectory { directory ⇒
+
+      val response = new LocalResponse(null)
+      val output   = new DirectoryOutput(directory, response)
+
+      output.add("a", pdf("first"))
+      // Replaces an existing PDF
+      output.add("a", pdf("again"))
+      output.add("b", pdf("second"))
+      output.finish(<pdf-batch total="2" generated="2" failed="0"/>)
+
+      assert(Set("a.pdf", "b.pdf") === directory.list.toSet)
+      assert("again" === new String(useAndClose(new FileInputStream(new File(directory, "a.pdf")))(NetUtils.inputStreamToByteArray), "utf-8"))
+      assert(new String(NetUtils.inputStreamToByteArray(response.getInputStream), "utf-8").contains("<pdf-batch"))
+    }
+
+  @Test def directoryOutputRemovesTemporaryFileOnFailure(): Unit =
+    withTempDirectory { directory ⇒
+
+      // A non-empty directory where the PDF should go can't be replaced
+      val blocking = new File(directory, "a.pdf")
+      blocking.mkdir()
+      new File(blocking, "file").createNewFile()
+
+      val output = new DirectoryOutput(directory, new LocalResponse(null))
+
+      intercept[OXFException] {
+        output.add("a", pdf("first"))
+      }
+
+      assert(! new File(directory, "a.pdf.tmp").exists)
+      assert(blocking.isDirectory)
+    }
+
+  // Batch where reading documents, unrolling the form and rendering are replaced by recording what is asked for
+  class TestBatch(formVersions: Map[String, Int]) extends Batch("app", "form") {
+
+    val unrolledVersions = ListBuffer[Int]()
+    val renderedForms    = mutable.Map[String, DocumentInfo]()
+
+    override protected def readDocument(documentId: String) =
+      formVersions.getOrElse(documentId, throw HttpStatusCodeException(403)) →
+        elemToDocument(<form-data document={documentId}/>)
+
+    override protected def unrollForm(formVersion: Int) = {
+      unrolledVersions.synchronized(unrolledVersions += formVersion)
+      elemToDocumentInfo(<form version={formVersion.toString}/>)
+    }
+
+    override protected def writePDF(
+      unrolledForm : DocumentInfo,
+      formVersion  : Int,
+      documentId   : String,
+      data         : Document,
+      pdf          : SpooledContent
+    ) = {
+      if (documentId == "broken")
+        throw new IllegalStateException
+      renderedForms.synchronized(renderedForms += documentId → unrolledForm)
+      // The data read to find the form version is the data rendered
+      val dataDocumentId = data.getRootElement.attributeValue("document")
+      useAndClose(pdf.outputStream)(_.write(s"$dataDocumentId@$formVersion".getBytes("utf-8")))
+    }
+  }
+
+  def content(pdf: SpooledContent) =
+    new String(useAndClose(pdf.inputStream)(NetUtils.inputStreamToByteArray), "utf-8")
+
+  @Test def producePDF(): Unit = {
+
+    val batch = new TestBatch(Map("a" → 1, "broken" → 1))
+
+    val pdf = batch.producePDF("a")
+    assert("a@1" === content(pdf))
+    batch.delete(pdf)
+
+    // Documents which can't be read or rendered fail on their own
+    assert(403 === intercept[HttpStatusCodeException](batch.producePDF("missing")).code)
+    intercept[IllegalStateException](batch.producePDF("broken"))
+  }
+
+  @Test def unrolledFormReusedPerVersion(): Unit = {
+
+    val batch = new TestBatch(Map("a" → 1, "b" → 2, "c" → 1, "d" → 2, "e" → 1))
+
+    List("a", "b", "c", "d", "e") foreach batch.producePDF
+    try {
+      // Each version of the form is unrolled once, and all its documents use the same unrolled form
+      assert(List(1, 2) === batch.unrolledVersions.toList)
+      assert(batch.renderedForms("a") eq batch.renderedForms("c"))
+      assert(batch.renderedForms("a") eq batch.renderedForms("e"))
+      assert(batch.renderedForms("b") eq batch.renderedForms("d"))
+      assert(batch.renderedForms("a") ne batch.renderedForms("b"))
+    } finally
+      batch.deleteAll()
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr
+
+import java.io.IOException
+import java.net.{ServerSocket, SocketTimeoutException}
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+import org.apache.http.impl.client.BasicCookieStore
+import org.junit.Test
+import org.mockito.Mockito
+import org.orbeon.oxf.common.{OXFException, ValidationException}
+import org.orbeon.oxf.http.{GET, PropertiesApacheHttpClient}
+import org.orbeon.oxf.pipeline.api.ExternalContext.{Request, Response}
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.{SecureUtils, XPath}
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.saxon.om.DocumentInfo
+import org.scalatest.junit.AssertionsForJUnit
+import org.scalatest.mock.MockitoSugar
+
+import scala.collection.JavaConverters._
+import scala.util.Try
+import scala.util.control.NonFatal
+
+class FormRunnerPersistenceProxyTest extends ResourceManagerTestBase with AssertionsForJUnit with MockitoSugar {
+
+  import FormRunnerPersistenceProxy._
+
+  // A server which accepts connections but never answers
+  def withSilentServer[T](body: String ⇒ T): T =
+    useAndClose(new ServerSocket(0)) { server ⇒
+      body(s"http://localhost:${server.getLocalPort}/fr/service/persistence/form")
+    }
+
+  @Test def providersReadConcurrently(): Unit = {
+
+    // Each provider only answers once all of them were called
+    val latch = new CountDownLatch(3)
+
+    val forms =
+      readConcurrently(List("a", "b", "c"), timeout = 500) { provider ⇒
+        latch.countDown()
+        latch.await(10, TimeUnit.SECONDS) option provider
+      }
+
+    assert(List(Some("a"), Some("b"), Some("c")) === forms)
+  }
+
+  @Test def providerWhichDoesNotAnswerIsLeftOut(): Unit =
+    withSilentServer { url ⇒
+
+      val forms =
+        readConcurrently(List("fast", "slow"), timeout = 500) {
+          case "slow" ⇒
+            // Fail like `Connection` does, which wraps the timeout
+            try {
+              PropertiesApacheHttpClient.connect(url, None, new BasicCookieStore, GET, Map.empty, None).disconnect()
+              "slow forms"
+            } catch {
+              case NonFatal(t) ⇒ throw new OXFException(t)
+            }
+          case provider ⇒
+            provider + " forms"
+        }
+
+      assert(List("fast forms") === forms)
+    }
+
+  @Test def otherFailuresFailOnceAllProvidersAnswered(): Unit = {
+
+    val called = new ConcurrentLinkedQueue[String]
+
+    intercept[IllegalStateException] {
+      readConcurrently(List("failing", "other"), timeout = 500) { provider ⇒
+        called.add(provider)
+        if (provider == "failing")
+          throw new IllegalStateException
+        provider
+      }
+    }
+
+    assert(Set("failing", "other") === called.asScala.toSet)
+  }
+
+  @Test def timeoutsFoundInCauses(): Unit = {
+    assert(isTimeout(new SocketTimeoutException))
+    assert(isTimeout(new ValidationException(new OXFException(new SocketTimeoutException), null)))
+    assert(! isTimeout(new ValidationException(new OXFException(new IOException), null)))
+  }
+
+  // Returns a new document for each read, and counts the reads
+  class FormsSource {
+    var reads = 0
+    def read(): DocumentInfo = {
+      reads += 1
+      TransformerUtils.dom4jToTinyTree(XPath.GlobalConfiguration, elemToDocument(<forms/>), false)
+    }
+  }
+
+  @Test def formsCachedUntilFormPublished(): Unit = {
+
+    val provider = "provider-" + SecureUtils.randomHexId
+    val source   = new FormsSource
+
+    val forms = FormsCache.cached(provider, "?")(source.read())
+    assert(forms eq FormsCache.cached(provider, "?")(source.read()))
+    assert(1 === source.reads)
+
+    // Other queries are cached separately
+    FormsCache.cached(provider, "?all-forms=true")(source.read())
+    assert(2 === source.reads)
+
+    // Publishing forgets the forms, even if the persistence layer fails, as it does here
+    val request = mock[Request]
+    Mockito when request.getRequestPath thenReturn "/fr/service/persistence/crud/acme/order/form/form.xhtml"
+    Mockito when request.getMethod thenReturn "PUT"
+
+    Try(new FormRunnerPersistenceProxy().proxyRequest(request, mock[Response]))
+
+    assert(forms ne FormsCache.cached(provider, "?")(source.read()))
+    assert(3 === source.reads)
+  }
+}
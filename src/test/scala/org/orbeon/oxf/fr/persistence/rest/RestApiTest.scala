@@ -14,6 +14,7 @@
 package org.orbeon.oxf.fr.persistence.rest
 
 import java.io.ByteArrayInputStream
+import java.util.zip.ZipInputStream
 
 import org.junit.Test
 import org.orbeon.dom.{Document, DocumentFactory}
@@ -264,6 +265,62 @@ class RestApiTest extends ResourceManagerTestBase with AssertionsForJUnit with X
     }
   }
 
+  @Test def bulkExportImportTest(): Unit = {
+    withOrbeonTables("bulk export and import") { (connection, provider) ⇒
+
+      val FormURL     = crudURLPrefix(provider) + "form/form.xhtml"
+      val CopyFormURL = s"crud/${provider.name}/my-copy/form/form.xhtml"
+      val BulkURL     = s"bulk/${provider.name}/my-form"
+      val CopyBulkURL = s"bulk/${provider.name}/my-copy"
+      val clerk       = Some(HttpRequest.Credentials("tom", Set("clerk"), "clerk"))
+      val admin       = Some(HttpRequest.Credentials("tim", Set("admin"), "admin"))
+
+      HttpAssert.put(FormURL, Unspecified, HttpRequest.XML(formDefinitionWithPermissions(Some(Seq(
+        Permission(Anyone,        Set("create")),
+        Permission(Owner,         Set("read")),
+        Permission(Role("admin"), Set("create", "read", "update"))
+      )))), 201)
+      HttpAssert.put(crudURLPrefix(provider) + "data/123/data.xml", Specific(1), HttpRequest.XML(<gaga1/>), 201, clerk)
+      HttpAssert.put(crudURLPrefix(provider) + "data/456/data.xml", Specific(1), HttpRequest.XML(<gaga2/>), 201, admin)
+      val attachment = new Array[Byte](1024) |!> Random.nextBytes |> HttpRequest.Binary
+      HttpAssert.put(crudURLPrefix(provider) + "data/456/file0", Specific(1), attachment, 201, admin)
+
+      def export(url: String, credentials: Option[HttpRequest.Credentials]): Array[Byte] = {
+        val (code, _, body) = HttpRequest.get(url, Unspecified, credentials)
+        assert(code === 200)
+        body.get
+      }
+
+      def entries(archive: Array[Byte]): Set[String] = {
+        val zip = new ZipInputStream(new ByteArrayInputStream(archive))
+        Iterator.continually(zip.getNextEntry).takeWhile(_ ne null).map(_.getName).toSet
+      }
+
+      // Document 456 has an attachment
+      def documents(documentIds: String*): Set[String] =
+        documentIds.flatMap(id ⇒ List(s"data/$id/metadata.properties", s"data/$id/data.xml")).toSet ++
+          (documentIds.contains("456") list "data/456/attachments/file0")
+
+      // Like when reading, only the documents the user can read are exported
+      assert(entries(export(BulkURL, clerk)) === documents("123"))
+      assert(entries(export(BulkURL, admin)) === documents("123", "456"))
+
+      // Importing requires the roles to create and update
+      val archive = export(BulkURL, admin)
+      assert(HttpRequest.put(BulkURL, Unspecified, HttpRequest.Binary(archive), clerk) === 403)
+
+      // What is exported can be imported in another form
+      HttpAssert.put(CopyFormURL, Unspecified, HttpRequest.XML(formDefinitionWithPermissions(None)), 201)
+      assert(HttpRequest.put(CopyBulkURL, Unspecified, HttpRequest.Binary(archive)) === 200)
+      assert(entries(export(CopyBulkURL, None)) === documents("123", "456"))
+      HttpAssert.get(
+        s"crud/${provider.name}/my-copy/data/456/file0",
+        Unspecified,
+        HttpAssert.ExpectedBody(attachment, AllOperations, Some(1))
+      )
+    }
+  }
+
   // Try uploading files of 1 KB, 1 MB
   @Test def attachmentsTest(): Unit = {
     withOrbeonTables("attachments") { (connection, provider) ⇒
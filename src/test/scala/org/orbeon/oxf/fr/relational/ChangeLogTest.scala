@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational
+
+import org.junit.Test
+import org.orbeon.oxf.fr.persistence.relational.index.Index
+import org.orbeon.oxf.fr.persistence.relational.index.Index._
+import org.scalatest.junit.AssertionsForJUnit
+
+class ChangeLogTest extends AssertionsForJUnit {
+
+  @Test def documentSavedSeveralTimesIsReindexedOnce(): Unit = {
+    val changes = List(
+      Change(1, "acme", "order", 1, Some("d1")),
+      Change(2, "acme", "order", 1, Some("d2")),
+      Change(3, "acme", "order", 1, Some("d1"))
+    )
+    assert(List(DataForDocumentIds(List("d1", "d2"))) === Index.changesToReindex(changes))
+  }
+
+  @Test def formChangeCoversItsDocuments(): Unit = {
+    val changes = List(
+      Change(1, "acme", "order",   1, Some("d1")),
+      Change(2, "acme", "order",   2, Some("d2")),
+      Change(3, "acme", "order",   1, None),
+      Change(4, "acme", "invoice", 1, Some("d3")),
+      Change(5, "acme", "order",   1, None)
+    )
+    assert(
+      List(DataForForm("acme", "order", 1), DataForDocumentIds(List("d2", "d3"))) ===
+        Index.changesToReindex(changes)
+    )
+  }
+
+  @Test def noChanges(): Unit =
+    assert(Index.changesToReindex(Nil).isEmpty)
+
+  @Test def onlyChangesReindexedAreDone(): Unit = {
+    val formChange     = Change(1, "acme", "order",   1, None)
+    val formDocChange  = Change(2, "acme", "order",   1, Some("d1"))
+    val otherDocChange = Change(3, "acme", "invoice", 1, Some("d2"))
+    val changes        = List(formChange, formDocChange, otherDocChange)
+
+    // As if reindexing stopped after the form
+    val reindexed = List(DataForForm("acme", "order", 1))
+    val done      = changes filter (change ⇒ reindexed exists (Index.isChangeReindexed(change, _)))
+
+    assert(List(formChange, formDocChange) === done)
+    assert(Index.isChangeReindexed(otherDocChange, DataForDocumentIds(List("d2"))))
+    assert(! Index.isChangeReindexed(formChange, DataForDocumentIds(List("d1"))))
+  }
+}
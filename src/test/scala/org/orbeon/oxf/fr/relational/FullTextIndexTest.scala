@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational
+
+import org.apache.lucene.analysis.KeywordAnalyzer
+import org.apache.lucene.index.{IndexReader, IndexWriter}
+import org.apache.lucene.store.RAMDirectory
+import org.junit.Test
+import org.orbeon.oxf.fr.persistence.relational.index.FullTextIndex
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+
+class FullTextIndexTest extends AssertionsForJUnit {
+
+  val Documents = List(
+    1 → "<form><name>Hello</name><city>Lausanne</city></form>",
+    2 → """<form><name country="Switzerland">World</name></form>""",
+    3 → "<form><name>foo-bar</name><city>Zürich</city></form>",
+    4 → "<form><name>Café</name></form>"
+  )
+
+  // Ids of the documents the index returns as candidates, `None` if it can't narrow down the search
+  def candidates(freeTextSearch: String): Option[Set[Int]] = {
+    val directory = new RAMDirectory
+    val writer    = new IndexWriter(directory, new KeywordAnalyzer, IndexWriter.MaxFieldLength.UNLIMITED)
+    for ((dataId, xml) ← Documents)
+      writer.addDocument(FullTextIndex.document(dataId, "doc" + dataId, "acme", "order", 1, "1", xml))
+    writer.close()
+
+    FullTextIndex.candidatesQuery("acme", "order", freeTextSearch) flatMap { query ⇒
+      useAndClose(IndexReader.open(directory, true))(FullTextIndex.search(_, query))
+    } map (_.toSet)
+  }
+
+  // What the database matches with a case insensitive `LIKE '%text%'`, ignoring accents like MySQL does
+  def likeMatches(freeTextSearch: String): Set[Int] = {
+    def normalize(s: String) =
+      java.text.Normalizer.normalize(s, java.text.Normalizer.Form.NFD).replaceAll("""\p{M}""", "").toLowerCase
+    val regex = normalize(freeTextSearch).map {
+      case '%' ⇒ ".*"
+      case '_' ⇒ "."
+      case c   ⇒ java.util.regex.Pattern.quote(c.toString)
+    }.mkString
+    (Documents collect { case (dataId, xml) if (".*" + regex + ".*").r.pattern.matcher(normalize(xml)).matches ⇒ dataId }).toSet
+  }
+
+  def assertSuperset(freeTextSearch: String): Unit =
+    candidates(freeTextSearch) foreach { found ⇒
+      assert(likeMatches(freeTextSearch) subsetOf found, freeTextSearch)
+    }
+
+  @Test def substringOfWord(): Unit = {
+    assert(candidates("ello")      === Some(Set(1)))
+    assert(candidates("ausan")     === Some(Set(1)))
+    assertSuperset("ello")
+  }
+
+  @Test def attributeValue(): Unit = {
+    assert(candidates("witzer")    === Some(Set(2)))
+    assert(candidates("country")   === Some(Set(2)))
+    assertSuperset("switzerland")
+  }
+
+  @Test def acrossPunctuationAndMarkup(): Unit = {
+    assert(candidates("o-b")       === Some(Set(3)))
+    assert(candidates("</name><c") === Some(Set(1, 3)))
+    assertSuperset("foo-bar")
+  }
+
+  @Test def ignoresCase(): Unit = {
+    assert(candidates("HELLO")     === Some(Set(1)))
+    assert(candidates("wOrLd")     === Some(Set(2)))
+  }
+
+  @Test def nonAsciiCharactersCanMatchAnything(): Unit = {
+    assert(candidates("cafe") exists (_ contains 4))
+    assert(candidates("zurich") exists (_ contains 3))
+    for (search ← List("cafe", "café", "zurich", "Zürich"))
+      assertSuperset(search)
+  }
+
+  @Test def wildcardsAreNotSearched(): Unit = {
+    assert(candidates("he_lo")     === None)
+    assert(candidates("he%lo")     === None)
+    assert(candidates("hel_o")     === Some(Set(1)))
+    assert(candidates("h_llo")     === Some(Set(1)))
+    assertSuperset("hel_o")
+  }
+
+  @Test def shortTextIsNotNarrowedDown(): Unit = {
+    assert(candidates("he")        === None)
+    assert(candidates("")          === None)
+  }
+
+  @Test def noMatch(): Unit =
+    assert(candidates("geneva")    === Some(Set()))
+
+  @Test def searchesAtMostEightTrigrams(): Unit = {
+    val trigrams = FullTextIndex.searchedTrigrams("abcdefghijklmnopqrstuvwxyz")
+    assert(trigrams.size === 8)
+    assert(trigrams.head === "abc")
+    assert(trigrams.last === "xyz")
+  }
+}
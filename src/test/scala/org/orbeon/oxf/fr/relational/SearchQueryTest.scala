@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational
+
+import java.sql.Timestamp
+
+import org.junit.Test
+import org.orbeon.oxf.fr.persistence.relational.Provider._
+import org.orbeon.oxf.fr.persistence.relational.search.SearchLogic
+import org.orbeon.oxf.fr.persistence.relational.search.adt._
+import org.orbeon.oxf.fr.persistence.relational.search.part.commonPart
+import org.scalatest.junit.AssertionsForJUnit
+
+class SearchQueryTest extends AssertionsForJUnit {
+
+  def request(provider: Provider, pageAfter: Option[PageCursor]) =
+    Request(
+      provider       = provider,
+      app            = "acme",
+      form           = "order",
+      username       = None,
+      group          = None,
+      pageSize       = 10,
+      pageNumber     = 3,
+      pageAfter      = pageAfter,
+      columns        = List(Column("name", None)),
+      drafts         = IncludeDrafts,
+      freeTextSearch = None
+    )
+
+  val Cursor = PageCursor(Timestamp.valueOf("2016-01-01 00:00:00"), 42)
+
+  def documentsQuery(request: Request) =
+    SearchLogic.documentsQuery(request, List(commonPart(request)), List("name"))
+
+  @Test def cursorSeeksWithoutNumberingRows(): Unit =
+    for (provider ← List(MySQL, PostgreSQL)) {
+      val (sql, parts) = documentsQuery(request(provider, Some(Cursor)))
+
+      assert(! sql.contains("row_number"))
+      assert(! sql.contains("@rownum"))
+      assert(sql.contains("LIMIT ?"))
+      // app, form, cursor time twice, cursor id, page size, control
+      assert(parts.flatMap(_.setters).size === 7)
+    }
+
+  @Test def pageNumberUsesRowNumbers(): Unit =
+    for (provider ← List(MySQL, PostgreSQL)) {
+      val (sql, parts) = documentsQuery(request(provider, None))
+
+      assert(sql.contains("row_number"))
+      assert(! sql.contains("LIMIT"))
+      // app, form, control, first and last row
+      assert(parts.flatMap(_.setters).size === 5)
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational
+
+import org.junit.Test
+import org.orbeon.oxf.fr.persistence.relational.Statement._
+import org.scalatest.junit.AssertionsForJUnit
+
+class StatementTest extends AssertionsForJUnit {
+
+  @Test def inListIsPaddedToPowerOfTwo(): Unit = {
+    assert(inListValues(Nil)                 === Nil)
+    assert(inListValues(List(1))             === List(1))
+    assert(inListValues(List(1, 2))          === List(1, 2))
+    assert(inListValues(List(1, 2, 3))       === List(1, 2, 3, 3))
+    assert(inListValues(List(1, 2, 3, 4, 5)) === List(1, 2, 3, 4, 5, 5, 5, 5))
+
+    assert(inListPlaceholders(List(1, 2, 3, 3)) === "?, ?, ?, ?")
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational.crud
+
+import java.io.ByteArrayInputStream
+
+import org.junit.Test
+import org.orbeon.oxf.fr.persistence.relational.crud.{RequestReader, SpooledContent}
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.NetUtils
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.util.Random
+
+class SpooledContentTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  @Test def smallContentStaysInMemory(): Unit = {
+    val spooled = new SpooledContent(1024)
+    useAndClose(spooled.writer)(_.write("café"))
+
+    assert(spooled.isInMemory)
+    assert(spooled.charLength === 4)
+    assert(spooled.byteLength === 5)
+    assert(useAndClose(spooled.reader)(NetUtils.readStreamAsString) === "café")
+
+    spooled.delete()
+  }
+
+  @Test def largeContentIsSpooled(): Unit = {
+    val bytes   = new Array[Byte](10 * 1024) |!> Random.nextBytes
+    val spooled = new SpooledContent(1024)
+    useAndClose(spooled.outputStream)(_.write(bytes))
+
+    assert(! spooled.isInMemory)
+    assert(spooled.byteLength === bytes.length)
+    assert(useAndClose(spooled.inputStream)(NetUtils.inputStreamToByteArray) sameElements bytes)
+
+    spooled.delete()
+  }
+
+  @Test def largeDataIsSpooled(): Unit = {
+    val text = Random.alphanumeric.take(SpooledContent.DefaultThreshold * 2).mkString
+    val xml  = s"<gaga>$text</gaga>"
+
+    val (spooledData, metadataOpt) = RequestReader.dataAndMetadata(new ByteArrayInputStream(xml.getBytes("utf-8")), metadata = false)
+
+    assert(! spooledData.isInMemory)
+    assert(metadataOpt.isEmpty)
+    assert(spooledData.charLength === xml.length)
+    assert(useAndClose(spooledData.reader)(NetUtils.readStreamAsString) === xml)
+
+    spooledData.delete()
+  }
+}
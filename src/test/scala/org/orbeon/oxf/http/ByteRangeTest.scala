@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.http
+
+import org.junit.Test
+import org.orbeon.oxf.http.ByteRange._
+import org.scalatest.junit.AssertionsForJUnit
+
+class ByteRangeTest extends AssertionsForJUnit {
+
+  @Test def testByteRange(): Unit = {
+
+    val expected = Seq(
+      None                    → Full,
+      Some("bytes=0-99")      → Partial(0, 99, 1000),
+      Some("bytes=500-")      → Partial(500, 999, 1000),
+      Some("bytes=900-2000")  → Partial(900, 999, 1000),
+      Some("bytes=-100")      → Partial(900, 999, 1000),
+      Some("bytes=-2000")     → Partial(0, 999, 1000),
+      Some("bytes=1000-")     → NotSatisfiable(1000),
+      Some("bytes=-0")        → NotSatisfiable(1000),
+      Some("bytes=99-0")      → Full,
+      Some("bytes=-")         → Full,
+      Some("bytes=0-1,5-6")   → Full,
+      Some("items=0-1")       → Full,
+      Some("bytes=99999999999999999999-") → Full
+    )
+
+    for ((header, range) ← expected)
+      assert(range === ByteRange(header, 1000), header)
+
+    assert("bytes 0-99/1000" === Partial(0, 99, 1000).contentRange)
+    assert(100               === Partial(0, 99, 1000).length)
+    assert("bytes */1000"    === NotSatisfiable(1000).contentRange)
+  }
+}
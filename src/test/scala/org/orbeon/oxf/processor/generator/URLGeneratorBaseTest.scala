@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.generator
+
+import org.junit.Test
+import org.orbeon.oxf.util.DateUtils
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.JavaConverters._
+
+class URLGeneratorBaseTest extends AssertionsForJUnit {
+
+  import URLGeneratorBase._
+
+  val Now = 1000000L
+
+  @Test def expirationFromMaxAge(): Unit = {
+    assert(Now + 60 * 1000 === findExpirationOrNull(List("max-age=60"), Now))
+    assert(Now + 60 * 1000 === findExpirationOrNull(List("public, max-age = 60"), Now))
+    assert(Now + 60 * 1000 === findExpirationOrNull(List("private", "MAX-AGE=\"60\""), Now))
+    assert(Now             === findExpirationOrNull(List("max-age=0"), Now))
+  }
+
+  @Test def noExpirationWithNoCacheOrNoStore(): Unit = {
+    assert(null eq findExpirationOrNull(List("no-cache, max-age=60"), Now))
+    assert(null eq findExpirationOrNull(List("max-age=60", "No-Store"), Now))
+  }
+
+  @Test def noExpirationWithoutMaxAge(): Unit = {
+    assert(null eq findExpirationOrNull(Nil, Now))
+    assert(null eq findExpirationOrNull(List("public"), Now))
+  }
+
+  @Test def conditionalHeadersWithETagOnly(): Unit = {
+
+    val headers = setConditionalHeadersIfNeeded(Map("Accept" → Array("application/xml")), null, "\"abc\"").asScala
+
+    assert(Set("Accept", "If-None-Match") === headers.keySet)
+    assert(List("\"abc\"") === headers("If-None-Match").to[List])
+    assert(List("application/xml") === headers("Accept").to[List])
+  }
+
+  @Test def conditionalHeadersWithLastModifiedAndETag(): Unit = {
+
+    val headers = setConditionalHeadersIfNeeded(null, Now, "\"abc\"").asScala
+
+    assert(Set("If-Modified-Since", "If-None-Match") === headers.keySet)
+    assert(List(DateUtils.RFC1123Date.print(Now)) === headers("If-Modified-Since").to[List])
+  }
+
+  @Test def noConditionalHeaders(): Unit =
+    assert(setConditionalHeadersIfNeeded(null, null, null).isEmpty)
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pdf
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import org.junit.Test
+import org.orbeon.oxf.webapp.HttpStatusCodeException
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.mutable.ListBuffer
+
+class PDFRenderingQueueTest extends AssertionsForJUnit {
+
+  // Runs `body` on a new thread, returning the thread and a latch which lets the body complete
+  def startRender(queue: PDFRenderingQueue, batch: Boolean = false)(body: ⇒ Unit): (Thread, CountDownLatch) = {
+    val done = new CountDownLatch(1)
+    val thread = new Thread(new Runnable {
+      def run(): Unit = {
+        def render() = queue.withRenderingPermit { body; done.await() }
+        if (batch) queue.withBatchPriority(render()) else render()
+      }
+    })
+    thread.start()
+    (thread, done)
+  }
+
+  def waitFor(condition: ⇒ Boolean): Unit = {
+    val deadline = System.currentTimeMillis + 10000
+    while (! condition) {
+      assert(System.currentTimeMillis < deadline)
+      Thread.sleep(5)
+    }
+  }
+
+  def status(body: ⇒ Any): Option[Int] =
+    try {
+      body
+      None
+    } catch {
+      case HttpStatusCodeException(code, _, _) ⇒ Some(code)
+    }
+
+  @Test def limitsRunningRenders(): Unit = {
+
+    val queue = new PDFRenderingQueue(parallelism = 2, queueSize = 10, queueTimeout = 10000)
+
+    val renders = 1 to 3 map (_ ⇒ startRender(queue)(()))
+    waitFor(queue.statistics.running == 2 && queue.statistics.queued == 1)
+
+    renders foreach (_._2.countDown())
+    renders foreach (_._1.join())
+
+    val statistics = queue.statistics
+    assert(0 === statistics.running)
+    assert(0 === statistics.queued)
+    assert(3 === statistics.rendered)
+  }
+
+  @Test def interactiveBeforeBatch(): Unit = {
+
+    val queue = new PDFRenderingQueue(parallelism = 1, queueSize = 10, queueTimeout = 10000)
+    val order = ListBuffer[String]()
+
+    val (first, firstDone) = startRender(queue)(())
+    waitFor(queue.statistics.running == 1)
+
+    // The batch render is queued first, but the interactive one gets the permit first
+    val (batch, batchDone) = startRender(queue, batch = true)(order.synchronized(order += "batch"))
+    waitFor(queue.statistics.queued == 1)
+    val (interactive, interactiveDone) = startRender(queue)(order.synchronized(order += "interactive"))
+    waitFor(queue.statistics.queued == 2)
+
+    batchDone.countDown()
+    interactiveDone.countDown()
+    firstDone.countDown()
+    List(first, batch, interactive) foreach (_.join())
+
+    assert(List("interactive", "batch") === order.toList)
+  }
+
+  @Test def rejectsWhenQueueFull(): Unit = {
+
+    val queue = new PDFRenderingQueue(parallelism = 1, queueSize = 0, queueTimeout = 10000)
+
+    val (thread, done) = startRender(queue)(())
+    waitFor(queue.statistics.running == 1)
+
+    assert(Some(503) === status(queue.withRenderingPermit(())))
+    assert(1 === queue.statistics.rejected)
+
+    done.countDown()
+    thread.join()
+  }
+
+  @Test def rejectsAfterTimeout(): Unit = {
+
+    val queue = new PDFRenderingQueue(parallelism = 1, queueSize = 10, queueTimeout = 50)
+
+    val (thread, done) = startRender(queue)(())
+    waitFor(queue.statistics.running == 1)
+
+    assert(Some(503) === status(queue.withRenderingPermit(())))
+    assert(0 === queue.statistics.queued)
+
+    done.countDown()
+    thread.join()
+  }
+
+  @Test def nestedRenderReusesPermit(): Unit = {
+
+    val queue = new PDFRenderingQueue(parallelism = 1, queueSize = 0, queueTimeout = 0)
+
+    assert("done" === queue.withRenderingPermit(queue.withRenderingPermit("done")))
+    assert(1 === queue.statistics.rendered)
+  }
+
+  @Test def newThreadDoesNotInheritPermit(): Unit = {
+
+    val queue = new PDFRenderingQueue(parallelism = 1, queueSize = 10, queueTimeout = 50)
+
+    var childStatus: Option[Int] = None
+    queue.withRenderingPermit {
+      val child = new Thread(new Runnable {
+        def run(): Unit = childStatus = status(queue.withRenderingPermit(()))
+      })
+      child.start()
+      child.join()
+    }
+
+    assert(Some(503) === childStatus)
+  }
+
+  @Test def failedRendersNotCountedAsRendered(): Unit = {
+
+    val queue = new PDFRenderingQueue(parallelism = 1, queueSize = 10, queueTimeout = 10000)
+
+    intercept[IllegalStateException] {
+      queue.withRenderingPermit(throw new IllegalStateException)
+    }
+
+    val statistics = queue.statistics
+    assert(0 === statistics.running)
+    assert(0 === statistics.rendered)
+    assert(1 === statistics.failed)
+    assert(0 === statistics.totalRenderMs)
+
+    // The permit was released
+    assert("done" === queue.withRenderingPermit("done"))
+  }
+}
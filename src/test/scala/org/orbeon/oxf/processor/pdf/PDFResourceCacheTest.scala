@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pdf
+
+import java.io.InputStream
+import java.{lang ⇒ jl}
+
+import com.lowagie.text.Image
+import org.junit.Test
+import org.orbeon.oxf.http.StreamedContent
+import org.orbeon.oxf.resources.URLFactory
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.{ConnectionResult, DateUtils, NetUtils}
+import org.scalatest.junit.AssertionsForJUnit
+import org.xhtmlrenderer.pdf.ITextFSImage
+import org.xhtmlrenderer.resource.ImageResource
+
+import scala.collection.mutable.ListBuffer
+
+class PDFResourceCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  val ImageBytes   = useAndClose(URLFactory.createURL("oxf:/org/orbeon/oxf/util/hs-2010-13-a-web.png").openStream())(NetUtils.inputStreamToByteArray)
+  val LastModified = 1451606400000L
+
+  // Answers with the given responses in turn, and records the `If-Modified-Since` sent
+  class Loader(uri: String, responses: (Int, Option[Long])*) extends PDFImageLoader {
+
+    val ifModifiedSince = ListBuffer[Option[Long]]()
+    private val remaining = responses.iterator
+
+    def connect(ifModifiedSinceOrNull: jl.Long): ConnectionResult = {
+      ifModifiedSince += Option(ifModifiedSinceOrNull) map (_.longValue)
+      val (statusCode, lastModifiedOpt) = remaining.next()
+      ConnectionResult(
+        url        = uri,
+        statusCode = statusCode,
+        headers    = (lastModifiedOpt.toList map (lastModified ⇒ "Last-Modified" → List(DateUtils.RFC1123Date.print(lastModified)))).toMap,
+        content    = StreamedContent.fromBytes(if (statusCode == 200) ImageBytes else Array[Byte](), Some("image/png"))
+      )
+    }
+
+    def decode(is: InputStream): ImageResource =
+      new ImageResource(uri, new ITextFSImage(Image.getInstance(NetUtils.inputStreamToByteArray(is))))
+  }
+
+  def load(uri: String, loader: Loader) =
+    PDFResourceCache.getImageResource(uri, loader).getImage.asInstanceOf[ITextFSImage]
+
+  @Test def revalidatesWithConditionalGet(): Unit = {
+
+    val uri    = "http://example.org/revalidates.png"
+    val loader = new Loader(uri, 200 → Some(LastModified), 304 → None, 304 → None)
+    val before = PDFResourceCache.imageStatistics
+
+    val first  = load(uri, loader)
+    val second = load(uri, loader)
+    val third  = load(uri, loader)
+
+    assert(loader.ifModifiedSince === List(None, Some(LastModified), Some(LastModified)))
+
+    val after = PDFResourceCache.imageStatistics
+    assert(after.hits   - before.hits   === 2)
+    assert(after.misses - before.misses === 1)
+    assert(after.bytesSaved - before.bytesSaved === 2L * ImageBytes.length)
+
+    // Renderers scale images in place, so each gets its own copy
+    assert(first  ne second)
+    assert(second ne third)
+    assert(second.getWidth === first.getWidth)
+  }
+
+  @Test def changedImageReplacesCachedImage(): Unit = {
+    val uri    = "http://example.org/changed.png"
+    val loader = new Loader(uri, 200 → Some(LastModified), 200 → Some(LastModified + 1000), 304 → None)
+    for (_ ← 1 to 3) load(uri, loader)
+    assert(loader.ifModifiedSince === List(None, Some(LastModified), Some(LastModified + 1000)))
+  }
+
+  @Test def keepsCachedImageWhenResponseCantBeRevalidated(): Unit = {
+    val uri    = "http://example.org/not-revalidated.png"
+    val loader = new Loader(uri, 200 → Some(LastModified), 200 → None, 304 → None)
+    for (_ ← 1 to 3) load(uri, loader)
+    assert(loader.ifModifiedSince === List(None, Some(LastModified), Some(LastModified)))
+  }
+
+  @Test def doesNotCacheWithoutLastModified(): Unit = {
+    val uri    = "http://example.org/no-last-modified.png"
+    val loader = new Loader(uri, 200 → None, 200 → None)
+    for (_ ← 1 to 2) load(uri, loader)
+    assert(loader.ifModifiedSince === List(None, None))
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pdf
+
+import java.io.{ByteArrayOutputStream, OutputStream}
+import java.{lang ⇒ jl}
+
+import com.lowagie.text.pdf.{PdfReader, PdfWriter, RandomAccessFileOrArray, TextField}
+import com.lowagie.text.{Document, PageSize, Paragraph, Rectangle}
+import org.junit.Test
+import org.orbeon.oxf.cache.{CacheKey, InternalCacheKey}
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.SecureUtils
+import org.scalatest.junit.AssertionsForJUnit
+
+class PDFTemplateProcessorTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  import PDFTemplateProcessor._
+
+  // A PDF with a text field on the given page for each field name
+  def pdfWithFields(fieldPages: (String, Int)*): Array[Byte] = {
+    val os       = new ByteArrayOutputStream
+    val document = new Document(PageSize.A4)
+    val writer   = PdfWriter.getInstance(document, os)
+    document.open()
+    for (pageNumber ← 1 to fieldPages.map(_._2).max) {
+      if (pageNumber > 1)
+        document.newPage()
+      document.add(new Paragraph(s"Page $pageNumber"))
+      for ((fieldName, `pageNumber`) ← fieldPages)
+        writer.addAnnotation(new TextField(writer, new Rectangle(50, 700, 200, 720), fieldName).getTextField)
+    }
+    document.close()
+    os.toByteArray
+  }
+
+  // Calls `cachedTemplate`, returning the template and whether it had to be read
+  class TemplateSource(bytes: Array[Byte]) {
+
+    var reads = 0
+
+    def template(keyValidityOpt: Option[(CacheKey, AnyRef)]): Template =
+      cachedTemplate(keyValidityOpt, (os: OutputStream) ⇒ { reads += 1; os.write(bytes) })
+  }
+
+  def uniqueFieldName = "field-" + SecureUtils.randomHexId
+
+  @Test def fieldPages(): Unit = {
+    val pdf = pdfWithFields("first" → 1, "second" → 2, "also-second" → 2)
+    val acroFields = new PdfReader(new RandomAccessFileOrArray(pdf), null).getAcroFields
+    assert(Map("first" → 1, "second" → 2, "also-second" → 2) === findFieldPages(acroFields))
+    assert(None === findFieldPage(acroFields, "missing"))
+  }
+
+  @Test def templateReadOnlyWhenValidityChanges(): Unit = {
+
+    val fieldName = uniqueFieldName
+    val source    = new TemplateSource(pdfWithFields(fieldName → 1))
+    val key       = new InternalCacheKey("test", SecureUtils.randomHexId)
+
+    val template1 = source.template(Some(key → jl.Long.valueOf(1L)))
+    assert(1 === source.reads)
+    assert(Map(fieldName → 1) === template1.fieldPages)
+
+    // Same validity: not read again
+    assert(template1 eq source.template(Some(key → jl.Long.valueOf(1L))))
+    assert(1 === source.reads)
+
+    // New validity: read again, but the content is the same so the parsed template is reused
+    assert(template1 eq source.template(Some(key → jl.Long.valueOf(2L))))
+    assert(2 === source.reads)
+  }
+
+  @Test def templateWithoutValidityReusedByDigest(): Unit = {
+
+    val source = new TemplateSource(pdfWithFields(uniqueFieldName → 1))
+
+    val template1 = source.template(None)
+    assert(template1 eq source.template(None))
+    assert(2 === source.reads)
+
+    // Another template
+    val otherSource = new TemplateSource(pdfWithFields(uniqueFieldName → 1))
+    assert(template1 ne otherSource.template(None))
+  }
+}
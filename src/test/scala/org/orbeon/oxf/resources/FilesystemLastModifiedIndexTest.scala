@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.resources
+
+import java.io.File
+import java.nio.file.Files
+
+import org.apache.commons.io.FileUtils
+import org.junit.Test
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.JavaConverters._
+
+class FilesystemLastModifiedIndexTest extends AssertionsForJUnit {
+
+  def withIndex[T](body: (File, FilesystemLastModifiedIndex) ⇒ T): T = {
+    val root = Files.createTempDirectory("orbeon-index-test").toFile
+    try {
+      val index = new FilesystemLastModifiedIndex(root)
+      try body(root, index)
+      finally index.close()
+    } finally
+      FileUtils.deleteDirectory(root)
+  }
+
+  def newFile(parent: File, path: String, content: String) =
+    new File(parent, path) |!> (f ⇒ FileUtils.writeStringToFile(f, content, "utf-8"))
+
+  @Test def servesFromIndex(): Unit =
+    withIndex { (root, index) ⇒
+      val file = newFile(root, "a.xml", "<a/>")
+
+      assert(index.lastModified(file) === file.lastModified)
+      assert(index.lastModified(file) === file.lastModified)
+      assert(index.getStatCalls        === 1)
+      assert(index.getStatCallsAvoided === 1)
+      assert(index.getCurrentSize      === 1)
+
+      assert(index.lastModified(new File(root, "missing.xml")) === -1)
+    }
+
+  @Test def invalidateDirectoryRemovesNestedEntries(): Unit =
+    withIndex { (root, index) ⇒
+      val kept   = newFile(root, "a.xml", "<a/>")
+      val nested = newFile(root, "dir/sub/b.xml", "<b/>")
+      val other  = newFile(root, "dir/c.xml", "<c/>")
+
+      Seq(kept, nested, other) foreach index.lastModified
+      assert(index.getCurrentSize === 3)
+
+      index.invalidate(new File(root, "dir"))
+      assert(index.getCurrentSize === 1)
+
+      index.lastModified(nested)
+      assert(index.getStatCalls === 4)
+    }
+
+  @Test def watchEventInvalidatesEntry(): Unit =
+    withIndex { (root, index) ⇒
+      val file     = newFile(root, "a.xml", "<a/>")
+      val original = index.lastModified(file)
+
+      newFile(root, "a.xml", "<b/>")
+      file.setLastModified(original + 10000)
+
+      // Events are delivered asynchronously, and some platforms poll
+      val deadline = System.currentTimeMillis + 30000
+      while (index.lastModified(file) == original && System.currentTimeMillis < deadline)
+        Thread.sleep(100)
+
+      assert(index.lastModified(file) === file.lastModified)
+    }
+
+  @Test def closeFallsBackToFilesystem(): Unit =
+    withIndex { (root, index) ⇒
+      val file = newFile(root, "a.xml", "<a/>")
+      assert(FilesystemLastModifiedIndex.getOpenIndexes.asScala.toList contains index)
+
+      index.close()
+      assert(! (FilesystemLastModifiedIndex.getOpenIndexes.asScala.toList contains index))
+
+      index.lastModified(file)
+      index.lastModified(file)
+      assert(index.getStatCalls        === 2)
+      assert(index.getStatCallsAvoided === 0)
+    }
+}
@@ -29,4 +29,34 @@ class XFormsResourceServerTest extends ResourceManagerTestBase with AssertionsFo
     assert("/xforms-server/dynamic/563ec01cad20b038a8109ba984daac278a350f72" ===
       XFormsResourceServer.proxyURI("http://example.org/foo/bar.png", None, None, -1, Map(), Set(), _ ⇒ None))
   }
-}
\ No newline at end of file
+
+  @Test def acceptsGzip(): Unit = {
+
+    import XFormsResourceServer.acceptsGzip
+
+    assert(acceptsGzip("gzip"))
+    assert(acceptsGzip("gzip, deflate, sdch"))
+    assert(acceptsGzip("deflate, GZIP;q=0.5"))
+    assert(acceptsGzip("x-gzip"))
+
+    assert(! acceptsGzip(""))
+    assert(! acceptsGzip("identity"))
+    assert(! acceptsGzip("deflate, gzip;q=0"))
+    assert(! acceptsGzip("gzipped"))
+  }
+
+  @Test def ifNoneMatchMatches(): Unit = {
+
+    import XFormsResourceServer.{combinedResourceETag, ifNoneMatchMatches}
+
+    val plain = combinedResourceETag("abc", gzip = false)
+    val gzip  = combinedResourceETag("abc", gzip = true)
+
+    assert(plain != gzip)
+
+    assert(ifNoneMatchMatches(plain, plain))
+    assert(ifNoneMatchMatches("\"xyz\", " + gzip, gzip))
+    assert(ifNoneMatchMatches("*", plain))
+    assert(! ifNoneMatchMatches(gzip, plain))
+  }
+}
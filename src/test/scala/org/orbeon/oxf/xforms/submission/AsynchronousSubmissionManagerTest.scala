@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.submission
+
+import java.util.concurrent.{Callable, CountDownLatch, Future, FutureTask, RejectedExecutionException}
+
+import org.junit.Test
+import org.mockito.{Matchers, Mockito}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xforms.XFormsContainingDocument
+import org.scalatest.junit.AssertionsForJUnit
+import org.scalatest.mock.MockitoSugar
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+
+class AsynchronousSubmissionManagerTest extends AssertionsForJUnit with MockitoSugar {
+
+  // Submissions of a document which record their replacements and the events they dispatch
+  class Fixture {
+
+    val log = ListBuffer[String]()
+    val doc = mock[XFormsContainingDocument]
+
+    def submission(id: String, failOnDone: Boolean = false): Unit = {
+      val submission = mock[XFormsModelSubmission]
+      Mockito when submission.doReplace(Matchers.any(classOf[SubmissionResult])) thenAnswer new Answer[Runnable] {
+        def answer(invocation: InvocationOnMock) = {
+          val result = invocation.getArguments()(0).asInstanceOf[SubmissionResult]
+          val event  = if (result.getThrowable eq null) "xforms-submit-done" else "xforms-submit-error"
+          log += s"replace $id"
+          new Runnable {
+            def run(): Unit = {
+              log += s"$event $id"
+              if (failOnDone)
+                throw new IllegalStateException
+            }
+          }
+        }
+      }
+      Mockito when doc.getObjectByEffectiveId(id) thenReturn submission
+    }
+
+    def completed(body: ⇒ SubmissionResult): Future[SubmissionResult] =
+      new FutureTask(new Callable[SubmissionResult] { def call() = body }) |!> (_.run())
+
+    def succeeded(id: String) = completed(new SubmissionResult(id, null: Replacer, null))
+    def failed(id: String)    = completed(new SubmissionResult(id, new IllegalStateException, null))
+
+    def processBatch(futures: Future[SubmissionResult]*): Unit =
+      new AsynchronousSubmissionManager(doc).processBatch(futures.asJava)
+  }
+
+  @Test def replacementsBeforeEvents(): Unit = {
+
+    val fixture = new Fixture
+    import fixture._
+
+    submission("s1")
+    submission("s2")
+    submission("s3")
+
+    processBatch(succeeded("s1"), failed("s2"), succeeded("s3"))
+
+    assert(
+      List(
+        "replace s1",
+        "replace s2",
+        "replace s3",
+        "xforms-submit-done s1",
+        "xforms-submit-error s2",
+        "xforms-submit-done s3"
+      ) === log.toList
+    )
+  }
+
+  @Test def wholeBatchProcessedBeforeFailing(): Unit = {
+
+    val fixture = new Fixture
+    import fixture._
+
+    submission("s1", failOnDone = true)
+    submission("s2")
+
+    // A future which didn't complete normally, e.g. if the submission was cancelled
+    val broken = completed(throw new IllegalStateException)
+
+    intercept[OXFException] {
+      processBatch(succeeded("s1"), broken, succeeded("s2"))
+    }
+
+    assert(
+      List(
+        "replace s1",
+        "replace s2",
+        "xforms-submit-done s1",
+        "xforms-submit-done s2"
+      ) === log.toList
+    )
+  }
+
+  @Test def submissionsRejectedWhenThreadsBusyAndQueueFull(): Unit = {
+
+    val pool  = AsynchronousSubmissionManager.newThreadPool(1, 1)
+    val latch = new CountDownLatch(1)
+
+    def blocking = new Runnable { def run(): Unit = latch.await() }
+
+    try {
+      pool.execute(blocking) // running
+      pool.execute(blocking) // queued
+      intercept[RejectedExecutionException] {
+        pool.execute(blocking)
+      }
+    } finally {
+      latch.countDown()
+      pool.shutdown()
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.submission
+
+import org.junit.Test
+import org.orbeon.dom.Document
+import org.orbeon.oxf.http.StreamedContent
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.{ConnectionResult, DateUtils, XPath}
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.oxf.xml.TransformerUtils
+import org.scalatest.junit.AssertionsForJUnit
+
+class SubmissionHttpCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  private implicit val Logger = ResourceManagerTestBase.newIndentedLogger
+
+  val URL = "http://example.org/service"
+
+  def newDocumentInfo =
+    TransformerUtils.dom4jToTinyTree(XPath.GlobalConfiguration, elemToDocument(<data>original</data>), false)
+
+  def response(statusCode: Int, headers: (String, String)*) =
+    ConnectionResult(
+      url        = URL,
+      statusCode = statusCode,
+      headers    = headers.toList groupBy (_._1) mapValues (_ map (_._2)),
+      content    = StreamedContent.fromBytes(Array[Byte](0), None)
+    )
+
+  // Store the response through a mutable instance, as the replacer sees it after `deserialize()`
+  def store(key: String, cxr: ConnectionResult): Unit = {
+    val replacer = new InstanceReplacer(null, null)
+    replacer.setHttpCachedResult(newDocumentInfo, isReadonly = false)
+    SubmissionHttpCache.storeIfCacheable(key, cxr, replacer)
+  }
+
+  @Test def userSpecificRequests(): Unit = {
+    assert(! SubmissionHttpCache.hasUserSpecificHeaders(Map("accept" → List("application/xml"))))
+    for (name ← List("Authorization", "authorization", "cookie", "Orbeon-Username", "orbeon-group", "orbeon-roles"))
+      assert(SubmissionHttpCache.hasUserSpecificHeaders(Map(name → List("value"))), name)
+  }
+
+  @Test def keyIncludesAllHeadersSent(): Unit = {
+
+    val headers = Map("accept" → List("application/xml"), "accept-language" → List("en"))
+
+    // Forwarded headers are part of the key just like the ones set with `xf:header`
+    assert(SubmissionHttpCache.key(URL, isHandleXInclude = false, headers) !=
+           SubmissionHttpCache.key(URL, isHandleXInclude = false, headers + ("accept-language" → List("fr"))))
+    assert(SubmissionHttpCache.key(URL, isHandleXInclude = false, headers) !=
+           SubmissionHttpCache.key(URL, isHandleXInclude = false, headers + ("x-forwarded-user" → List("jdoe"))))
+
+    // The order of the headers doesn't matter
+    assert(SubmissionHttpCache.key(URL, isHandleXInclude = false, headers) ===
+           SubmissionHttpCache.key(URL, isHandleXInclude = false, headers.toList.reverse.toMap))
+  }
+
+  @Test def cacheableResponses(): Unit = {
+    assert(SubmissionHttpCache.isCacheable(response(200, "Cache-Control" → "max-age=60")))
+    assert(SubmissionHttpCache.isCacheable(response(200, "ETag" → "\"1\"")))
+    assert(SubmissionHttpCache.isCacheable(response(200, "Cache-Control" → "public, max-age=60", "Vary" → "Accept-Encoding")))
+
+    assert(! SubmissionHttpCache.isCacheable(response(200)))
+    assert(! SubmissionHttpCache.isCacheable(response(404, "Cache-Control" → "max-age=60")))
+    assert(! SubmissionHttpCache.isCacheable(response(200, "Cache-Control" → "private, max-age=60")))
+    assert(! SubmissionHttpCache.isCacheable(response(200, "Cache-Control" → "no-store", "ETag" → "\"1\"")))
+    assert(! SubmissionHttpCache.isCacheable(response(200, "Cache-Control" → "max-age=60", "Vary" → "Cookie")))
+    assert(! SubmissionHttpCache.isCacheable(response(200, "Cache-Control" → "max-age=60", "Set-Cookie" → "JSESSIONID=1")))
+  }
+
+  @Test def freshness(): Unit = {
+
+    store("fresh", response(200, "Cache-Control" → "max-age=60"))
+    store("stale", response(200, "Cache-Control" → "max-age=0", "ETag" → "\"1\""))
+    store("private", response(200, "Cache-Control" → "private, max-age=60"))
+
+    val fresh = SubmissionHttpCache.findOrNull("fresh")
+    assert(fresh.isFresh)
+    assert("original" === fresh.documentInfo.getStringValue)
+
+    val stale = SubmissionHttpCache.findOrNull("stale")
+    assert(! stale.isFresh)
+    assert(Some("\"1\"") === stale.eTag)
+
+    assert(SubmissionHttpCache.findOrNull("private") eq null)
+  }
+
+  @Test def revalidation(): Unit = {
+
+    val lastModified = DateUtils.RFC1123Date.print(1000000000000L)
+    store("revalidation", response(200, "ETag" → "\"2\"", "Last-Modified" → lastModified))
+
+    val cached = SubmissionHttpCache.findOrNull("revalidation")
+    assert(! cached.isFresh)
+
+    val conditional = SubmissionHttpCache.conditionalHeaders(Map("accept" → List("application/xml")), cached)
+    assert(List("\"2\"")       === conditional("if-none-match"))
+    assert(List(lastModified) === conditional("if-modified-since"))
+    assert(List("application/xml") === conditional("accept"))
+
+    // The 304 stands for the original 200 and extends the freshness of the cached document
+    val revalidated = SubmissionHttpCache.revalidated("revalidation", cached, response(304, "Cache-Control" → "max-age=60"))
+    assert(200 === revalidated.statusCode)
+
+    val updated = SubmissionHttpCache.findOrNull("revalidation")
+    assert(updated.isFresh)
+    assert(cached.documentInfo eq updated.documentInfo)
+  }
+
+  @Test def readonlyAndMutableInstances(): Unit = {
+
+    val documentInfo = newDocumentInfo
+
+    // Read-only instances share the cached document
+    val readonlyReplacer = new InstanceReplacer(null, null)
+    readonlyReplacer.setHttpCachedResult(documentInfo, isReadonly = true)
+    assert(readonlyReplacer.resultingDocumentOrDocumentInfo eq documentInfo)
+
+    // Mutable instances get their own copy, so changes don't reach the cache
+    val mutableReplacer = new InstanceReplacer(null, null)
+    mutableReplacer.setHttpCachedResult(documentInfo, isReadonly = false)
+    val copy = mutableReplacer.resultingDocumentOrDocumentInfo.asInstanceOf[Document]
+    copy.getRootElement.setText("changed")
+
+    assert("changed"  === copy.getRootElement.getText)
+    assert("original" === documentInfo.getStringValue)
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2016 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml
+
+import java.io.InputStreamReader
+
+import org.junit.Test
+import org.orbeon.oxf.http.StreamedContent
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.{ConnectionResult, NetUtils, XPath}
+import org.scalatest.junit.AssertionsForJUnit
+
+class SAXStoreInputStreamTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+  val XML = """<forms><form app="acme" form="order"><!-- comment --></form></forms>"""
+
+  def newSAXStore =
+    TransformerUtils.tinyTreeToSAXStore(TransformerUtils.stringToTinyTree(XPath.GlobalConfiguration, XML, false, true))
+
+  @Test def replayedWithoutParsing(): Unit = {
+
+    val saxStore = newSAXStore
+    val is       = new SAXStoreInputStream(saxStore)
+
+    val withComments    = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, null, false, true)
+    val withoutComments = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, null, false, false)
+
+    assert(TransformerUtils.tinyTreeToString(withComments) contains "<!-- comment -->")
+    assert(! (TransformerUtils.tinyTreeToString(withoutComments) contains "comment"))
+  }
+
+  @Test def serializedForOtherReaders(): Unit = {
+
+    val is     = new SAXStoreInputStream(newSAXStore)
+    val string = NetUtils.readStreamAsString(new InputStreamReader(is, "utf-8"))
+    val parsed = TransformerUtils.stringToTinyTree(XPath.GlobalConfiguration, string, false, true)
+
+    assert(TransformerUtils.tinyTreeToString(parsed) contains """<form app="acme" form="order">""")
+  }
+
+  @Test def connectionResultKeepsStream(): Unit = {
+
+    val is  = new SAXStoreInputStream(newSAXStore)
+    val cxr = ConnectionResult("/fr/service/persistence/form", 200, Map(), StreamedContent(is, Some("application/xml"), None, None))
+
+    assert(cxr.hasContent)
+    assert(cxr.content.inputStream eq is)
+  }
+}